@@ -0,0 +1,19 @@
+package com.example.smartspring.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@code java -jar benchmarks.jar} entry point: plain JMH, but results go to {@code jmh-result.json} unless
+ * {@code -rf}/{@code -rff} say otherwise, so every run leaves a file that can be diffed against the last one.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<String> a = new ArrayList<>(List.of(args));
+        if (!a.contains("-rf")) a.addAll(0, List.of("-rf", "json"));
+        org.openjdk.jmh.Main.main(a.toArray(String[]::new));
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.oauth.SmartDiscoveryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code /metadata} fallback of SMART discovery: finding the oauth-uris extension in a CapabilityStatement. Real
+ * servers list every resource type with its interactions and search parameters, so the documents run from tens of
+ * KB to a few MB; {@code resources} scales that (150 is about a full R4 server).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapabilityStatementBenchmark {
+
+    @Param({"10", "150", "600"})
+    public int resources;
+
+    private byte[] metadata;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        metadata = capabilityStatement(resources).getBytes(StandardCharsets.UTF_8);
+        if (SmartDiscoveryService.fromCapabilityStatement(new ByteArrayInputStream(metadata)) == null)
+            throw new IllegalStateException("oauth-uris not found");
+    }
+
+    @Benchmark
+    public SmartDiscoveryService.SmartEndpoints fromCapabilityStatement() throws IOException {
+        return SmartDiscoveryService.fromCapabilityStatement(new ByteArrayInputStream(metadata));
+    }
+
+    // security comes after the resource list, as HAPI-based servers serialize it
+    static String capabilityStatement(int resources) {
+        StringBuilder b = new StringBuilder(resources * 4096);
+        b.append("{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\",\"date\":\"2024-01-01\",\"kind\":\"instance\",")
+                .append("\"fhirVersion\":\"4.0.1\",\"format\":[\"application/fhir+xml\",\"application/fhir+json\"],")
+                .append("\"rest\":[{\"mode\":\"server\",\"resource\":[");
+        for (int r = 0; r < resources; r++) {
+            if (r > 0) b.append(',');
+            b.append("{\"type\":\"Type").append(r).append("\",\"profile\":\"http://hl7.org/fhir/StructureDefinition/Type").append(r)
+                    .append("\",\"interaction\":[{\"code\":\"read\"},{\"code\":\"vread\"},{\"code\":\"search-type\"},{\"code\":\"history-instance\"}],")
+                    .append("\"versioning\":\"versioned\",\"readHistory\":true,\"searchInclude\":[\"*\",\"Type").append(r).append(":subject\"],")
+                    .append("\"searchParam\":[");
+            for (int p = 0; p < 25; p++) {
+                if (p > 0) b.append(',');
+                b.append("{\"name\":\"param-").append(p).append("\",\"definition\":\"http://hl7.org/fhir/SearchParameter/Type")
+                        .append(r).append("-param-").append(p).append("\",\"type\":\"token\",\"documentation\":\"")
+                        .append("A search parameter used to find resources by one of their coded or identifying elements\"}");
+            }
+            b.append("]}");
+        }
+        b.append("],\"security\":{\"cors\":true,\"service\":[{\"coding\":[{\"system\":")
+                .append("\"http://terminology.hl7.org/CodeSystem/restful-security-service\",\"code\":\"SMART-on-FHIR\"}]}],")
+                .append("\"extension\":[{\"url\":\"http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris\",\"extension\":[")
+                .append("{\"url\":\"authorize\",\"valueUri\":\"https://auth.example.org/authorize\"},")
+                .append("{\"url\":\"token\",\"valueUri\":\"https://auth.example.org/token\"}]}]}}]}");
+        return b.toString();
+    }
+}
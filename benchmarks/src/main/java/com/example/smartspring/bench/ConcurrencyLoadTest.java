@@ -0,0 +1,138 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency capacity of each {@code smart.web.mode}: boots the app in-process once per mode against
+ * {@link MockSmartServer} with a fixed FHIR latency, logs in a few sessions, then keeps {@code users} {@code /me}
+ * requests in flight (closed loop) for {@code duration}. With upstream time dominating, throughput is bounded by
+ * how many requests can wait at once: Tomcat's worker pool for BLOCKING, nothing fixed for VIRTUAL and ASYNC.
+ * Prints one JSON line per mode with throughput, latency percentiles, errors and peak JVM platform threads.
+ * <p>
+ * Arguments are {@code key=value}: {@code users} (1000), {@code latencyMs} (300), {@code seconds} (15),
+ * {@code warmupSeconds} (5), {@code sessions} (20), {@code modes} (BLOCKING,VIRTUAL,ASYNC).
+ */
+public final class ConcurrencyLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int users = Integer.parseInt(opts.getOrDefault("users", "1000"));
+        Duration latency = Duration.ofMillis(Long.parseLong(opts.getOrDefault("latencyMs", "300")));
+        Duration measure = Duration.ofSeconds(Long.parseLong(opts.getOrDefault("seconds", "15")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(opts.getOrDefault("warmupSeconds", "5")));
+        int sessions = Integer.parseInt(opts.getOrDefault("sessions", "20"));
+        List<String> modes = Arrays.asList(opts.getOrDefault("modes", "BLOCKING,VIRTUAL,ASYNC").split(","));
+
+        try (MockSmartServer mock = new MockSmartServer(0, 20, latency)) {
+            for (String mode : modes) {
+                System.out.println(run(mock, mode.trim(), users, sessions, warmup, measure, latency));
+            }
+        }
+    }
+
+    private static String run(MockSmartServer mock, String mode, int users, int sessions, Duration warmup, Duration measure,
+                              Duration latency) throws Exception {
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(SmartSpringApplication.class).run(
+                "--server.port=0",
+                "--smart.web.mode=" + mode,
+                "--smart.fhirBase=" + mock.fhirBase(),
+                "--smart.redirectUri=http://127.0.0.1/callback",
+                // take the upstream pool and the summary deadlines out of the picture; only request handling differs
+                "--smart.http.maxConnectionsPerRoute=" + (users * 4),
+                "--smart.http.acquireTimeout=30s",
+                "--smart.resilience.bulkhead.maxConcurrent=" + (users * 4),
+                "--smart.summary.callTimeout=30s",
+                "--smart.summary.deadline=30s",
+                "--server.tomcat.accept-count=" + users,
+                "--server.tomcat.max-connections=" + (users * 2),
+                "--logging.level.root=WARN");
+        try {
+            String appBase = "http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort();
+            LaunchClient client = new LaunchClient(appBase);
+            List<String> cookies = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) cookies.add(client.login());
+            if (!client.me(cookies.get(0)).contains("Drug ")) throw new IllegalStateException("/me did not render medications");
+
+            drive(client, cookies, users, warmup);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            Result r = drive(client, cookies, users, measure);
+            return String.format(Locale.ROOT,
+                    "{\"mode\":\"%s\",\"users\":%d,\"fhirLatencyMs\":%d,\"seconds\":%d,\"completed\":%d,\"errors\":%d,"
+                            + "\"throughputPerSec\":%.1f,\"p50Ms\":%.1f,\"p99Ms\":%.1f,\"maxMs\":%.1f,\"peakPlatformThreads\":%d}",
+                    mode, users, latency.toMillis(), measure.toSeconds(), r.completed.get(), r.errors.get(),
+                    r.completed.get() / (r.elapsedNanos / 1e9), r.percentile(0.50), r.percentile(0.99), r.percentile(1.0),
+                    threads.getPeakThreadCount());
+        } finally {
+            app.close();
+        }
+    }
+
+    // `users` loops, each sending its next /me as soon as the previous one completes, until `length` is up
+    private static Result drive(LaunchClient client, List<String> cookies, int users, Duration length) throws InterruptedException {
+        Result r = new Result();
+        CountDownLatch done = new CountDownLatch(users);
+        long start = System.nanoTime();
+        long end = start + length.toNanos();
+        for (int u = 0; u < users; u++) next(client, cookies.get(u % cookies.size()), end, r, done);
+        done.await();
+        r.elapsedNanos = System.nanoTime() - start;
+        return r;
+    }
+
+    private static void next(LaunchClient client, String cookie, long end, Result r, CountDownLatch done) {
+        if (System.nanoTime() >= end) {
+            done.countDown();
+            return;
+        }
+        long sent = System.nanoTime();
+        client.meAsync(cookie).whenComplete((res, err) -> {
+            if (err == null && res.statusCode() == 200) {
+                r.completed.incrementAndGet();
+                r.latencies.add(System.nanoTime() - sent);
+            } else {
+                r.errors.incrementAndGet();
+            }
+            next(client, cookie, end, r, done);
+        });
+    }
+
+    private static final class Result {
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        long elapsedNanos;
+        private long[] sorted;
+
+        double percentile(double p) {
+            if (sorted == null) {
+                sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            if (sorted.length == 0) return 0;
+            int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(0, i)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end standalone launch under load: each op is a fresh browser doing {@code /auth/start} → authorize
+ * redirect → {@code /callback} → {@code /me}, against the app booted in-process with {@link MockSmartServer}
+ * as both authorization server and FHIR endpoint. Sample mode, so the JSON result carries latency percentiles;
+ * the thread count ({@code -t}) is the number of concurrent users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(16)
+@Fork(1)
+public class LoginFlowBenchmark {
+
+    /** MedicationRequests on the patient's /me page. */
+    @Param({"20"})
+    public int medications;
+
+    private MockSmartServer mock;
+    private ConfigurableApplicationContext app;
+    private LaunchClient client;
+    private String appBase;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        mock = new MockSmartServer(0, medications);
+        app = new SpringApplicationBuilder(SmartSpringApplication.class).run(
+                "--server.port=0",
+                "--smart.fhirBase=" + mock.fhirBase(),
+                // the client below never follows this; it replays the mock's redirect query against appBase
+                "--smart.redirectUri=http://127.0.0.1/callback",
+                "--logging.level.root=WARN");
+        appBase = "http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort();
+        client = new LaunchClient(appBase);
+        String page = login();
+        if (!page.contains("Drug ")) throw new IllegalStateException("/me did not render medications:\n" + page);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        if (app != null) app.close();
+        if (mock != null) mock.close();
+    }
+
+    @Benchmark
+    public String authStartCallbackMe() throws Exception {
+        return login();
+    }
+
+    private String login() throws Exception {
+        return client.me(client.login());
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.smartspring.bench;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.smartspring.service.CodeDisplayCache;
+import com.example.smartspring.service.FhirService;
+import com.example.smartspring.service.MedicationIndex;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /me medication list: the old HashMap-of-"Medication/{id}" + {@link FhirService#medicationDisplay} path against
+ * {@link MedicationIndex}. Bundles are synthetic searchsets (one Medication included per ten entries, a fifth of
+ * the requests with an inline RxNorm concept) round-tripped through the JSON parser so strings are distinct
+ * instances, as they are off the wire. Add {@code -prof gc} for allocation per op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MedicationDisplayBenchmark {
+
+    static final String RXNORM = "http://www.nlm.nih.gov/research/umls/rxnorm";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    private Bundle bundle;
+    private CodeDisplayCache warm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FhirContext ctx = FhirContext.forR4Cached();
+        bundle = ctx.newJsonParser().parseResource(Bundle.class, ctx.newJsonParser().encodeResourceToString(searchset(entries)));
+        warm = new CodeDisplayCache(10_000);
+        MedicationIndex.of(bundle).displays(warm);
+    }
+
+    @Benchmark
+    public List<String> mapAndDisplay() {
+        Map<String, Medication> medsByRef = new HashMap<>();
+        for (var e : bundle.getEntry()) {
+            if (e.getResource() instanceof Medication m) {
+                medsByRef.put(m.getResourceType().name() + "/" + m.getIdElement().getIdPart(), m);
+            }
+        }
+        List<String> meds = new ArrayList<>();
+        for (var e : bundle.getEntry()) {
+            if (e.getResource() instanceof MedicationRequest mr) meds.add(FhirService.medicationDisplay(mr, medsByRef));
+        }
+        return meds;
+    }
+
+    @Benchmark
+    public int indexOnly() {
+        return MedicationIndex.of(bundle).size();
+    }
+
+    @Benchmark
+    public List<String> indexWarmCache() {
+        return MedicationIndex.of(bundle).displays(warm);
+    }
+
+    @Benchmark
+    public List<String> indexColdCache() {
+        return MedicationIndex.of(bundle).displays(new CodeDisplayCache(10_000));
+    }
+
+    static Bundle searchset(int entries) {
+        int meds = Math.max(1, entries / 10);
+        Bundle b = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+        for (int i = 0; i < entries - meds; i++) {
+            MedicationRequest mr = new MedicationRequest();
+            mr.setId("mr" + i);
+            mr.setSubject(new Reference("Patient/p1"));
+            if (i % 5 == 0) mr.setMedication(rxnorm(i));
+            else mr.setMedication(new Reference("Medication/m" + (i % meds)));
+            b.addEntry().setFullUrl("http://bench/fhir/MedicationRequest/mr" + i).setResource(mr)
+                    .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        for (int i = 0; i < meds; i++) {
+            Medication m = new Medication();
+            m.setId("m" + i);
+            m.setCode(rxnorm(i));
+            b.addEntry().setFullUrl("http://bench/fhir/Medication/m" + i).setResource(m)
+                    .getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+        }
+        return b;
+    }
+
+    // 200 distinct codes, so large bundles repeat them the way a real medication list does
+    private static CodeableConcept rxnorm(int i) {
+        int code = 197_000 + i % 200;
+        return new CodeableConcept().addCoding(new Coding(RXNORM, Integer.toString(code), "Drug " + code + " 10 MG Oral Tablet"));
+    }
+}
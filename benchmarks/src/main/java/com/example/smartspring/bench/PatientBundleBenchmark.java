@@ -0,0 +1,73 @@
+package com.example.smartspring.bench;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.smartspring.mock.MockSmartServer;
+import com.example.smartspring.service.FhirService;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /patients page: HAPI JSON parsing of a Patient searchset (what the client does with the response body) and the
+ * name mapping the controller renders, separately and together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatientBundleBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private final FhirContext ctx = FhirContext.forR4Cached();
+    private byte[] json;
+    private Bundle parsed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder b = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(entries * 10)
+                .append(",\"link\":[{\"relation\":\"self\",\"url\":\"http://bench/fhir/Patient?_count=").append(entries)
+                .append("\"},{\"relation\":\"next\",\"url\":\"http://bench/fhir?_getpages=abc&_getpagesoffset=").append(entries)
+                .append("\"}],\"entry\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) b.append(',');
+            b.append("{\"fullUrl\":\"http://bench/fhir/Patient/p").append(i).append("\",\"resource\":")
+                    .append(MockSmartServer.patient("p" + i)).append(",\"search\":{\"mode\":\"match\"}}");
+        }
+        json = b.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        parsed = parse();
+    }
+
+    @Benchmark
+    public Bundle parse() {
+        return ctx.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public List<String> patientNames() {
+        return FhirService.patientNames(parsed);
+    }
+
+    @Benchmark
+    public List<String> parseAndMap() {
+        return FhirService.patientNames(parse());
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.oauth.PkceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** PKCE pair per {@code /auth/start}: 64 random bytes for the verifier, then its S256 challenge. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PkceBenchmark {
+
+    private final String verifier = PkceUtil.generateCodeVerifier();
+
+    @Benchmark
+    public String generateCodeVerifier() {
+        return PkceUtil.generateCodeVerifier();
+    }
+
+    @Benchmark
+    public String codeChallengeS256() {
+        return PkceUtil.codeChallengeS256(verifier);
+    }
+
+    @Benchmark
+    public String verifierAndChallenge() {
+        return PkceUtil.codeChallengeS256(PkceUtil.generateCodeVerifier());
+    }
+}
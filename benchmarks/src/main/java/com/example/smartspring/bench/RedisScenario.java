@@ -0,0 +1,159 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockRedisServer;
+import com.example.smartspring.mock.MockSmartServer;
+import com.example.smartspring.session.RedisSessionTokenStore;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@code smart.session.store: REDIS} against {@link MockRedisServer}, printing one JSON line per phase:
+ * <ul>
+ *   <li>{@code protocol}: {@code keys} sessions through {@link RedisSessionTokenStore} with a password and a non-zero
+ *   database: SET PX, GET back, DEL half, and a key read after its PX expiry.</li>
+ *   <li>{@code errors}: error and malformed replies injected into a store with a one-connection pool, then a wrong
+ *   password, no password and an out-of-range database; each call fails with the exception shown, the next call
+ *   works, and no connection is left open behind the pool.</li>
+ *   <li>{@code shared}: two app instances on the same store and session key; a login on the first is served
+ *   {@code /me} by the second.</li>
+ * </ul>
+ * Arguments are {@code key=value}: {@code keys} (1000).
+ */
+public final class RedisScenario {
+
+    private static final String PASSWORD = "s3cret";
+    private static final int DB = 3;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int keys = Integer.parseInt(opts.getOrDefault("keys", "1000"));
+
+        try (MockRedisServer redis = new MockRedisServer(0, PASSWORD)) {
+            protocol(redis, keys);
+            errors(redis);
+            shared(redis);
+        }
+    }
+
+    private static void protocol(MockRedisServer redis, int keys) throws Exception {
+        try (RedisSessionTokenStore store = store(redis, PASSWORD, DB, 4)) {
+            long expires = System.currentTimeMillis() / 1000 + 3600;
+            long start = System.nanoTime();
+            for (int i = 0; i < keys; i++) store.put("k" + i, value(i), expires);
+            int matched = 0;
+            for (int i = 0; i < keys; i++) if (Arrays.equals(store.get("k" + i), value(i))) matched++;
+            for (int i = 0; i < keys; i += 2) store.remove("k" + i);
+            double opMicros = (System.nanoTime() - start) / 1e3 / (keys * 2 + (keys + 1) / 2);
+            int stored = redis.keys(DB);
+
+            store.put("short", value(-1), System.currentTimeMillis() / 1000 + 1);
+            boolean readable = store.get("short") != null;
+            Thread.sleep(2_100);
+            boolean expired = store.get("short") == null;
+            System.out.println(String.format(Locale.ROOT,
+                    "{\"phase\":\"protocol\",\"keys\":%d,\"matched\":%d,\"keysAfterDel\":%d,\"keysInDb0\":%d,"
+                            + "\"readableBeforeExpiry\":%b,\"expired\":%b,\"connections\":%d,\"opMicros\":%.1f}",
+                    keys, matched, stored, redis.keys(0), readable, expired, redis.accepted(), opMicros));
+        }
+    }
+
+    private static void errors(MockRedisServer redis) throws Exception {
+        Map<String, String> thrown = new LinkedHashMap<>();
+        long acceptedBefore = redis.accepted();
+        try (RedisSessionTokenStore store = store(redis, PASSWORD, DB, 1)) {
+            store.put("e", value(0), System.currentTimeMillis() / 1000 + 3600);
+            Map<String, String> replies = new LinkedHashMap<>();
+            replies.put("error", "-ERR injected\r\n");
+            replies.put("badLength", "$abc\r\n");
+            replies.put("badType", "?\r\n");
+            for (Map.Entry<String, String> r : replies.entrySet()) {
+                redis.failNext(r.getValue());
+                thrown.put(r.getKey(), outcome(() -> store.get("e")));
+                thrown.put(r.getKey() + "Then", outcome(() -> store.get("e")));
+            }
+        }
+        try (RedisSessionTokenStore wrong = store(redis, "wrong", DB, 1);
+             RedisSessionTokenStore none = store(redis, null, DB, 1);
+             RedisSessionTokenStore badDb = store(redis, PASSWORD, 99, 1)) {
+            thrown.put("wrongPassword", outcome(() -> wrong.get("e")));
+            thrown.put("noPassword", outcome(() -> none.get("e")));
+            thrown.put("badDatabase", outcome(() -> badDb.get("e")));
+        }
+        // the server notices closed sockets asynchronously
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (redis.open() > 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        StringBuilder json = new StringBuilder("{\"phase\":\"errors\"");
+        thrown.forEach((k, v) -> json.append(",\"").append(k).append("\":\"").append(v).append('"'));
+        json.append(",\"connections\":").append(redis.accepted() - acceptedBefore)
+                .append(",\"leftOpen\":").append(redis.open()).append('}');
+        System.out.println(json);
+    }
+
+    private static void shared(MockRedisServer redis) throws Exception {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        String encryptionKey = Base64.getEncoder().encodeToString(key);
+        try (MockSmartServer mock = new MockSmartServer(0, 20);
+             ConfigurableApplicationContext a = app(mock, redis, encryptionKey);
+             ConfigurableApplicationContext b = app(mock, redis, encryptionKey)) {
+            String cookie = new LaunchClient(base(a)).login();
+            String page = new LaunchClient(base(b)).me(cookie);
+            System.out.println(String.format(Locale.ROOT, "{\"phase\":\"shared\",\"sessions\":%d,\"otherNodeListItems\":%d}",
+                    redis.keys(DB), page.split("<li", -1).length - 1));
+        }
+    }
+
+    private static ConfigurableApplicationContext app(MockSmartServer mock, MockRedisServer redis, String encryptionKey) {
+        return new SpringApplicationBuilder(SmartSpringApplication.class).run(
+                "--server.port=0",
+                "--smart.fhirBase=" + mock.fhirBase(),
+                "--smart.redirectUri=http://127.0.0.1/callback",
+                "--smart.session.store=REDIS",
+                "--smart.session.encryptionKey=" + encryptionKey,
+                "--smart.session.redis.port=" + redis.port(),
+                "--smart.session.redis.password=" + PASSWORD,
+                "--smart.session.redis.database=" + DB,
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN",
+                "--logging.level.org.apache.catalina=OFF");
+    }
+
+    private static String base(ConfigurableApplicationContext app) {
+        return "http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort();
+    }
+
+    private static RedisSessionTokenStore store(MockRedisServer redis, String password, int db, int pool) {
+        return new RedisSessionTokenStore("127.0.0.1", redis.port(), password, db, Duration.ofSeconds(2), pool, "smart:session:");
+    }
+
+    private static byte[] value(int i) {
+        return ("sealed-session-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // "ok", or the simple name of what the call threw
+    private static String outcome(Runnable call) {
+        try {
+            call.run();
+            return "ok";
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code smart.resilience} against a misbehaving EHR: boots the app in-process against {@link MockSmartServer} with
+ * faults injected and drives {@code /me}, printing one JSON line per run. A page is {@code ok} when it came back whole;
+ * {@code partial} when the medications were left out after failing; a failed Patient read is a 5xx.
+ * <ul>
+ *   <li>{@code transient}: a share of FHIR reads fail with 503, with resilience off and on; retries should turn
+ *   nearly every page complete while the mock sees only a few extra requests.</li>
+ *   <li>{@code outage}: every FHIR read fails; once the breaker opens, {@code /me} answers 503 with
+ *   {@code Retry-After} without reaching the mock, and recovers after {@code openDuration} once the mock does.</li>
+ *   <li>{@code timeout}: every read stalls past the /me call timeout; the reads the fan-out gives up on count against
+ *   the host, so the breaker opens and {@code /me} turns into fast 503s instead of waiting out each timeout.</li>
+ *   <li>{@code hedge}: a few reads stall; hedging off and on, compare p99.</li>
+ *   <li>{@code bulkhead}: more concurrent pages than the host's bulkhead admits; the excess is turned away at once.</li>
+ * </ul>
+ * Arguments are {@code key=value}: {@code requests} (300), {@code concurrency} (8), {@code errorRate} (0.2),
+ * {@code slowRate} (0.03), {@code slowMs} (1500), {@code scenarios} (transient,outage,timeout,hedge,bulkhead).
+ */
+public final class ResilienceScenario {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int requests = Integer.parseInt(opts.getOrDefault("requests", "300"));
+        int concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "8"));
+        double errorRate = Double.parseDouble(opts.getOrDefault("errorRate", "0.2"));
+        double slowRate = Double.parseDouble(opts.getOrDefault("slowRate", "0.03"));
+        Duration slow = Duration.ofMillis(Long.parseLong(opts.getOrDefault("slowMs", "1500")));
+        List<String> scenarios = Arrays.asList(opts.getOrDefault("scenarios", "transient,outage,timeout,hedge,bulkhead").split(","));
+
+        try (MockSmartServer mock = new MockSmartServer(0, 20, Duration.ofMillis(10))) {
+            if (scenarios.contains("transient")) {
+                for (boolean enabled : new boolean[] {false, true}) {
+                    mock.faults(errorRate, 503, 0, Duration.ZERO);
+                    try (Run r = new Run(mock, "--smart.resilience.enabled=" + enabled)) {
+                        Result res = r.drive(requests, concurrency, "smart.upstream.retries");
+                        System.out.println(res.json("transient", "resilience", enabled));
+                    }
+                }
+            }
+            if (scenarios.contains("outage")) {
+                mock.faults(1.0, 503, 0, Duration.ZERO);
+                try (Run r = new Run(mock, "--smart.resilience.breaker.minCalls=10", "--smart.resilience.breaker.windowSize=20",
+                        "--smart.resilience.breaker.openDuration=3s")) {
+                    Result down = r.drive(requests, concurrency, "smart.upstream.rejected");
+                    System.out.println(down.json("outage", "phase", "down"));
+                    mock.faults(0, 503, 0, Duration.ZERO);
+                    Thread.sleep(3_500);
+                    Result up = r.drive(requests, concurrency, "smart.upstream.rejected");
+                    System.out.println(up.json("outage", "phase", "recovered"));
+                }
+            }
+            if (scenarios.contains("timeout")) {
+                mock.faults(0, 503, 1.0, Duration.ofSeconds(2));
+                try (Run r = new Run(mock, "--smart.summary.callTimeout=500ms", "--smart.summary.deadline=1s",
+                        "--smart.resilience.breaker.slowCallThreshold=500ms", "--smart.resilience.breaker.minCalls=10",
+                        "--smart.resilience.breaker.windowSize=20")) {
+                    Result res = r.drive(Math.max(40, requests / 5), concurrency, "smart.upstream.rejected");
+                    System.out.println(res.json("timeout", "callTimeout", "500ms"));
+                }
+                mock.faults(0, 503, 0, Duration.ZERO);
+            }
+            if (scenarios.contains("hedge")) {
+                for (boolean enabled : new boolean[] {false, true}) {
+                    mock.faults(0, 503, slowRate, slow);
+                    try (Run r = new Run(mock, "--smart.resilience.hedge.enabled=" + enabled,
+                            "--smart.resilience.hedge.ops=patient.read,medication.search")) {
+                        r.drive(Math.max(50, requests / 4), concurrency); // fill the latency windows
+                        Result res = r.drive(requests, concurrency, "smart.upstream.hedges");
+                        System.out.println(res.json("hedge", "hedging", enabled));
+                    }
+                }
+            }
+            if (scenarios.contains("bulkhead")) {
+                mock.faults(0, 503, 1.0, Duration.ofMillis(200));
+                try (Run r = new Run(mock, "--smart.resilience.bulkhead.maxConcurrent=4", "--smart.resilience.bulkhead.maxWait=0ms")) {
+                    Result res = r.drive(requests, concurrency * 4, "smart.upstream.rejected");
+                    System.out.println(res.json("bulkhead", "maxConcurrent", 4));
+                }
+            }
+        }
+    }
+
+    /** One app instance against the mock, with a logged-in session. */
+    private static final class Run implements AutoCloseable {
+        final MockSmartServer mock;
+        final ConfigurableApplicationContext app;
+        final LaunchClient client;
+        final String cookie;
+
+        Run(MockSmartServer mock, String... overrides) throws Exception {
+            this.mock = mock;
+            List<String> args = new ArrayList<>(List.of(
+                    "--server.port=0",
+                    "--smart.fhirBase=" + mock.fhirBase(),
+                    "--smart.redirectUri=http://127.0.0.1/callback",
+                    "--spring.main.banner-mode=off",
+                    "--logging.level.root=WARN",
+                    "--logging.level.org.apache.catalina=OFF"));
+            args.addAll(List.of(overrides));
+            app = new SpringApplicationBuilder(SmartSpringApplication.class).run(args.toArray(String[]::new));
+            client = new LaunchClient("http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort());
+            cookie = client.login();
+        }
+
+        Result drive(int requests, int concurrency) throws Exception {
+            return drive(requests, concurrency, null);
+        }
+
+        /** Runs {@code requests} {@code /me} calls over {@code concurrency} users; {@code counter} is reported as a delta. */
+        Result drive(int requests, int concurrency, String counter) throws Exception {
+            Result r = new Result();
+            long before = mock.fhirRequests();
+            double counted = counter == null ? 0 : count(counter);
+            AtomicLong left = new AtomicLong(requests);
+            long start = System.nanoTime();
+            try (ExecutorService users = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<?>> running = new ArrayList<>();
+                for (int u = 0; u < concurrency; u++) {
+                    running.add(users.submit(() -> {
+                        while (left.getAndDecrement() > 0) {
+                            long sent = System.nanoTime();
+                            HttpResponse<String> res = client.meAsync(cookie).join();
+                            r.record(res, System.nanoTime() - sent);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : running) f.get();
+            }
+            r.elapsedNanos = System.nanoTime() - start;
+            r.upstreamRequests = mock.fhirRequests() - before;
+            if (counter != null) {
+                r.counter = counter.substring(counter.lastIndexOf('.') + 1);
+                r.counted = count(counter) - counted;
+            }
+            return r;
+        }
+
+        double count(String name) {
+            return app.getBean(MeterRegistry.class).find(name).counters().stream().mapToDouble(Counter::count).sum();
+        }
+
+        @Override
+        public void close() {
+            app.close();
+        }
+    }
+
+    private static final class Result {
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong unavailable = new AtomicLong();
+        final AtomicLong retryAfter = new AtomicLong();
+        final AtomicLong partial = new AtomicLong();
+        final AtomicLong otherErrors = new AtomicLong();
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        long elapsedNanos;
+        long upstreamRequests;
+        String counter;
+        double counted;
+
+        void record(HttpResponse<String> res, long nanos) {
+            latencies.add(nanos);
+            if (res.statusCode() == 200 && res.body().contains("Drug ")) ok.incrementAndGet();
+            else if (res.statusCode() == 200) partial.incrementAndGet();
+            else if (res.statusCode() == 503) {
+                unavailable.incrementAndGet();
+                if (res.headers().firstValue("Retry-After").isPresent()) retryAfter.incrementAndGet();
+            } else otherErrors.incrementAndGet();
+        }
+
+        String json(String scenario, String variantKey, Object variant) {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            return String.format(Locale.ROOT,
+                    "{\"scenario\":\"%s\",\"%s\":\"%s\",\"requests\":%d,\"ok\":%d,\"partial\":%d,\"unavailable503\":%d,\"withRetryAfter\":%d,"
+                            + "\"otherErrors\":%d,\"upstreamRequests\":%d,\"%s\":%.0f,\"p50Ms\":%.1f,\"p99Ms\":%.1f,\"maxMs\":%.1f,"
+                            + "\"seconds\":%.1f}",
+                    scenario, variantKey, variant, sorted.length, ok.get(), partial.get(), unavailable.get(), retryAfter.get(), otherErrors.get(),
+                    upstreamRequests, counter, counted, percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                    elapsedNanos / 1e9);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(0, i)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cold start of the packaged app, one fresh JVM per run, against {@link MockSmartServer}: time from process start to
+ * the first {@code /auth/start} redirect and resident memory once idle after it, then how long the first login and
+ * {@code /me} take (where lazily built parts are paid for) and resident memory after that. Prints one JSON line per
+ * variant with the median of {@code runs}.
+ * <ul>
+ *   <li>{@code default}: {@code java -jar} as configured in application.yml.</li>
+ *   <li>{@code fast-start}: the same jar with {@code --spring.profiles.active=fast-start}.</li>
+ *   <li>{@code fast-start-cds}: the fast-start profile on the extracted jar with the class data archive built by
+ *   {@code mvn -Pcds package} (skipped if {@code target/cds} is missing).</li>
+ * </ul>
+ * Arguments are {@code key=value}: {@code jar} (../target/smart-fhir-springboot-1.0.0-exec.jar), {@code cds}
+ * (../target/cds), {@code runs} (5), {@code settleMs} (2000), {@code jvmArgs} (space separated, added to every run),
+ * {@code variants} (default,fast-start,fast-start-cds).
+ */
+public final class StartupBenchmark {
+
+    private static final String JAR = "smart-fhir-springboot-1.0.0-exec.jar";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        Path jar = Path.of(opts.getOrDefault("jar", "../target/" + JAR));
+        Path cds = Path.of(opts.getOrDefault("cds", "../target/cds"));
+        int runs = Integer.parseInt(opts.getOrDefault("runs", "5"));
+        long settleMs = Long.parseLong(opts.getOrDefault("settleMs", "2000"));
+        String jvmArgs = opts.getOrDefault("jvmArgs", "").trim();
+        List<String> variants = Arrays.asList(opts.getOrDefault("variants", "default,fast-start,fast-start-cds").split(","));
+
+        try (MockSmartServer mock = new MockSmartServer(0, 20)) {
+            for (String variant : variants) {
+                List<String> jvm = new ArrayList<>(jvmArgs.isEmpty() ? List.of() : List.of(jvmArgs.split("\\s+")));
+                List<String> app = new ArrayList<>();
+                Path runJar = jar;
+                switch (variant) {
+                    case "default" -> { }
+                    case "fast-start" -> app.add("--spring.profiles.active=fast-start");
+                    case "fast-start-cds" -> {
+                        if (!Files.exists(cds.resolve("app.jsa"))) {
+                            System.out.println("{\"variant\":\"" + variant + "\",\"skipped\":\"no " + cds.resolve("app.jsa") + "; run mvn -Pcds package\"}");
+                            continue;
+                        }
+                        jvm.add("-XX:SharedArchiveFile=" + cds.resolve("app.jsa"));
+                        runJar = cds.resolve(JAR);
+                        app.add("--spring.profiles.active=fast-start");
+                    }
+                    default -> throw new IllegalArgumentException("Unknown variant " + variant);
+                }
+                List<Sample> samples = new ArrayList<>();
+                for (int i = 0; i < runs; i++) samples.add(run(mock, runJar, jvm, app, settleMs));
+                System.out.println(json(variant, samples));
+            }
+        }
+    }
+
+    private static Sample run(MockSmartServer mock, Path jar, List<String> jvm, List<String> appArgs, long settleMs) throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(jvm);
+        cmd.addAll(List.of("-jar", jar.toString(),
+                "--server.port=" + port,
+                "--smart.fhirBase=" + mock.fhirBase(),
+                "--smart.redirectUri=http://127.0.0.1/callback",
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN"));
+        cmd.addAll(appArgs);
+        String base = "http://127.0.0.1:" + port;
+        HttpClient http = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+        HttpRequest start = HttpRequest.newBuilder(URI.create(base + "/auth/start")).timeout(Duration.ofSeconds(10)).build();
+
+        long t0 = System.nanoTime();
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            long deadline = t0 + Duration.ofSeconds(120).toNanos();
+            while (true) {
+                if (!p.isAlive()) throw new IllegalStateException("app exited with " + p.exitValue() + ": " + String.join(" ", cmd));
+                if (System.nanoTime() > deadline) throw new IllegalStateException("no /auth/start within 120s");
+                try {
+                    if (http.send(start, HttpResponse.BodyHandlers.discarding()).statusCode() == 302) break;
+                } catch (IOException notYet) {
+                    // not listening yet
+                }
+                Thread.sleep(10);
+            }
+            Sample s = new Sample();
+            s.firstAuthStartMs = (System.nanoTime() - t0) / 1e6;
+            Thread.sleep(settleMs);
+            s.idleRssMb = status(p.pid(), "VmRSS:");
+            long t1 = System.nanoTime();
+            LaunchClient client = new LaunchClient(base);
+            client.me(client.login());
+            s.firstMeMs = (System.nanoTime() - t1) / 1e6;
+            Thread.sleep(settleMs);
+            s.rssAfterMeMb = status(p.pid(), "VmRSS:");
+            return s;
+        } finally {
+            p.destroy();
+            p.waitFor();
+        }
+    }
+
+    // a field of /proc/<pid>/status in MB; -1 where there is no procfs
+    private static double status(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith(field)) return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]) / 1024.0;
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static String json(String variant, List<Sample> samples) {
+        return String.format(Locale.ROOT,
+                "{\"variant\":\"%s\",\"runs\":%d,\"firstAuthStartMs\":%.0f,\"idleRssMb\":%.1f,\"firstLoginAndMeMs\":%.0f,\"rssAfterMeMb\":%.1f}",
+                variant, samples.size(),
+                median(samples.stream().mapToDouble(s -> s.firstAuthStartMs).toArray()),
+                median(samples.stream().mapToDouble(s -> s.idleRssMb).toArray()),
+                median(samples.stream().mapToDouble(s -> s.firstMeMs).toArray()),
+                median(samples.stream().mapToDouble(s -> s.rssAfterMeMb).toArray()));
+    }
+
+    private static double median(double[] v) {
+        Arrays.sort(v);
+        return v.length == 0 ? 0 : v[v.length / 2];
+    }
+
+    private static final class Sample {
+        double firstAuthStartMs;
+        double idleRssMb;
+        double firstMeMs;
+        double rssAfterMeMb;
+    }
+}
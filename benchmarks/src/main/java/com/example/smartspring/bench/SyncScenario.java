@@ -0,0 +1,158 @@
+package com.example.smartspring.bench;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@code smart.sync} end to end against {@link MockSmartServer}, printing one JSON line per phase:
+ * <ul>
+ *   <li>{@code full}: the first {@code /me} reads live and starts the full load of the patient.</li>
+ *   <li>{@code served}: {@code requests} further {@code /me} calls render from the view ("Synced ... ago"); the only
+ *   upstream requests are the background syncs still running every second.</li>
+ *   <li>{@code incremental}: the last {@code changed} MedicationRequests are touched on the mock; the next sync fetches
+ *   only those (and the Medications they reference), and {@code /me}, which lists {@code shown} of them, now shows
+ *   the touched ones first.</li>
+ *   <li>{@code restart}: a new app instance with the same {@code directory} and session key serves {@code /me} from
+ *   the persisted view and resumes incrementally instead of reloading.</li>
+ * </ul>
+ * Arguments are {@code key=value}: {@code medications} (40), {@code changed} (5), {@code shown} (10),
+ * {@code requests} (50).
+ */
+public final class SyncScenario {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int medications = Integer.parseInt(opts.getOrDefault("medications", "40"));
+        int changed = Integer.parseInt(opts.getOrDefault("changed", "5"));
+        int shown = Integer.parseInt(opts.getOrDefault("shown", "10"));
+        int requests = Integer.parseInt(opts.getOrDefault("requests", "50"));
+
+        Path dir = Files.createTempDirectory("smart-sync-scenario");
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        String encryptionKey = Base64.getEncoder().encodeToString(key);
+
+        try (MockSmartServer mock = new MockSmartServer(0, medications, Duration.ofMillis(10))) {
+            try (Run r = new Run(mock, dir, encryptionKey, shown)) {
+                long before = mock.fhirRequests();
+                String first = r.client.me(r.cookie);
+                r.awaitSyncs("full", 1);
+                System.out.println(r.json("full", mock.fhirRequests() - before, first, "changes", r.count("smart.sync.changes")));
+
+                // upstream requests here are the background syncs' alone: three per sync (Patient, MedicationRequest changes and ids)
+                before = mock.fhirRequests();
+                long syncsBefore = r.syncs("incremental");
+                String page = null;
+                for (int i = 0; i < requests; i++) page = r.client.me(r.cookie);
+                System.out.println(r.json("served", mock.fhirRequests() - before, page, "backgroundSyncs", r.syncs("incremental") - syncsBefore));
+
+                double changes = r.count("smart.sync.changes");
+                long syncs = r.syncs("incremental");
+                mock.touch(medications - changed, changed);
+                before = mock.fhirRequests();
+                r.awaitSyncs("incremental", syncs + 1);
+                long upstream = mock.fhirRequests() - before;
+                page = r.client.me(r.cookie);
+                int changedShown = 0;
+                for (int i = medications - changed; i < medications; i++) if (page.contains(mock.medicationDisplay(i))) changedShown++;
+                System.out.println(r.json("incremental", upstream, page, "changes", r.count("smart.sync.changes") - changes,
+                        "changedShown", changedShown));
+            }
+            try (Run r = new Run(mock, dir, encryptionKey, shown)) {
+                long before = mock.fhirRequests();
+                String page = r.client.me(r.cookie);
+                r.awaitSyncs("incremental", 1);
+                System.out.println(r.json("restart", mock.fhirRequests() - before, page, "fullSyncs", r.syncs("full")));
+            }
+        }
+    }
+
+    /** One app instance with sync on, syncing every second, showing {@code shown} medications, and a logged-in session. */
+    private static final class Run implements AutoCloseable {
+        final ConfigurableApplicationContext app;
+        final LaunchClient client;
+        final String cookie;
+
+        Run(MockSmartServer mock, Path dir, String encryptionKey, int shown) throws Exception {
+            List<String> args = new ArrayList<>(List.of(
+                    "--server.port=0",
+                    "--smart.fhirBase=" + mock.fhirBase(),
+                    "--smart.redirectUri=http://127.0.0.1/callback",
+                    "--smart.session.encryptionKey=" + encryptionKey,
+                    "--smart.sync.enabled=true",
+                    "--smart.sync.interval=1s",
+                    // the mock's clock is this JVM's, so nothing is missed without an overlap and counts come out exact
+                    "--smart.sync.overlap=0s",
+                    "--smart.sync.directory=" + dir,
+                    "--smart.summary.medicationCount=" + shown,
+                    "--spring.main.banner-mode=off",
+                    "--logging.level.root=WARN",
+                    "--logging.level.org.apache.catalina=OFF"));
+            app = new SpringApplicationBuilder(SmartSpringApplication.class).run(args.toArray(String[]::new));
+            client = new LaunchClient("http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort());
+            cookie = client.login();
+        }
+
+        void awaitSyncs(String mode, long count) throws InterruptedException {
+            long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+            while (syncs(mode) < count) {
+                if (System.nanoTime() > deadline) throw new IllegalStateException("no " + mode + " sync within 30s");
+                Thread.sleep(20);
+            }
+        }
+
+        long syncs(String mode) {
+            return app.getBean(MeterRegistry.class).find("smart.sync").tag("mode", mode).tag("outcome", "ok").timers().stream()
+                    .mapToLong(Timer::count).sum();
+        }
+
+        double count(String name) {
+            return app.getBean(MeterRegistry.class).find(name).counters().stream().mapToDouble(Counter::count).sum();
+        }
+
+        double served(String source) {
+            return app.getBean(MeterRegistry.class).find("smart.sync.served").tag("source", source).counters().stream()
+                    .mapToDouble(Counter::count).sum();
+        }
+
+        String json(String phase, long upstreamRequests, String page, String key, double value) {
+            int items = page.split("<li", -1).length - 1;
+            return String.format(Locale.ROOT,
+                    "{\"phase\":\"%s\",\"upstreamRequests\":%d,\"%s\":%.0f,\"servedFromView\":%.0f,\"servedLive\":%.0f,"
+                            + "\"listItems\":%d,\"synced\":%b}",
+                    phase, upstreamRequests, key, value, served("view"), served("live"), items, page.contains("Synced "));
+        }
+
+        String json(String phase, long upstreamRequests, String page, String key, double value, String key2, long value2) {
+            String line = json(phase, upstreamRequests, page, key, value);
+            return line.substring(0, line.length() - 1) + ",\"" + key2 + "\":" + value2 + "}";
+        }
+
+        @Override
+        public void close() {
+            app.close();
+        }
+    }
+}
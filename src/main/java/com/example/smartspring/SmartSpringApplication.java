@@ -3,4 +3,8 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 @SpringBootApplication
 public class SmartSpringApplication {
-  public static void main(String[] args){ SpringApplication.run(SmartSpringApplication.class, args);}}
+  public static void main(String[] args){
+    // JVM-wide and read once by the JDK client's connection pool, so it is set here before any client exists;
+    // override with -Djdk.httpclient.keepalive.timeout=<seconds>
+    if(System.getProperty("jdk.httpclient.keepalive.timeout")==null) System.setProperty("jdk.httpclient.keepalive.timeout", "300");
+    SpringApplication.run(SmartSpringApplication.class, args);}}
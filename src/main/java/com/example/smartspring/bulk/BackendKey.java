@@ -0,0 +1,43 @@
+package com.example.smartspring.bulk;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+/** The backend-services signing key, read from a PKCS#8 PEM file or a JWK / JWK Set with private parts. */
+record BackendKey(PrivateKey key, String keyId, JWSAlgorithm algorithm) {
+
+    static BackendKey load(String file, String keyId, String algorithm) {
+        JWSAlgorithm alg = JWSAlgorithm.parse(algorithm);
+        boolean ec = JWSAlgorithm.Family.EC.contains(alg);
+        try {
+            String text = Files.readString(Path.of(file), StandardCharsets.UTF_8).trim();
+            if (text.startsWith("{")) {
+                JWK jwk = text.contains("\"keys\"") ? pick(JWKSet.parse(text), keyId) : JWK.parse(text);
+                PrivateKey k = ec ? jwk.toECKey().toPrivateKey() : jwk.toRSAKey().toPrivateKey();
+                if (k == null) throw new IllegalArgumentException("JWK " + jwk.getKeyID() + " has no private part");
+                return new BackendKey(k, keyId != null ? keyId : jwk.getKeyID(), alg);
+            }
+            String b64 = text.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "").replaceAll("\\s", "");
+            PrivateKey k = KeyFactory.getInstance(ec ? "EC" : "RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(b64)));
+            return new BackendKey(k, keyId, alg);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot load backend-services key from " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static JWK pick(JWKSet set, String keyId) {
+        for (JWK k : set.getKeys()) {
+            if (k.isPrivate() && (keyId == null || keyId.equals(k.getKeyID()))) return k;
+        }
+        throw new IllegalArgumentException("No private key" + (keyId == null ? "" : " with kid " + keyId) + " in JWK set");
+    }
+}
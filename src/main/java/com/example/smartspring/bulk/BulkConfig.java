@@ -0,0 +1,22 @@
+package com.example.smartspring.bulk;
+
+import com.example.smartspring.config.AppProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/** Picks the {@link BulkSink} for exports from {@code smart.bulk.sink}. */
+@Configuration
+@ConditionalOnProperty(prefix = "smart.bulk", name = "enabled", havingValue = "true")
+public class BulkConfig {
+
+    @Bean
+    public BulkSink.Factory bulkSinkFactory(AppProperties props) {
+        AppProperties.Bulk cfg = props.getBulk();
+        return switch (cfg.getSink()) {
+            case FILE -> NdjsonFileSink.factory(Path.of(cfg.getOutputDir()));
+        };
+    }
+}
@@ -0,0 +1,429 @@
+package com.example.smartspring.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.http.HttpTransport;
+import com.example.smartspring.oauth.SmartDiscoveryService;
+import com.example.smartspring.oauth.TokenService;
+import com.example.smartspring.oauth.TokenService.TokenSet;
+import com.example.smartspring.service.FhirClientRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * FHIR Bulk Data export as a SMART backend service: kicks off {@code $export}, polls the status URL with backoff
+ * (honouring Retry-After), then streams the NDJSON output files in parallel, parsing them one line at a time into a
+ * {@link BulkSink}. Memory use is bounded by the number of concurrent downloads, not by the size of the export.
+ */
+@Service
+@ConditionalOnProperty(prefix = "smart.bulk", name = "enabled", havingValue = "true")
+public class BulkExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportService.class);
+    private static final int MAX_JOBS = 50;
+
+    private final AppProperties.Bulk cfg;
+    private final String fhirBase;
+    private final SmartDiscoveryService discovery;
+    private final TokenService tokenService;
+    private final HttpTransport http;
+    private final FhirContext ctx;
+    private final ObjectMapper json;
+    private final BulkSink.Factory sinks;
+    private final MeterRegistry meters;
+    private final BackendKey key;
+    private final ReentrantLock tokenLock = new ReentrantLock();
+    private final ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor();
+    // every running job plus the most recent finished ones, oldest first; guarded by itself
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final Semaphore running;
+    private volatile TokenSet token;
+
+    public BulkExportService(AppProperties props, SmartDiscoveryService discovery, TokenService tokenService, HttpTransport http,
+                             FhirClientRegistry clients, ObjectMapper json, BulkSink.Factory sinks, MeterRegistry meters) {
+        this.cfg = props.getBulk();
+        String base = cfg.getFhirBase() != null && !cfg.getFhirBase().isBlank() ? cfg.getFhirBase() : props.getFhirBase();
+        this.fhirBase = base.replaceAll("/+$", "");
+        this.discovery = discovery;
+        this.tokenService = tokenService;
+        this.http = http;
+        this.ctx = clients.context();
+        this.json = json;
+        this.sinks = sinks;
+        this.meters = meters;
+        this.key = BackendKey.load(cfg.getKeyFile(), cfg.getKeyId(), cfg.getAlgorithm());
+        this.running = new Semaphore(Math.max(1, cfg.getMaxRunningJobs()));
+    }
+
+    public enum Level { SYSTEM, PATIENT, GROUP }
+
+    public record ExportRequest(Level level, String groupId, List<String> types, String since) {}
+
+    public record FileResult(String type, String url, long resources, long bytes) {}
+
+    public record Result(String jobId, Map<String, Long> resourcesByType, long resources, long bytes, List<FileResult> files,
+                         Duration exportWait, Duration download, double resourcesPerSecond) {}
+
+    public record JobView(String id, String state, String progress, Result result, String error) {}
+
+    /**
+     * Runs the export in the background and returns its id; follow it with {@link #job}. Empty when
+     * {@code maxRunningJobs} exports are already running.
+     */
+    public Optional<String> start(ExportRequest request) {
+        if (!running.tryAcquire()) return Optional.empty();
+        Job job = new Job(UUID.randomUUID().toString());
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+            // forget the oldest finished jobs; running ones stay until they finish
+            Iterator<Job> it = jobs.values().iterator();
+            while (jobs.size() > MAX_JOBS && it.hasNext()) {
+                if (it.next().finished) it.remove();
+            }
+        }
+        exec.submit(() -> {
+            try {
+                job.result = export(job, request);
+                job.state = "completed";
+            } catch (Exception e) {
+                log.warn("Bulk export {} failed: {}", job.id, e.toString());
+                job.error = e.getMessage();
+                job.state = "failed";
+            } finally {
+                job.finished = true;
+                running.release();
+            }
+        });
+        return Optional.of(job.id);
+    }
+
+    public Optional<JobView> job(String id) {
+        Job j;
+        synchronized (jobs) {
+            j = jobs.get(id);
+        }
+        return j == null ? Optional.empty() : Optional.of(new JobView(j.id, j.state, j.progress, j.result, j.error));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        exec.shutdownNow();
+    }
+
+    private Result export(Job job, ExportRequest request) throws Exception {
+        long start = System.nanoTime();
+        URI statusUrl = kickOff(request);
+        job.state = "exporting";
+        JsonNode manifest = poll(job, statusUrl);
+        long exported = System.nanoTime();
+        meters.timer("smart.bulk.export", "phase", "wait").record(exported - start, TimeUnit.NANOSECONDS);
+
+        job.state = "downloading";
+        boolean auth = manifest.path("requiresAccessToken").asBoolean(false);
+        List<String[]> files = new ArrayList<>();
+        for (JsonNode f : manifest.path("output")) files.add(new String[]{f.path("type").asText(), f.path("url").asText()});
+        // error files are OperationOutcome NDJSON; they go to the sink like any other output
+        for (JsonNode f : manifest.path("error")) files.add(new String[]{"OperationOutcome", f.path("url").asText()});
+
+        List<FileResult> results = new ArrayList<>();
+        BulkSink sink = sinks.open(job.id);
+        boolean complete = false;
+        try {
+            Semaphore slots = new Semaphore(Math.max(1, cfg.getDownloadConcurrency()));
+            List<Future<FileResult>> pending = new ArrayList<>();
+            // the job's own executor: closing it waits for every download, so none still writes once the sink closes
+            try (ExecutorService downloads = Executors.newVirtualThreadPerTaskExecutor()) {
+                try {
+                    for (String[] f : files) {
+                        pending.add(downloads.submit(() -> {
+                            slots.acquire();
+                            try {
+                                return download(f[0], URI.create(f[1]), auth, sink);
+                            } finally {
+                                slots.release();
+                            }
+                        }));
+                    }
+                    for (Future<FileResult> f : pending) {
+                        try {
+                            results.add(f.get());
+                        } catch (ExecutionException e) {
+                            throw new IllegalStateException("Download failed: " + e.getCause().getMessage(), e.getCause());
+                        }
+                    }
+                } finally {
+                    // after a failed download (or shutdown) the others are no longer wanted
+                    pending.forEach(f -> f.cancel(true));
+                }
+            }
+            complete = true;
+        } finally {
+            if (complete) sink.close();
+            else abort(job, sink);
+        }
+        long done = System.nanoTime();
+        meters.timer("smart.bulk.export", "phase", "download").record(done - exported, TimeUnit.NANOSECONDS);
+        delete(statusUrl);
+
+        Map<String, Long> byType = new TreeMap<>();
+        long resources = 0;
+        long bytes = 0;
+        for (FileResult r : results) {
+            byType.merge(r.type(), r.resources(), Long::sum);
+            resources += r.resources();
+            bytes += r.bytes();
+        }
+        Duration download = Duration.ofNanos(done - exported);
+        double perSecond = resources / Math.max(download.toNanos() / 1e9, 1e-3);
+        log.info("Bulk export {}: {} resources in {} files ({} KB) downloaded in {} ms, {} resources/s; export took {} ms",
+                job.id, resources, results.size(), bytes / 1024, download.toMillis(), Math.round(perSecond),
+                Duration.ofNanos(exported - start).toMillis());
+        return new Result(job.id, byType, resources, bytes, results, Duration.ofNanos(exported - start), download, perSecond);
+    }
+
+    private static void abort(Job job, BulkSink sink) {
+        try {
+            sink.abort();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not discard the partial output of bulk export {}: {}", job.id, e.toString());
+        }
+    }
+
+    private URI kickOff(ExportRequest request) throws IOException, InterruptedException {
+        String path = switch (request.level()) {
+            case SYSTEM -> "/$export";
+            case PATIENT -> "/Patient/$export";
+            case GROUP -> "/Group/" + URLEncoder.encode(request.groupId(), StandardCharsets.UTF_8) + "/$export";
+        };
+        StringBuilder url = new StringBuilder(fhirBase).append(path).append("?_outputFormat=")
+                .append(URLEncoder.encode("application/fhir+ndjson", StandardCharsets.UTF_8));
+        List<String> types = request.types() != null && !request.types().isEmpty() ? request.types() : cfg.getTypes();
+        if (!types.isEmpty()) url.append("&_type=").append(URLEncoder.encode(String.join(",", types), StandardCharsets.UTF_8));
+        if (request.since() != null && !request.since().isBlank()) {
+            url.append("&_since=").append(URLEncoder.encode(request.since(), StandardCharsets.UTF_8));
+        }
+        HttpResponse<String> r = http.send(authorized(HttpRequest.newBuilder(URI.create(url.toString())))
+                .header("Accept", "application/fhir+json")
+                .header("Prefer", "respond-async")
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+        String location = r.headers().firstValue("Content-Location").orElse(null);
+        if (r.statusCode() != 202 || location == null) {
+            throw new IllegalStateException("Export kick-off returned " + r.statusCode() + ": " + abbreviate(r.body()));
+        }
+        return URI.create(fhirBase + "/").resolve(location);
+    }
+
+    private JsonNode poll(Job job, URI statusUrl) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + cfg.getTimeout().toNanos();
+        Duration backoff = cfg.getPollInitial();
+        boolean renewed = false;
+        while (true) {
+            HttpResponse<String> r = http.send(authorized(HttpRequest.newBuilder(statusUrl)).header("Accept", "application/json")
+                    .GET().build(), HttpResponse.BodyHandlers.ofString());
+            Duration delay;
+            switch (r.statusCode()) {
+                case 200 -> {
+                    return json.readTree(r.body());
+                }
+                case 202 -> {
+                    renewed = false;
+                    job.progress = r.headers().firstValue("X-Progress").orElse(null);
+                    delay = retryAfter(r).orElse(backoff);
+                    backoff = min(Duration.ofMillis((long) (backoff.toMillis() * 1.5)), cfg.getPollMax());
+                }
+                case 429, 503 -> {
+                    delay = retryAfter(r).orElse(backoff);
+                    backoff = min(backoff.multipliedBy(2), cfg.getPollMax());
+                }
+                case 401 -> {
+                    // backend tokens are short-lived and an export can outlast several; renew once, then give up
+                    if (renewed) throw new IllegalStateException("Export status rejected a fresh access token");
+                    renewed = true;
+                    token = null;
+                    continue;
+                }
+                default -> throw new IllegalStateException("Export status returned " + r.statusCode() + ": " + abbreviate(r.body()));
+            }
+            delay = min(delay, cfg.getPollMax());
+            if (System.nanoTime() + delay.toNanos() > deadline) {
+                delete(statusUrl);
+                throw new IllegalStateException("Export did not complete within " + cfg.getTimeout());
+            }
+            Thread.sleep(jitter(delay).toMillis());
+        }
+    }
+
+    private FileResult download(String type, URI url, boolean auth, BulkSink sink) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            HttpRequest.Builder b = HttpRequest.newBuilder(url).header("Accept", "application/fhir+ndjson").header("Accept-Encoding", "gzip");
+            if (auth) authorized(b);
+            try (HttpTransport.Exchange ex = http.open(b.GET().build())) {
+                int status = ex.response().statusCode();
+                if (status == 401 && auth && attempt == 0) {
+                    token = null;
+                    continue;
+                }
+                // a file we cannot read fails the whole job; the export is never reported complete with data missing
+                if (status != 200) throw new IOException("HTTP " + status + " for " + url);
+                return read(type, url, ex, sink);
+            }
+        }
+    }
+
+    private FileResult read(String type, URI url, HttpTransport.Exchange ex, BulkSink sink) throws IOException {
+        CountingInputStream counted = new CountingInputStream(ex.response().body());
+        boolean gzip = ex.response().headers().firstValue("Content-Encoding").map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+        InputStream in = gzip ? new GZIPInputStream(counted, 1 << 16) : counted;
+        IParser parser = ctx.newJsonParser();
+        long n = 0;
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isBlank()) continue;
+                IBaseResource r = parser.parseResource(line);
+                String rt = ctx.getResourceType(r);
+                sink.accept(rt, r, line);
+                meters.counter("smart.bulk.resources", "type", rt).increment();
+                n++;
+            }
+        }
+        meters.counter("smart.bulk.bytes").increment(counted.count.get());
+        return new FileResult(type, url.toString(), n, counted.count.get());
+    }
+
+    private void delete(URI statusUrl) {
+        try {
+            http.send(authorized(HttpRequest.newBuilder(statusUrl)).DELETE().build(), HttpResponse.BodyHandlers.discarding());
+        } catch (Exception e) {
+            log.debug("Could not delete export job {}: {}", statusUrl, e.toString());
+        }
+    }
+
+    private HttpRequest.Builder authorized(HttpRequest.Builder b) {
+        return b.setHeader("Authorization", "Bearer " + accessToken());
+    }
+
+    private String accessToken() {
+        TokenSet t = token;
+        if (valid(t)) return t.accessToken();
+        // a lock rather than synchronized: the token request blocks, and callers are virtual threads
+        tokenLock.lock();
+        try {
+            t = token;
+            if (!valid(t)) {
+                t = tokenService.clientCredentials(discovery.discover(fhirBase).tokenEndpoint(), cfg.getClientId(),
+                        key.key(), key.keyId(), key.algorithm(), cfg.getScope());
+                token = t;
+            }
+            return t.accessToken();
+        } finally {
+            tokenLock.unlock();
+        }
+    }
+
+    private static boolean valid(TokenSet t) {
+        return t != null && (t.expiresEpochSeconds() == 0 || Instant.now().getEpochSecond() < t.expiresEpochSeconds() - 30);
+    }
+
+    private static Optional<Duration> retryAfter(HttpResponse<?> r) {
+        return r.headers().firstValue("Retry-After").map(String::trim).flatMap(v -> {
+            try {
+                return Optional.of(Duration.ofSeconds(Long.parseLong(v)));
+            } catch (NumberFormatException e) {
+                try {
+                    return Optional.of(Duration.between(Instant.now(), ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME)));
+                } catch (RuntimeException ignore) {
+                    return Optional.empty();
+                }
+            }
+        }).filter(d -> !d.isNegative());
+    }
+
+    private static Duration jitter(Duration d) {
+        return Duration.ofMillis((long) (d.toMillis() * ThreadLocalRandom.current().nextDouble(0.8, 1.2)));
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static String abbreviate(String s) {
+        return s == null ? "" : s.length() > 300 ? s.substring(0, 300) + "..." : s;
+    }
+
+    private static final class Job {
+        final String id;
+        volatile String state = "accepted";
+        volatile String progress;
+        volatile Result result;
+        volatile String error;
+        volatile boolean finished;
+
+        Job(String id) {
+            this.id = id;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        final AtomicLong count = new AtomicLong();
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) count.addAndGet(n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.smartspring.bulk;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for exported resources. One sink is opened per export job and receives every parsed resource along
+ * with the NDJSON line it came from, so sinks that keep the original JSON need not re-serialize it.
+ */
+public interface BulkSink extends Closeable {
+
+    /** Called once per resource, concurrently from the parallel downloads. */
+    void accept(String resourceType, IBaseResource resource, String line) throws IOException;
+
+    /**
+     * Called instead of {@link #close} when the export fails, once every download has stopped: drop what was written,
+     * or at least mark it incomplete. By default the sink is just closed.
+     */
+    default void abort() throws IOException {
+        close();
+    }
+
+    @FunctionalInterface
+    interface Factory {
+        BulkSink open(String jobId) throws IOException;
+    }
+}
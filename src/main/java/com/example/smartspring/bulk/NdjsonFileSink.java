@@ -0,0 +1,75 @@
+package com.example.smartspring.bulk;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/** Writes one {@code <Type>.ndjson} file per resource type under {@code <outputDir>/<jobId>/}. */
+public class NdjsonFileSink implements BulkSink {
+
+    private final Path dir;
+    private final Map<String, Writer> writers = new ConcurrentHashMap<>();
+
+    public NdjsonFileSink(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    public static Factory factory(Path outputDir) {
+        return jobId -> new NdjsonFileSink(outputDir.resolve(jobId));
+    }
+
+    @Override
+    public void accept(String resourceType, IBaseResource resource, String line) throws IOException {
+        Writer w = writers.computeIfAbsent(resourceType, this::open);
+        // several files of the same type may be downloading at once; keep lines whole
+        synchronized (w) {
+            w.write(line);
+            w.write('\n');
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (Writer w : writers.values()) {
+            try {
+                synchronized (w) {
+                    w.close();
+                }
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    /** Closes the files and deletes the job directory, so a failed export leaves no partial output behind. */
+    @Override
+    public void abort() throws IOException {
+        try {
+            close();
+        } catch (IOException ignore) {
+            // deleted below either way
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) Files.deleteIfExists(f);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private Writer open(String resourceType) {
+        try {
+            return Files.newBufferedWriter(dir.resolve(resourceType + ".ndjson"), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.example.smartspring.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.springframework.util.unit.DataSize;
+import java.time.Duration; import java.util.ArrayList; import java.util.List;
 @Component
 @ConfigurationProperties(prefix="smart")
 public class AppProperties {
@@ -9,9 +12,379 @@ public class AppProperties {
   private String redirectUri="http://127.0.0.1:8080/callback";
   private String scopes="launch/patient patient.read openid fhirUser offline_access";
   private String launch; // optional for standalone EHR-like launch
+  private final Tenants tenants=new Tenants();
+  private final Discovery discovery=new Discovery();
+  private final Http http=new Http();
+  private final Resilience resilience=new Resilience();
+  private final Web web=new Web();
+  private final Fhir fhir=new Fhir();
+  private final Cache cache=new Cache();
+  private final Summary summary=new Summary();
+  private final Sync sync=new Sync();
+  private final Paging paging=new Paging();
+  private final Tokens tokens=new Tokens();
+  private final Session session=new Session();
+  private final Bulk bulk=new Bulk();
   public String getFhirBase(){return fhirBase;} public void setFhirBase(String v){this.fhirBase=v;}
   public String getClientId(){return clientId;} public void setClientId(String v){this.clientId=v;}
   public String getRedirectUri(){return redirectUri;} public void setRedirectUri(String v){this.redirectUri=v;}
   public String getScopes(){return scopes;} public void setScopes(String v){this.scopes=v;}
   public String getLaunch(){return launch;} public void setLaunch(String v){this.launch=v;}
+  public Tenants getTenants(){return tenants;}
+  public Discovery getDiscovery(){return discovery;}
+  public Http getHttp(){return http;}
+  public Resilience getResilience(){return resilience;}
+  public Web getWeb(){return web;}
+  public Fhir getFhir(){return fhir;}
+  public Cache getCache(){return cache;}
+  public Summary getSummary(){return summary;}
+  public Sync getSync(){return sync;}
+  public Paging getPaging(){return paging;}
+  public Tokens getTokens(){return tokens;}
+  public Session getSession(){return session;}
+  public Bulk getBulk(){return bulk;}
+
+  /**
+   * Issuers the app may be launched from: {@code issuers}, then the JSON array of the same entries in {@code file},
+   * which is re-read when it changes (checked every {@code reloadInterval}). {@code fhirBase}/{@code clientId}/{@code scopes}
+   * above are the default tenant and fill in what an entry leaves out. Every tenant is discovered, validated and given
+   * its FHIR client at startup (unless not {@code prewarmClients}), up to {@code prewarmConcurrency} at a time. Any
+   * other {@code iss} is refused unless {@code allowUnregistered}.
+   */
+  public static class Tenants {
+    private List<Issuer> issuers=new ArrayList<>();
+    private String file;
+    private Duration reloadInterval=Duration.ofSeconds(30);
+    private boolean allowUnregistered=false;
+    private int prewarmConcurrency=16;
+    private Duration prewarmTimeout=Duration.ofSeconds(30);
+    private boolean prewarmClients=true;
+    public List<Issuer> getIssuers(){return issuers;} public void setIssuers(List<Issuer> v){this.issuers=v;}
+    public String getFile(){return file;} public void setFile(String v){this.file=v;}
+    public Duration getReloadInterval(){return reloadInterval;} public void setReloadInterval(Duration v){this.reloadInterval=v;}
+    public boolean isAllowUnregistered(){return allowUnregistered;} public void setAllowUnregistered(boolean v){this.allowUnregistered=v;}
+    public int getPrewarmConcurrency(){return prewarmConcurrency;} public void setPrewarmConcurrency(int v){this.prewarmConcurrency=v;}
+    public Duration getPrewarmTimeout(){return prewarmTimeout;} public void setPrewarmTimeout(Duration v){this.prewarmTimeout=v;}
+    public boolean isPrewarmClients(){return prewarmClients;} public void setPrewarmClients(boolean v){this.prewarmClients=v;}
+
+    /** One tenant. Endpoints are discovered from {@code issuer} unless both are pinned here. */
+    public static class Issuer {
+      private String issuer;
+      private String clientId;
+      private String scopes;
+      private String authorizationEndpoint;
+      private String tokenEndpoint;
+      public String getIssuer(){return issuer;} public void setIssuer(String v){this.issuer=v;}
+      public String getClientId(){return clientId;} public void setClientId(String v){this.clientId=v;}
+      public String getScopes(){return scopes;} public void setScopes(String v){this.scopes=v;}
+      public String getAuthorizationEndpoint(){return authorizationEndpoint;} public void setAuthorizationEndpoint(String v){this.authorizationEndpoint=v;}
+      public String getTokenEndpoint(){return tokenEndpoint;} public void setTokenEndpoint(String v){this.tokenEndpoint=v;}
+    }
+  }
+
+  /** SMART discovery cache. Server Cache-Control wins over {@code ttl}, but never beyond {@code maxTtl}. */
+  public static class Discovery {
+    private Duration ttl=Duration.ofHours(1);
+    private Duration maxTtl=Duration.ofHours(24);
+    private Duration negativeTtl=Duration.ofSeconds(30);
+    private int maxEntries=1000;
+    public Duration getTtl(){return ttl;} public void setTtl(Duration v){this.ttl=v;}
+    public Duration getMaxTtl(){return maxTtl;} public void setMaxTtl(Duration v){this.maxTtl=v;}
+    public Duration getNegativeTtl(){return negativeTtl;} public void setNegativeTtl(Duration v){this.negativeTtl=v;}
+    public int getMaxEntries(){return maxEntries;} public void setMaxEntries(int v){this.maxEntries=v;}
+  }
+
+  /** Shared outbound HTTP transport used for discovery, token and FHIR calls. */
+  public static class Http {
+    private Duration connectTimeout=Duration.ofSeconds(5);
+    private Duration readTimeout=Duration.ofSeconds(30);
+    private Duration acquireTimeout=Duration.ofSeconds(10);
+    private int maxConnectionsPerRoute=20;
+    private boolean http2=true;
+    public Duration getConnectTimeout(){return connectTimeout;} public void setConnectTimeout(Duration v){this.connectTimeout=v;}
+    public Duration getReadTimeout(){return readTimeout;} public void setReadTimeout(Duration v){this.readTimeout=v;}
+    public Duration getAcquireTimeout(){return acquireTimeout;} public void setAcquireTimeout(Duration v){this.acquireTimeout=v;}
+    public int getMaxConnectionsPerRoute(){return maxConnectionsPerRoute;} public void setMaxConnectionsPerRoute(int v){this.maxConnectionsPerRoute=v;}
+    public boolean isHttp2(){return http2;} public void setHttp2(boolean v){this.http2=v;}
+  }
+
+  /**
+   * Per-issuer (upstream host) protection around discovery, token and FHIR calls. The bulkhead caps concurrent calls
+   * to one host; the breaker opens on the failure or slow-call rate over the last {@code windowSize} calls and lets
+   * {@code halfOpenCalls} trials through after {@code openDuration}; idempotent FHIR reads are retried with jittered
+   * backoff while the host's retry budget lasts; reads listed in {@code hedge.ops} send a second request once the
+   * first has run past the host's {@code hedge.percentile} latency.
+   */
+  public static class Resilience {
+    private boolean enabled=true;
+    private final Bulkhead bulkhead=new Bulkhead();
+    private final Breaker breaker=new Breaker();
+    private final Retry retry=new Retry();
+    private final Hedge hedge=new Hedge();
+    public boolean isEnabled(){return enabled;} public void setEnabled(boolean v){this.enabled=v;}
+    public Bulkhead getBulkhead(){return bulkhead;}
+    public Breaker getBreaker(){return breaker;}
+    public Retry getRetry(){return retry;}
+    public Hedge getHedge(){return hedge;}
+
+    public static class Bulkhead {
+      private int maxConcurrent=64;
+      private Duration maxWait=Duration.ofMillis(100);
+      public int getMaxConcurrent(){return maxConcurrent;} public void setMaxConcurrent(int v){this.maxConcurrent=v;}
+      public Duration getMaxWait(){return maxWait;} public void setMaxWait(Duration v){this.maxWait=v;}
+    }
+
+    public static class Breaker {
+      private int windowSize=50;
+      private int minCalls=20;
+      private double failureRate=0.5;
+      private double slowCallRate=0.8;
+      private Duration slowCallThreshold=Duration.ofSeconds(5);
+      private Duration openDuration=Duration.ofSeconds(30);
+      private int halfOpenCalls=3;
+      public int getWindowSize(){return windowSize;} public void setWindowSize(int v){this.windowSize=v;}
+      public int getMinCalls(){return minCalls;} public void setMinCalls(int v){this.minCalls=v;}
+      public double getFailureRate(){return failureRate;} public void setFailureRate(double v){this.failureRate=v;}
+      public double getSlowCallRate(){return slowCallRate;} public void setSlowCallRate(double v){this.slowCallRate=v;}
+      public Duration getSlowCallThreshold(){return slowCallThreshold;} public void setSlowCallThreshold(Duration v){this.slowCallThreshold=v;}
+      public Duration getOpenDuration(){return openDuration;} public void setOpenDuration(Duration v){this.openDuration=v;}
+      public int getHalfOpenCalls(){return halfOpenCalls;} public void setHalfOpenCalls(int v){this.halfOpenCalls=v;}
+    }
+
+    /** Each call adds {@code budgetRatio} of a retry to the host's budget, up to {@code budgetMax}; a retry spends one. */
+    public static class Retry {
+      private int maxAttempts=3;
+      private Duration backoff=Duration.ofMillis(100);
+      private Duration maxBackoff=Duration.ofSeconds(1);
+      private double budgetRatio=0.1;
+      private int budgetMax=10;
+      public int getMaxAttempts(){return maxAttempts;} public void setMaxAttempts(int v){this.maxAttempts=v;}
+      public Duration getBackoff(){return backoff;} public void setBackoff(Duration v){this.backoff=v;}
+      public Duration getMaxBackoff(){return maxBackoff;} public void setMaxBackoff(Duration v){this.maxBackoff=v;}
+      public double getBudgetRatio(){return budgetRatio;} public void setBudgetRatio(double v){this.budgetRatio=v;}
+      public int getBudgetMax(){return budgetMax;} public void setBudgetMax(int v){this.budgetMax=v;}
+    }
+
+    public static class Hedge {
+      private boolean enabled=false;
+      private List<String> ops=new ArrayList<>(List.of("patient.read"));
+      private double percentile=0.95;
+      private int minSamples=20;
+      private Duration minDelay=Duration.ofMillis(50);
+      public boolean isEnabled(){return enabled;} public void setEnabled(boolean v){this.enabled=v;}
+      public List<String> getOps(){return ops;} public void setOps(List<String> v){this.ops=v;}
+      public double getPercentile(){return percentile;} public void setPercentile(double v){this.percentile=v;}
+      public int getMinSamples(){return minSamples;} public void setMinSamples(int v){this.minSamples=v;}
+      public Duration getMinDelay(){return minDelay;} public void setMinDelay(Duration v){this.minDelay=v;}
+    }
+  }
+
+  /**
+   * How requests wait on upstream servers. BLOCKING: a Tomcat worker per request (the pool caps concurrency);
+   * VIRTUAL: Tomcat runs each request on a virtual thread; ASYNC: /auth/start, /callback, /me and /patients return
+   * futures over non-blocking HTTP and hand the worker back while the upstream calls are in flight.
+   */
+  public static class Web {
+    public enum Mode { BLOCKING, VIRTUAL, ASYNC }
+    private Mode mode=Mode.BLOCKING;
+    private Duration asyncTimeout=Duration.ofSeconds(30);
+    public Mode getMode(){return mode;} public void setMode(Mode v){this.mode=v;}
+    public Duration getAsyncTimeout(){return asyncTimeout;} public void setAsyncTimeout(Duration v){this.asyncTimeout=v;}
+  }
+
+  /**
+   * Per-base HAPI client registry. {@code fhirBase} is prewarmed along with {@code prewarm} unless disabled, and the
+   * model of {@code prewarmTypes} scanned; {@code deferredModelScanning} scans a type's children only when first needed.
+   */
+  public static class Fhir {
+    private int maxClients=64;
+    private Duration clientIdleTimeout=Duration.ofMinutes(30);
+    private ServerValidationModeEnum serverValidation=ServerValidationModeEnum.NEVER;
+    private boolean prewarmFhirBase=true;
+    private List<String> prewarm=new ArrayList<>();
+    private List<String> prewarmTypes=new ArrayList<>(List.of("Bundle","Patient","MedicationRequest","Medication"));
+    private boolean deferredModelScanning=false;
+    public int getMaxClients(){return maxClients;} public void setMaxClients(int v){this.maxClients=v;}
+    public Duration getClientIdleTimeout(){return clientIdleTimeout;} public void setClientIdleTimeout(Duration v){this.clientIdleTimeout=v;}
+    public ServerValidationModeEnum getServerValidation(){return serverValidation;} public void setServerValidation(ServerValidationModeEnum v){this.serverValidation=v;}
+    public boolean isPrewarmFhirBase(){return prewarmFhirBase;} public void setPrewarmFhirBase(boolean v){this.prewarmFhirBase=v;}
+    public List<String> getPrewarm(){return prewarm;} public void setPrewarm(List<String> v){this.prewarm=v;}
+    public List<String> getPrewarmTypes(){return prewarmTypes;} public void setPrewarmTypes(List<String> v){this.prewarmTypes=v;}
+    public boolean isDeferredModelScanning(){return deferredModelScanning;} public void setDeferredModelScanning(boolean v){this.deferredModelScanning=v;}
+  }
+
+  /**
+   * Opt-in cache of FHIR reads for {@code types}, revalidated with If-None-Match/If-Modified-Since. Entries are served
+   * without asking the server only for {@code maxAge}; {@code maxBytes} bounds the estimated heap they take.
+   */
+  public static class Cache {
+    private boolean enabled=false;
+    private DataSize maxBytes=DataSize.ofMegabytes(32);
+    private Duration maxAge=Duration.ZERO;
+    private List<String> types=new ArrayList<>(List.of("Patient","Medication"));
+    public boolean isEnabled(){return enabled;} public void setEnabled(boolean v){this.enabled=v;}
+    public DataSize getMaxBytes(){return maxBytes;} public void setMaxBytes(DataSize v){this.maxBytes=v;}
+    public Duration getMaxAge(){return maxAge;} public void setMaxAge(Duration v){this.maxAge=v;}
+    public List<String> getTypes(){return types;} public void setTypes(List<String> v){this.types=v;}
+  }
+
+  /** /me dashboard: independent sections are fetched in parallel, or as one batch Bundle in BATCH mode. */
+  public static class Summary {
+    public enum Mode { PARALLEL, BATCH }
+    private Mode mode=Mode.PARALLEL;
+    private Duration callTimeout=Duration.ofSeconds(5);
+    private Duration deadline=Duration.ofSeconds(8);
+    private int medicationCount=50;
+    private int sectionCount=20;
+    private List<String> sections=new ArrayList<>(); // conditions, allergies, observations
+    private int displayCacheSize=10_000; // distinct (system, code) medication displays kept across requests
+    public Mode getMode(){return mode;} public void setMode(Mode v){this.mode=v;}
+    public Duration getCallTimeout(){return callTimeout;} public void setCallTimeout(Duration v){this.callTimeout=v;}
+    public Duration getDeadline(){return deadline;} public void setDeadline(Duration v){this.deadline=v;}
+    public int getMedicationCount(){return medicationCount;} public void setMedicationCount(int v){this.medicationCount=v;}
+    public int getSectionCount(){return sectionCount;} public void setSectionCount(int v){this.sectionCount=v;}
+    public List<String> getSections(){return sections;} public void setSections(List<String> v){this.sections=v;}
+    public int getDisplayCacheSize(){return displayCacheSize;} public void setDisplayCacheSize(int v){this.displayCacheSize=v;}
+  }
+
+  /** Session token refresh. Background renewal fires {@code renewLead} (minus up to {@code renewJitter}) before expiry. */
+  public static class Tokens {
+    private Duration refreshSkew=Duration.ofSeconds(60);
+    private boolean backgroundRenewal=true;
+    private Duration renewLead=Duration.ofMinutes(2);
+    private Duration renewJitter=Duration.ofSeconds(30);
+    private Duration retryDelay=Duration.ofSeconds(15);
+    public Duration getRefreshSkew(){return refreshSkew;} public void setRefreshSkew(Duration v){this.refreshSkew=v;}
+    public boolean isBackgroundRenewal(){return backgroundRenewal;} public void setBackgroundRenewal(boolean v){this.backgroundRenewal=v;}
+    public Duration getRenewLead(){return renewLead;} public void setRenewLead(Duration v){this.renewLead=v;}
+    public Duration getRenewJitter(){return renewJitter;} public void setRenewJitter(Duration v){this.renewJitter=v;}
+    public Duration getRetryDelay(){return retryDelay;} public void setRetryDelay(Duration v){this.retryDelay=v;}
+  }
+
+  /**
+   * Background sync of the /me data into a local view per patient (per cache scope, as the resource cache partitions).
+   * A patient is synced every {@code interval} while someone has opened /me for it within {@code idleTimeout}, at most
+   * {@code maxConcurrent} at a time. After the first full load only resources with a newer {@code _lastUpdated} than the
+   * checkpoint (less {@code overlap}) are fetched; deletions are picked up by a full reload every {@code fullResyncEvery}.
+   * /me renders from a view up to {@code maxStale} old. Views are persisted, sealed with the session key, under
+   * {@code directory} (blank keeps them in memory only).
+   */
+  public static class Sync {
+    private boolean enabled=false;
+    private Duration interval=Duration.ofMinutes(5);
+    private Duration maxStale=Duration.ofHours(1);
+    private Duration idleTimeout=Duration.ofHours(24);
+    private Duration fullResyncEvery=Duration.ofHours(24);
+    private Duration overlap=Duration.ofSeconds(5);
+    private int maxConcurrent=4;
+    private int pageSize=100;
+    private int maxViews=10_000; // kept in memory; the rest are read back from directory
+    private String directory=System.getProperty("java.io.tmpdir")+"/smart-sync";
+    public boolean isEnabled(){return enabled;} public void setEnabled(boolean v){this.enabled=v;}
+    public Duration getInterval(){return interval;} public void setInterval(Duration v){this.interval=v;}
+    public Duration getMaxStale(){return maxStale;} public void setMaxStale(Duration v){this.maxStale=v;}
+    public Duration getIdleTimeout(){return idleTimeout;} public void setIdleTimeout(Duration v){this.idleTimeout=v;}
+    public Duration getFullResyncEvery(){return fullResyncEvery;} public void setFullResyncEvery(Duration v){this.fullResyncEvery=v;}
+    public Duration getOverlap(){return overlap;} public void setOverlap(Duration v){this.overlap=v;}
+    public int getMaxConcurrent(){return maxConcurrent;} public void setMaxConcurrent(int v){this.maxConcurrent=v;}
+    public int getPageSize(){return pageSize;} public void setPageSize(int v){this.pageSize=v;}
+    public int getMaxViews(){return maxViews;} public void setMaxViews(int v){this.maxViews=v;}
+    public String getDirectory(){return directory;} public void setDirectory(String v){this.directory=v;}
+  }
+
+  /**
+   * Per-user launch and token state, kept in a {@code SessionTokenStore} behind the {@code cookieName} cookie so any
+   * node can serve any request. Values are AES-GCM encrypted with {@code encryptionKey} (base64, 16/24/32 bytes).
+   */
+  public static class Session {
+    public enum Store { MEMORY, FILE, REDIS }
+    private Store store=Store.MEMORY;
+    private String encryptionKey;
+    private String cookieName="SMART_SESSION";
+    private boolean cookieSecure=false;
+    private Duration preAuthTtl=Duration.ofMinutes(10);
+    private Duration idleTimeout=Duration.ofMinutes(30);
+    private Duration refreshGrace=Duration.ofMinutes(30);
+    private final FileStore file=new FileStore();
+    private final RedisStore redis=new RedisStore();
+    public Store getStore(){return store;} public void setStore(Store v){this.store=v;}
+    public String getEncryptionKey(){return encryptionKey;} public void setEncryptionKey(String v){this.encryptionKey=v;}
+    public String getCookieName(){return cookieName;} public void setCookieName(String v){this.cookieName=v;}
+    public boolean isCookieSecure(){return cookieSecure;} public void setCookieSecure(boolean v){this.cookieSecure=v;}
+    public Duration getPreAuthTtl(){return preAuthTtl;} public void setPreAuthTtl(Duration v){this.preAuthTtl=v;}
+    public Duration getIdleTimeout(){return idleTimeout;} public void setIdleTimeout(Duration v){this.idleTimeout=v;}
+    public Duration getRefreshGrace(){return refreshGrace;} public void setRefreshGrace(Duration v){this.refreshGrace=v;}
+    public FileStore getFile(){return file;}
+    public RedisStore getRedis(){return redis;}
+
+    public static class FileStore {
+      private String directory=System.getProperty("java.io.tmpdir")+"/smart-sessions";
+      public String getDirectory(){return directory;} public void setDirectory(String v){this.directory=v;}
+    }
+
+    public static class RedisStore {
+      private String host="127.0.0.1";
+      private int port=6379;
+      private String password;
+      private int database=0;
+      private Duration timeout=Duration.ofSeconds(2);
+      private int poolSize=16;
+      private String keyPrefix="smart:session:";
+      public String getHost(){return host;} public void setHost(String v){this.host=v;}
+      public int getPort(){return port;} public void setPort(int v){this.port=v;}
+      public String getPassword(){return password;} public void setPassword(String v){this.password=v;}
+      public int getDatabase(){return database;} public void setDatabase(int v){this.database=v;}
+      public Duration getTimeout(){return timeout;} public void setTimeout(Duration v){this.timeout=v;}
+      public int getPoolSize(){return poolSize;} public void setPoolSize(int v){this.poolSize=v;}
+      public String getKeyPrefix(){return keyPrefix;} public void setKeyPrefix(String v){this.keyPrefix=v;}
+    }
+  }
+
+  /**
+   * Bulk Data {@code $export} as a SMART backend service. {@code keyFile} holds the signing key as PKCS#8 PEM or as a
+   * JWK/JWKS with private parts; {@code fhirBase} defaults to {@code smart.fhirBase}.
+   */
+  public static class Bulk {
+    public enum Sink { FILE }
+    private boolean enabled=false;
+    private String fhirBase;
+    private String clientId;
+    private String keyFile;
+    private String keyId;
+    private String algorithm="RS384";
+    private String scope="system/*.read";
+    private List<String> types=new ArrayList<>();
+    private Duration pollInitial=Duration.ofSeconds(2);
+    private Duration pollMax=Duration.ofMinutes(1);
+    private Duration timeout=Duration.ofHours(2);
+    private int downloadConcurrency=4;
+    private Sink sink=Sink.FILE;
+    private String outputDir=System.getProperty("java.io.tmpdir")+"/smart-bulk";
+    private int maxRunningJobs=2;
+    private String operatorToken;
+    public boolean isEnabled(){return enabled;} public void setEnabled(boolean v){this.enabled=v;}
+    public String getFhirBase(){return fhirBase;} public void setFhirBase(String v){this.fhirBase=v;}
+    public String getClientId(){return clientId;} public void setClientId(String v){this.clientId=v;}
+    public String getKeyFile(){return keyFile;} public void setKeyFile(String v){this.keyFile=v;}
+    public String getKeyId(){return keyId;} public void setKeyId(String v){this.keyId=v;}
+    public String getAlgorithm(){return algorithm;} public void setAlgorithm(String v){this.algorithm=v;}
+    public String getScope(){return scope;} public void setScope(String v){this.scope=v;}
+    public List<String> getTypes(){return types;} public void setTypes(List<String> v){this.types=v;}
+    public Duration getPollInitial(){return pollInitial;} public void setPollInitial(Duration v){this.pollInitial=v;}
+    public Duration getPollMax(){return pollMax;} public void setPollMax(Duration v){this.pollMax=v;}
+    public Duration getTimeout(){return timeout;} public void setTimeout(Duration v){this.timeout=v;}
+    public int getDownloadConcurrency(){return downloadConcurrency;} public void setDownloadConcurrency(int v){this.downloadConcurrency=v;}
+    public Sink getSink(){return sink;} public void setSink(Sink v){this.sink=v;}
+    public String getOutputDir(){return outputDir;} public void setOutputDir(String v){this.outputDir=v;}
+    public int getMaxRunningJobs(){return maxRunningJobs;} public void setMaxRunningJobs(int v){this.maxRunningJobs=v;}
+    public String getOperatorToken(){return operatorToken;} public void setOperatorToken(String v){this.operatorToken=v;}
+  }
+
+  /** /patients paging. Page tokens are next/previous links sealed with {@code session.encryptionKey}. */
+  public static class Paging {
+    private int defaultSize=5;
+    private int maxSize=100;
+    public int getDefaultSize(){return defaultSize;} public void setDefaultSize(int v){this.defaultSize=v;}
+    public int getMaxSize(){return maxSize;} public void setMaxSize(int v){this.maxSize=v;}
+  }
 }
@@ -0,0 +1,309 @@
+package com.example.smartspring.http;
+
+import com.example.smartspring.config.AppProperties;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPRequestSender;
+import com.nimbusds.oauth2.sdk.http.ReadOnlyHTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single outbound HTTP client shared by discovery, token and FHIR calls. The JDK client keeps connections alive
+ * per host and negotiates HTTP/2 where the server offers it; on top of that each host ("route") gets a bounded
+ * number of concurrent exchanges, which for HTTP/1.1 is the number of pooled connections.
+ */
+@Component
+public class HttpTransport {
+
+    // set by the JDK client itself and rejected by HttpRequest.Builder
+    private static final Set<String> RESTRICTED = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final AppProperties.Http cfg;
+    private final HttpClient client;
+    private final MeterRegistry meters;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final ExecutorService waiters = Executors.newVirtualThreadPerTaskExecutor();
+    private final Proxies proxies = new Proxies();
+
+    public HttpTransport(AppProperties props, MeterRegistry meters) {
+        this.cfg = props.getHttp();
+        this.meters = meters;
+        this.client = HttpClient.newBuilder()
+                .version(cfg.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(cfg.getConnectTimeout())
+                // never: a redirect would carry the Authorization header, possibly to another host
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .proxy(proxies)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
+
+    /** Sends a request whose body handler consumes the whole response before returning. */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        Route route = acquire(request.uri());
+        Upstream.Stats op = Upstream.current();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<T> r = client.send(withTimeout(request), handler);
+            if (op != null) op.received(r.statusCode(), bodySize(r), System.nanoTime() - start);
+            return r;
+        } finally {
+            route.release();
+        }
+    }
+
+    /** Sends a request and hands back the body as a stream; the route slot is held until the exchange is closed. */
+    public Exchange open(HttpRequest request) throws IOException, InterruptedException {
+        Route route = acquire(request.uri());
+        Upstream.Stats op = Upstream.current();
+        long start = System.nanoTime();
+        try {
+            return new Exchange(client.send(withTimeout(request), HttpResponse.BodyHandlers.ofInputStream()), route, op, start);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            route.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Non-blocking {@link #send}. The route slot is taken without parking the caller (when the route is full a
+     * virtual thread waits for it) and given back when the response completes; dependent stages run on the
+     * client's virtual-thread executor.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        String key = routeKey(request.uri());
+        Route route = routes.computeIfAbsent(key, this::newRoute);
+        Upstream.Stats op = Upstream.current();
+        CompletableFuture<Route> slot = route.permits.tryAcquire()
+                ? CompletableFuture.completedFuture(granted(route, key, System.nanoTime()))
+                : CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return acquire(request.uri());
+                    } catch (IOException | InterruptedException e) {
+                        throw new CompletionException(e);
+                    }
+                }, waiters);
+        return slot.thenCompose(r -> {
+            long start = System.nanoTime();
+            try {
+                return client.sendAsync(withTimeout(request), handler).whenComplete((res, err) -> {
+                    r.release();
+                    if (op != null && res != null) op.received(res.statusCode(), bodySize(res), System.nanoTime() - start);
+                });
+            } catch (RuntimeException e) {
+                r.release();
+                throw e;
+            }
+        });
+    }
+
+    /** Nimbus {@link HTTPRequestSender} backed by this transport, for token endpoint calls. */
+    public HTTPRequestSender nimbusSender() {
+        return req -> {
+            HttpResponse<String> r;
+            try {
+                r = send(toJdk(req), HttpResponse.BodyHandlers.ofString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return toNimbus(r);
+        };
+    }
+
+    /** Non-blocking counterpart of {@link #nimbusSender()}. */
+    public CompletableFuture<HTTPResponse> sendAsync(HTTPRequest req) {
+        return sendAsync(toJdk(req), HttpResponse.BodyHandlers.ofString()).thenApply(HttpTransport::toNimbus);
+    }
+
+    /** Sends every later request through the HTTP proxy at {@code host:port}, or directly again when either is null. */
+    public void setProxy(String host, Integer port) {
+        proxies.proxy = host == null || port == null ? Proxy.NO_PROXY : new Proxy(Proxy.Type.HTTP, new InetSocketAddress(host, port));
+    }
+
+    public HttpClient client() {
+        return client;
+    }
+
+    /** Per-host snapshot of the route limiter, keyed by {@code scheme://host:port}. */
+    public Map<String, RouteStats> stats() {
+        Map<String, RouteStats> out = new TreeMap<>();
+        routes.forEach((k, r) -> out.put(k, r.stats()));
+        return out;
+    }
+
+    private HttpRequest withTimeout(HttpRequest request) {
+        if (request.timeout().isPresent()) return request;
+        return HttpRequest.newBuilder(request, (n, v) -> true).timeout(cfg.getReadTimeout()).build();
+    }
+
+    private Route acquire(URI uri) throws IOException, InterruptedException {
+        String key = routeKey(uri);
+        Route route = routes.computeIfAbsent(key, this::newRoute);
+        long start = System.nanoTime();
+        if (!route.permits.tryAcquire(cfg.getAcquireTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+            route.rejected.increment();
+            throw new IOException("No free connection to " + key + " within " + cfg.getAcquireTimeout());
+        }
+        return granted(route, key, start);
+    }
+
+    private Route granted(Route route, String key, long start) {
+        route.requests.increment();
+        meters.timer("smart.http.pool.acquire", "route", key).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return route;
+    }
+
+    private static HttpRequest toJdk(ReadOnlyHTTPRequest req) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(req.getURI());
+        req.getHeaderMap().forEach((name, values) -> {
+            if (!isRestricted(name)) values.forEach(v -> b.header(name, v));
+        });
+        String body = req.getBody();
+        b.method(req.getMethod().name(), body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        return b.build();
+    }
+
+    private static HTTPResponse toNimbus(HttpResponse<String> r) {
+        HTTPResponse out = new HTTPResponse(r.statusCode());
+        r.headers().map().forEach((name, values) -> out.setHeader(name, values.toArray(String[]::new)));
+        out.setBody(r.body());
+        return out;
+    }
+
+    // bodies here are JSON, so a String's length is close enough to its size on the wire
+    private static long bodySize(HttpResponse<?> r) {
+        if (r.body() instanceof byte[] b) return b.length;
+        if (r.body() instanceof String s) return s.length();
+        return r.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    private Route newRoute(String key) {
+        Route r = new Route(cfg.getMaxConnectionsPerRoute(),
+                meters.counter("smart.http.requests", "route", key),
+                meters.counter("smart.http.pool.rejected", "route", key));
+        Gauge.builder("smart.http.pool.leased", r, Route::leased).tag("route", key).register(meters);
+        Gauge.builder("smart.http.pool.available", r.permits, Semaphore::availablePermits).tag("route", key).register(meters);
+        return r;
+    }
+
+    static boolean isRestricted(String header) {
+        return RESTRICTED.contains(header.toLowerCase(Locale.ROOT));
+    }
+
+    static String routeKey(URI uri) {
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    // the client is built once, so the proxy is looked up per request
+    private static final class Proxies extends ProxySelector {
+        volatile Proxy proxy = Proxy.NO_PROXY;
+
+        @Override
+        public List<Proxy> select(URI uri) {
+            return List.of(proxy);
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            // nothing to fall back to
+        }
+    }
+
+    public record RouteStats(int max, int leased, int pending, double requests, double rejected) {}
+
+    /** A streaming response plus the route slot it occupies. */
+    public static final class Exchange implements Closeable {
+        private final HttpResponse<InputStream> response;
+        private final Route route;
+        private final Upstream.Stats op;
+        private final long start;
+        private boolean reported;
+        private boolean closed;
+
+        Exchange(HttpResponse<InputStream> response, Route route, Upstream.Stats op, long start) {
+            this.response = response;
+            this.route = route;
+            this.op = op;
+            this.start = start;
+        }
+
+        /** The body has been read to the end ({@code bytes} of it, or -1 if not counted). */
+        synchronized void received(long bytes) {
+            if (reported || op == null) return;
+            reported = true;
+            op.received(response.statusCode(), bytes, System.nanoTime() - start);
+        }
+
+        public HttpResponse<InputStream> response() {
+            return response;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            // streamed to the caller, so the wire time runs until it is done with the body
+            received(-1);
+            try {
+                response.body().close();
+            } finally {
+                route.release();
+            }
+        }
+    }
+
+    static final class Route {
+        final int max;
+        final Semaphore permits;
+        final Counter requests;
+        final Counter rejected;
+
+        Route(int max, Counter requests, Counter rejected) {
+            this.max = max;
+            this.permits = new Semaphore(max, true);
+            this.requests = requests;
+            this.rejected = rejected;
+        }
+
+        int leased() {
+            return max - permits.availablePermits();
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        RouteStats stats() {
+            return new RouteStats(max, leased(), permits.getQueueLength(), requests.count(), rejected.count());
+        }
+    }
+}
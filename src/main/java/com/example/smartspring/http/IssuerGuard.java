@@ -0,0 +1,230 @@
+package com.example.smartspring.http;
+
+import com.example.smartspring.config.AppProperties;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resilience state for one upstream host: a bulkhead on concurrent calls, a circuit breaker over the outcomes of
+ * recent calls, the host's retry budget and, for hedged operations, a window of recent latencies.
+ */
+final class IssuerGuard {
+
+    enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private final AppProperties.Resilience cfg;
+    private final Semaphore bulkhead;
+    private final Breaker breaker;
+    private final RetryBudget budget;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    IssuerGuard(AppProperties.Resilience cfg) {
+        this.cfg = cfg;
+        this.bulkhead = new Semaphore(cfg.getBulkhead().getMaxConcurrent());
+        this.breaker = new Breaker(cfg.getBreaker());
+        this.budget = new RetryBudget(cfg.getRetry().getBudgetRatio(), cfg.getRetry().getBudgetMax());
+    }
+
+    /**
+     * Admits one call, waiting up to the bulkhead's {@code maxWait} when {@code mayWait}; returns the reason it was
+     * turned away ({@code bulkhead} or {@code circuit_open}), or null if it may go ahead and must {@link #exit}.
+     */
+    String enter(boolean mayWait) {
+        boolean permit;
+        try {
+            permit = mayWait
+                    ? bulkhead.tryAcquire(cfg.getBulkhead().getMaxWait().toNanos(), TimeUnit.NANOSECONDS)
+                    : bulkhead.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "bulkhead";
+        }
+        if (!permit) return "bulkhead";
+        if (!breaker.tryAcquire(System.nanoTime())) {
+            bulkhead.release();
+            return "circuit_open";
+        }
+        budget.deposit();
+        return null;
+    }
+
+    /** Ends a call let in by {@link #enter}. A discarded call (a hedge loser) says nothing about the host. */
+    void exit(boolean failure, boolean discarded, long nanos) {
+        try {
+            if (discarded) breaker.release();
+            else breaker.record(failure, nanos >= cfg.getBreaker().getSlowCallThreshold().toNanos(), System.nanoTime());
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    boolean withdrawRetry() {
+        return budget.withdraw();
+    }
+
+    State state() {
+        return breaker.state(System.nanoTime());
+    }
+
+    /** How long until an open breaker lets a trial through; zero unless open. */
+    Duration retryAfter() {
+        return breaker.remaining(System.nanoTime());
+    }
+
+    int available() {
+        return bulkhead.availablePermits();
+    }
+
+    void recordLatency(String op, long nanos) {
+        latencies.computeIfAbsent(op, k -> new LatencyWindow(256)).add(nanos);
+    }
+
+    /** Delay after which to hedge {@code op}, or -1 while there are too few samples to tell. */
+    long hedgeDelayNanos(String op) {
+        AppProperties.Resilience.Hedge h = cfg.getHedge();
+        LatencyWindow w = latencies.get(op);
+        if (w == null) return -1;
+        long p = w.percentile(h.getPercentile(), h.getMinSamples());
+        return p < 0 ? -1 : Math.max(p, h.getMinDelay().toNanos());
+    }
+
+    /**
+     * Count-based breaker: opens when, over the last {@code windowSize} calls (and at least {@code minCalls}), the
+     * failure or slow-call rate reaches its threshold; after {@code openDuration} lets {@code halfOpenCalls} trials
+     * through, closing if they all succeed and reopening on the first bad one.
+     */
+    static final class Breaker {
+        private final AppProperties.Resilience.Breaker cfg;
+        private final byte[] window; // bit 0: failed, bit 1: slow
+        private int next, count, failures, slow;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int trials, trialSuccesses;
+
+        Breaker(AppProperties.Resilience.Breaker cfg) {
+            this.cfg = cfg;
+            this.window = new byte[Math.max(1, cfg.getWindowSize())];
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            if (state == State.OPEN) {
+                if (now - openedAt < cfg.getOpenDuration().toNanos()) return false;
+                state = State.HALF_OPEN;
+                trials = 0;
+                trialSuccesses = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trials >= cfg.getHalfOpenCalls()) return false;
+                trials++;
+            }
+            return true;
+        }
+
+        synchronized void release() {
+            if (state == State.HALF_OPEN && trials > 0) trials--;
+        }
+
+        synchronized void record(boolean failed, boolean isSlow, long now) {
+            if (state == State.HALF_OPEN) {
+                if (failed || isSlow) {
+                    open(now);
+                } else if (++trialSuccesses >= cfg.getHalfOpenCalls()) {
+                    state = State.CLOSED;
+                    clear();
+                }
+                return;
+            }
+            if (state == State.OPEN) return; // a straggler from before it opened
+            if (count == window.length) {
+                byte old = window[next];
+                if ((old & 1) != 0) failures--;
+                if ((old & 2) != 0) slow--;
+            } else {
+                count++;
+            }
+            window[next] = (byte) ((failed ? 1 : 0) | (isSlow ? 2 : 0));
+            next = (next + 1) % window.length;
+            if (failed) failures++;
+            if (isSlow) slow++;
+            if (count >= cfg.getMinCalls()
+                    && (failures >= cfg.getFailureRate() * count || slow >= cfg.getSlowCallRate() * count)) {
+                open(now);
+            }
+        }
+
+        synchronized State state(long now) {
+            return state == State.OPEN && now - openedAt >= cfg.getOpenDuration().toNanos() ? State.HALF_OPEN : state;
+        }
+
+        synchronized Duration remaining(long now) {
+            if (state != State.OPEN) return Duration.ZERO;
+            return Duration.ofNanos(Math.max(0, cfg.getOpenDuration().toNanos() - (now - openedAt)));
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+            clear();
+        }
+
+        private void clear() {
+            Arrays.fill(window, (byte) 0);
+            next = count = failures = slow = 0;
+        }
+    }
+
+    /** Token bucket that fills by {@code ratio} per call, so retries stay a fraction of traffic; starts full. */
+    static final class RetryBudget {
+        private final double ratio;
+        private final double max;
+        private double tokens;
+
+        RetryBudget(double ratio, int max) {
+            this.ratio = ratio;
+            this.max = max;
+            this.tokens = max;
+        }
+
+        synchronized void deposit() {
+            tokens = Math.min(max, tokens + ratio);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    /** The last {@code size} latencies of one operation. */
+    static final class LatencyWindow {
+        private final long[] samples;
+        private int next, count;
+
+        LatencyWindow(int size) {
+            this.samples = new long[size];
+        }
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) count++;
+        }
+
+        long percentile(double p, int minSamples) {
+            long[] copy;
+            synchronized (this) {
+                if (count < Math.max(1, minSamples)) return -1;
+                copy = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(copy);
+            int i = (int) Math.ceil(p * copy.length) - 1;
+            return copy[Math.max(0, Math.min(copy.length - 1, i))];
+        }
+    }
+}
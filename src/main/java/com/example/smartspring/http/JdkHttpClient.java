@@ -0,0 +1,59 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.apache.BaseHttpClient;
+
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/** One HAPI invocation; builds a {@link JdkHttpRequest} for the requested verb and body. */
+class JdkHttpClient extends BaseHttpClient {
+
+    private final HttpTransport transport;
+
+    JdkHttpClient(HttpTransport transport, StringBuilder url, Map<String, List<String>> ifNoneExistParams, String ifNoneExistString,
+                  RequestTypeEnum requestType, List<Header> headers) {
+        super(url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+        this.transport = transport;
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest() {
+        return request(null);
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(byte[] content) {
+        return request(content);
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(String contents) {
+        return request(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(Map<String, List<String>> params) {
+        StringBuilder form = new StringBuilder();
+        params.forEach((name, values) -> values.forEach(v -> {
+            if (form.length() > 0) form.append('&');
+            form.append(URLEncoder.encode(name, StandardCharsets.UTF_8)).append('=').append(URLEncoder.encode(v, StandardCharsets.UTF_8));
+        }));
+        IHttpRequest req = request(form.toString().getBytes(StandardCharsets.UTF_8));
+        req.addHeader("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        return req;
+    }
+
+    private JdkHttpRequest request(byte[] body) {
+        String verb = myRequestType == null ? "GET" : myRequestType.name();
+        // GET/DELETE/OPTIONS never carry an entity, whatever HAPI passes in
+        HttpRequest.BodyPublisher publisher = body == null || "GET".equals(verb) || "DELETE".equals(verb) || "OPTIONS".equals(verb)
+                ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body);
+        return new JdkHttpRequest(transport, myUrl.toString(), verb, publisher, body);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.rest.client.api.BaseHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.util.StopWatch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class JdkHttpRequest extends BaseHttpRequest {
+
+    private final HttpTransport transport;
+    private final String verb;
+    private final HttpRequest.BodyPublisher body;
+    private final byte[] bodyBytes;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    private String uri;
+
+    JdkHttpRequest(HttpTransport transport, String uri, String verb, HttpRequest.BodyPublisher body, byte[] bodyBytes) {
+        this.transport = transport;
+        this.uri = uri;
+        this.verb = verb;
+        this.body = body;
+        this.bodyBytes = bodyBytes;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public IHttpResponse execute() throws IOException {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(uri)).method(verb, body);
+        headers.forEach((name, values) -> {
+            if (!HttpTransport.isRestricted(name)) values.forEach(v -> b.header(name, v));
+        });
+        StopWatch sw = new StopWatch();
+        try {
+            return new JdkHttpResponse(transport.open(b.build()), sw);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted calling " + uri);
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getAllHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String getRequestBodyFromStream() {
+        return bodyBytes == null ? null : new String(bodyBytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getUri() {
+        return uri;
+    }
+
+    @Override
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    @Override
+    public String getHttpVerbName() {
+        return verb;
+    }
+
+    @Override
+    public void removeHeaders(String name) {
+        headers.keySet().removeIf(k -> k.equalsIgnoreCase(name));
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.rest.client.impl.BaseHttpResponse;
+import ca.uhn.fhir.util.StopWatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+class JdkHttpResponse extends BaseHttpResponse {
+
+    private final HttpTransport.Exchange exchange;
+    private byte[] buffered;
+
+    JdkHttpResponse(HttpTransport.Exchange exchange, StopWatch sw) {
+        super(sw);
+        this.exchange = exchange;
+    }
+
+    @Override
+    public void bufferEntity() throws IOException {
+        if (buffered != null) return;
+        try (InputStream in = decoded()) {
+            buffered = in.readAllBytes();
+        }
+        exchange.received(buffered.length);
+    }
+
+    @Override
+    public void close() {
+        try {
+            exchange.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Reader createReader() throws IOException {
+        // HAPI parses through synchronized readers; blocking on the network inside one would pin a virtual thread's
+        // carrier, which the client's own (virtual-thread) executor needs to deliver the body
+        bufferEntity();
+        return new InputStreamReader(new ByteArrayInputStream(buffered), charset());
+    }
+
+    @Override
+    public Map<String, List<String>> getAllHeaders() {
+        Map<String, List<String>> out = new HashMap<>();
+        exchange.response().headers().map().forEach((k, v) -> out.put(k.toLowerCase(Locale.ROOT), v));
+        return out;
+    }
+
+    @Override
+    public List<String> getHeaders(String name) {
+        return exchange.response().headers().allValues(name);
+    }
+
+    @Override
+    public String getMimeType() {
+        return exchange.response().headers().firstValue("Content-Type").map(ct -> ct.split(";")[0].trim()).orElse(null);
+    }
+
+    @Override
+    public Object getResponse() {
+        return exchange.response();
+    }
+
+    @Override
+    public int getStatus() {
+        return exchange.response().statusCode();
+    }
+
+    @Override
+    public String getStatusInfo() {
+        // HTTP/2 has no reason phrase and the JDK client does not expose the HTTP/1.1 one
+        return String.valueOf(getStatus());
+    }
+
+    @Override
+    public InputStream readEntity() throws IOException {
+        // HAPI wraps this in its own (synchronized) reader for resource responses; same reason as createReader
+        bufferEntity();
+        return new ByteArrayInputStream(buffered);
+    }
+
+    private InputStream decoded() throws IOException {
+        InputStream in = exchange.response().body();
+        boolean gzip = exchange.response().headers().firstValue("Content-Encoding").map(v -> v.equalsIgnoreCase("gzip")).orElse(false);
+        return gzip ? new GZIPInputStream(in) : in;
+    }
+
+    private Charset charset() {
+        String ct = exchange.response().headers().firstValue("Content-Type").orElse("");
+        for (String part : ct.split(";")) {
+            part = part.trim();
+            if (part.regionMatches(true, 0, "charset=", 0, 8)) {
+                try {
+                    return Charset.forName(part.substring(8).replace("\"", ""));
+                } catch (RuntimeException ignore) {
+                    break;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
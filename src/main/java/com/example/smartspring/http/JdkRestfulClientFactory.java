@@ -0,0 +1,54 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.impl.RestfulClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HAPI client factory that sends every FHIR call through the shared {@link HttpTransport} instead of a private
+ * Apache HttpClient, so FHIR reads reuse the same keep-alive connections as discovery and token calls.
+ */
+public class JdkRestfulClientFactory extends RestfulClientFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(JdkRestfulClientFactory.class);
+
+    private final HttpTransport transport;
+
+    public JdkRestfulClientFactory(FhirContext ctx, HttpTransport transport) {
+        super(ctx);
+        this.transport = transport;
+    }
+
+    @Override
+    protected IHttpClient getHttpClient(String serverBase) {
+        return getHttpClient(new StringBuilder(serverBase), null, null, null, null);
+    }
+
+    @Override
+    public IHttpClient getHttpClient(StringBuilder url, Map<String, List<String>> ifNoneExistParams, String ifNoneExistString,
+                                     RequestTypeEnum requestType, List<Header> headers) {
+        return new JdkHttpClient(transport, url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+    }
+
+    @Override
+    protected void resetHttpClient() {
+        // connections are owned by the shared transport
+    }
+
+    @Override
+    public <T> void setHttpClient(T httpClient) {
+        log.warn("Ignoring {}: FHIR calls go through the shared HttpTransport", httpClient == null ? null : httpClient.getClass().getName());
+    }
+
+    @Override
+    public void setProxy(String host, Integer port) {
+        transport.setProxy(host, port);
+    }
+}
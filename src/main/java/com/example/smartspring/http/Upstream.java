@@ -0,0 +1,417 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.example.smartspring.config.AppProperties;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshot;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.time.Duration;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Timing and protection for upstream operations (discovery, token grants, FHIR reads). Each attempt runs as a
+ * {@code smart.upstream} observation tagged with {@code op}, the upstream {@code host} and the {@code status} class
+ * of its last response, which makes a timer and a span that is a child of whatever is current (the web request, or
+ * the fan-out call it was submitted from). While an attempt runs, {@link HttpTransport} reports each response into
+ * it, so time on the wire ({@code smart.upstream.network}), bytes received ({@code smart.upstream.received}) and the
+ * parsing done once the body was in ({@code smart.upstream.parse}) are recorded separately under the same tags.
+ * <p>
+ * Attempts also pass through their host's {@link IssuerGuard} ({@code smart.resilience}): a full bulkhead or an open
+ * circuit fails the call at once with {@link UpstreamUnavailableException}. {@link #read} is for idempotent reads,
+ * which may be retried and hedged; {@link #call} runs exactly once.
+ */
+@Component
+public class Upstream {
+
+    private static final Logger log = LoggerFactory.getLogger(Upstream.class);
+    private static final ThreadLocal<Stats> CURRENT = new ThreadLocal<>();
+    private static final ContextSnapshotFactory SNAPSHOTS = ContextSnapshotFactory.builder().build();
+    // hedged legs; they carry the caller's trace context like fan-out calls do
+    private static final ExecutorService LEGS = ContextExecutorService.wrap(Executors.newVirtualThreadPerTaskExecutor(),
+            SNAPSHOTS::captureAll);
+
+    private final ObservationRegistry observations;
+    private final MeterRegistry meters;
+    private final AppProperties.Resilience cfg;
+    private final Map<String, IssuerGuard> guards = new ConcurrentHashMap<>();
+
+    public Upstream(ObservationRegistry observations, MeterRegistry meters, AppProperties props) {
+        this.observations = observations;
+        this.meters = meters;
+        this.cfg = props.getResilience();
+    }
+
+    /** Runs {@code work} once as operation {@code op} against the server at {@code target} (any URL on it). */
+    public <T> T call(String op, String target, Supplier<T> work) {
+        String host = host(target);
+        return cfg.isEnabled() ? guarded(guard(host), op, host, work) : attempt(new Stats(op, host), work);
+    }
+
+    /**
+     * {@link #call} for an idempotent read: retried on connection errors, timeouts, 429 and 502-504 with jittered
+     * backoff while the host's retry budget allows, and hedged when {@code op} is in {@code smart.resilience.hedge.ops}.
+     */
+    public <T> T read(String op, String target, Supplier<T> work) {
+        String host = host(target);
+        if (!cfg.isEnabled()) return attempt(new Stats(op, host), work);
+        IssuerGuard g = guard(host);
+        for (int n = 1; ; n++) {
+            try {
+                return hedges(op) ? hedged(g, op, host, work) : guarded(g, op, host, work);
+            } catch (RuntimeException e) {
+                if (n >= cfg.getRetry().getMaxAttempts() || !retryable(e) || !g.withdrawRetry()) throw e;
+                meters.counter("smart.upstream.retries", "op", op, "host", host).increment();
+                try {
+                    Thread.sleep(backoffMillis(n));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Non-blocking {@link #call}; the transport picks the operation up when the request is sent. */
+    public <T> CompletableFuture<T> callAsync(String op, String target, Supplier<CompletableFuture<T>> work) {
+        String host = host(target);
+        return cfg.isEnabled() ? guardedAsync(guard(host), op, host, work) : attemptAsync(new Stats(op, host), work);
+    }
+
+    /** Non-blocking {@link #read}. The slower leg of a hedge is left to finish in the background. */
+    public <T> CompletableFuture<T> readAsync(String op, String target, Supplier<CompletableFuture<T>> work) {
+        String host = host(target);
+        if (!cfg.isEnabled()) return attemptAsync(new Stats(op, host), work);
+        return readAsync(guard(host), op, host, work, 1, SNAPSHOTS.captureAll());
+    }
+
+    private <T> CompletableFuture<T> readAsync(IssuerGuard g, String op, String host, Supplier<CompletableFuture<T>> work,
+                                               int n, ContextSnapshot context) {
+        CompletableFuture<T> f = hedges(op) ? hedgedAsync(g, op, host, work) : guardedAsync(g, op, host, work);
+        return f.exceptionallyCompose(e -> {
+            Throwable cause = unwrap(e);
+            if (n >= cfg.getRetry().getMaxAttempts() || !retryable(cause) || !g.withdrawRetry()) return CompletableFuture.failedFuture(cause);
+            meters.counter("smart.upstream.retries", "op", op, "host", host).increment();
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(backoffMillis(n), TimeUnit.MILLISECONDS))
+                    .thenCompose(x -> {
+                        // later attempts start on a timer thread; keep them in the caller's trace
+                        try (ContextSnapshot.Scope ignored = context.setThreadLocals()) {
+                            return readAsync(g, op, host, work, n + 1, context);
+                        }
+                    });
+        });
+    }
+
+    private <T> T guarded(IssuerGuard g, String op, String host, Supplier<T> work) {
+        return guarded(g, op, host, work, null);
+    }
+
+    // `decided` is set for a hedge leg: true once the other leg has won, so this one's cancellation says nothing
+    private <T> T guarded(IssuerGuard g, String op, String host, Supplier<T> work, AtomicBoolean decided) {
+        admit(g, op, host, true);
+        Stats stats = new Stats(op, host);
+        long start = System.nanoTime();
+        try {
+            T value = attempt(stats, work);
+            settle(g, stats, null, start, decided);
+            return value;
+        } catch (RuntimeException | Error e) {
+            settle(g, stats, e, start, decided);
+            throw e;
+        }
+    }
+
+    private <T> CompletableFuture<T> guardedAsync(IssuerGuard g, String op, String host, Supplier<CompletableFuture<T>> work) {
+        try {
+            admit(g, op, host, false);
+        } catch (UpstreamUnavailableException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Stats stats = new Stats(op, host);
+        long start = System.nanoTime();
+        CompletableFuture<T> f;
+        try {
+            f = attemptAsync(stats, work);
+        } catch (RuntimeException | Error e) {
+            settle(g, stats, e, start, null);
+            throw e;
+        }
+        return f.whenComplete((v, e) -> settle(g, stats, e == null ? null : unwrap(e), start, null));
+    }
+
+    // Runs the first leg; if it is still going after the host's hedge delay, a second one, and takes whichever
+    // succeeds first. The other is interrupted.
+    private <T> T hedged(IssuerGuard g, String op, String host, Supplier<T> work) {
+        long delay = g.hedgeDelayNanos(op);
+        if (delay < 0) return guarded(g, op, host, work);
+        ExecutorCompletionService<T> legs = new ExecutorCompletionService<>(LEGS);
+        AtomicBoolean decided = new AtomicBoolean();
+        Future<T> first = legs.submit(() -> guarded(g, op, host, work, decided));
+        Future<T> second = null;
+        try {
+            Future<T> done = legs.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                meters.counter("smart.upstream.hedges", "op", op, "host", host).increment();
+                second = legs.submit(() -> guarded(g, op, host, work, decided));
+                done = legs.take();
+            }
+            T value;
+            try {
+                value = done.get();
+            } catch (ExecutionException e) {
+                if (second == null) throw e;
+                value = legs.take().get();
+            }
+            decided.set(true);
+            return value;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            first.cancel(true);
+            if (second != null) second.cancel(true);
+        }
+    }
+
+    private <T> CompletableFuture<T> hedgedAsync(IssuerGuard g, String op, String host, Supplier<CompletableFuture<T>> work) {
+        long delay = g.hedgeDelayNanos(op);
+        if (delay < 0) return guardedAsync(g, op, host, work);
+        CompletableFuture<T> out = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        BiConsumer<T, Throwable> settle = (v, e) -> {
+            if (e == null) out.complete(v);
+            else if (running.decrementAndGet() == 0) out.completeExceptionally(unwrap(e));
+        };
+        guardedAsync(g, op, host, work).whenComplete(settle);
+        ContextSnapshot context = SNAPSHOTS.captureAll();
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            if (out.isDone()) return;
+            running.incrementAndGet();
+            meters.counter("smart.upstream.hedges", "op", op, "host", host).increment();
+            try (ContextSnapshot.Scope ignored = context.setThreadLocals()) {
+                guardedAsync(g, op, host, work).whenComplete(settle);
+            } catch (RuntimeException e) {
+                settle.accept(null, e);
+            }
+        });
+        return out;
+    }
+
+    private void admit(IssuerGuard g, String op, String host, boolean mayWait) {
+        String rejected = g.enter(mayWait);
+        if (rejected == null) return;
+        meters.counter("smart.upstream.rejected", "op", op, "host", host, "reason", rejected).increment();
+        // a full bulkhead clears as calls finish, so a second is a fair hint; an open circuit says when it half-opens
+        throw new UpstreamUnavailableException(host, rejected, "bulkhead".equals(rejected) ? Duration.ofSeconds(1) : g.retryAfter());
+    }
+
+    // A cancelled call counts like any other (no response is a failure, a long wait is slow), so calls cut off by a
+    // fan-out timeout still open the breaker; only the losing leg of a decided hedge is left out.
+    private void settle(IssuerGuard g, Stats stats, Throwable error, long start, AtomicBoolean decided) {
+        long nanos = System.nanoTime() - start;
+        boolean failure = failed(stats.status(), error);
+        g.exit(failure, error != null && cancelled(error) && decided != null && decided.get(), nanos);
+        if (error == null && hedges(stats.op)) g.recordLatency(stats.op, nanos);
+    }
+
+    private boolean hedges(String op) {
+        return cfg.getHedge().isEnabled() && cfg.getHedge().getOps().contains(op);
+    }
+
+    // full jitter: uniform in [0, min(maxBackoff, backoff * 2^(n-1))]
+    private long backoffMillis(int n) {
+        long cap = Math.min(cfg.getRetry().getMaxBackoff().toMillis(), cfg.getRetry().getBackoff().toMillis() << Math.min(n - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private IssuerGuard guard(String host) {
+        IssuerGuard g = guards.get(host);
+        if (g != null) return g;
+        return guards.computeIfAbsent(host, h -> {
+            IssuerGuard created = new IssuerGuard(cfg);
+            Gauge.builder("smart.upstream.circuit.state", created, x -> x.state().ordinal()).tag("host", h)
+                    .description("0 closed, 1 half-open, 2 open").register(meters);
+            Gauge.builder("smart.upstream.bulkhead.available", created, IssuerGuard::available).tag("host", h).register(meters);
+            return created;
+        });
+    }
+
+    // bad for the host's health: no answer at all, or an overloaded / failing server
+    static boolean failed(int status, Throwable error) {
+        return status >= 500 || status == 429 || (error != null && status < 0 && !(error instanceof UpstreamUnavailableException));
+    }
+
+    static boolean retryable(Throwable e) {
+        e = unwrap(e);
+        if (e instanceof UpstreamUnavailableException || cancelled(e)) return false;
+        if (e instanceof FhirClientConnectionException) return true;
+        if (e instanceof BaseServerResponseException b) {
+            int s = b.getStatusCode();
+            return s == 408 || s == 429 || s == 502 || s == 503 || s == 504;
+        }
+        for (Throwable c = e; c != null; c = c.getCause()) {
+            if (c instanceof IOException) return true;
+        }
+        return false;
+    }
+
+    static boolean cancelled(Throwable e) {
+        for (Throwable c = e; c != null; c = c.getCause()) {
+            if (c instanceof InterruptedException || c instanceof InterruptedIOException || c instanceof ClosedByInterruptException
+                    || c instanceof CancellationException) return true;
+        }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private <T> T attempt(Stats stats, Supplier<T> work) {
+        Observation obs = start(stats);
+        Stats previous = CURRENT.get();
+        CURRENT.set(stats);
+        try (Observation.Scope ignored = obs.openScope()) {
+            return work.get();
+        } catch (RuntimeException | Error e) {
+            obs.error(e);
+            throw e;
+        } finally {
+            restore(previous);
+            finish(obs, stats);
+        }
+    }
+
+    private <T> CompletableFuture<T> attemptAsync(Stats stats, Supplier<CompletableFuture<T>> work) {
+        Observation obs = start(stats);
+        Stats previous = CURRENT.get();
+        CURRENT.set(stats);
+        CompletableFuture<T> f;
+        try (Observation.Scope ignored = obs.openScope()) {
+            f = work.get();
+        } catch (RuntimeException | Error e) {
+            obs.error(e);
+            finish(obs, stats);
+            throw e;
+        } finally {
+            restore(previous);
+        }
+        return f.whenComplete((v, e) -> {
+            if (e != null) obs.error(unwrap(e));
+            finish(obs, stats);
+        });
+    }
+
+    /** The operation running on this thread, if any; responses are reported into it. */
+    static Stats current() {
+        return CURRENT.get();
+    }
+
+    private Observation start(Stats stats) {
+        return Observation.createNotStarted("smart.upstream", observations)
+                .lowCardinalityKeyValue("op", stats.op)
+                .lowCardinalityKeyValue("host", stats.host)
+                .start();
+    }
+
+    private void finish(Observation obs, Stats stats) {
+        long end = System.nanoTime();
+        String status;
+        long network, bytes, received;
+        int exchanges;
+        synchronized (stats) {
+            status = stats.status < 0 ? obs.getContext().getError() != null ? "error" : "none" : stats.status / 100 + "xx";
+            network = stats.networkNanos;
+            bytes = stats.bytes;
+            received = stats.receivedAt;
+            exchanges = stats.exchanges;
+        }
+        obs.lowCardinalityKeyValue("status", status);
+        obs.stop();
+        if (exchanges == 0) return;
+        Tags tags = Tags.of("op", stats.op, "host", stats.host, "status", status);
+        long parse = Math.max(0, end - received);
+        meters.timer("smart.upstream.network", tags).record(network, TimeUnit.NANOSECONDS);
+        meters.timer("smart.upstream.parse", tags).record(parse, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("smart.upstream.received").baseUnit("bytes").tags(tags).register(meters).record(bytes);
+        if (log.isDebugEnabled()) {
+            log.debug("{} {} {}: network {} ms, parse {} ms, {} bytes in {} response(s)", stats.op, stats.host, status,
+                    TimeUnit.NANOSECONDS.toMillis(network), TimeUnit.NANOSECONDS.toMillis(parse), bytes, exchanges);
+        }
+    }
+
+    private static void restore(Stats previous) {
+        if (previous == null) CURRENT.remove();
+        else CURRENT.set(previous);
+    }
+
+    static String host(String target) {
+        try {
+            String h = URI.create(target.trim()).getHost();
+            return h == null ? "unknown" : h.toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+
+    /** What the transport saw for one operation; several responses (a fallback, a revalidation) add up. */
+    static final class Stats {
+        final String op;
+        final String host;
+        private int status = -1;
+        private int exchanges;
+        private long networkNanos;
+        private long bytes;
+        private long receivedAt;
+
+        Stats(String op, String host) {
+            this.op = op;
+            this.host = host;
+        }
+
+        synchronized int status() {
+            return status;
+        }
+
+        /** A response whose body (of {@code bytes}, or -1 if unknown) was fully received {@code networkNanos} after sending. */
+        synchronized void received(int status, long bytes, long networkNanos) {
+            this.status = status;
+            this.exchanges++;
+            this.networkNanos += networkNanos;
+            if (bytes > 0) this.bytes += bytes;
+            this.receivedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.smartspring.http;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+/**
+ * A call turned away before it was sent because its host's bulkhead is full or its circuit is open. Surfaces as a
+ * 503 with {@code Retry-After} (how long the circuit stays open, or a second for a full bulkhead) instead of a 500
+ * for every request on that tenant.
+ */
+public class UpstreamUnavailableException extends ResponseStatusException {
+
+    private final String host;
+    private final String reason;
+    private final Duration retryAfter;
+
+    public UpstreamUnavailableException(String host, String reason, Duration retryAfter) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, "Upstream " + host + " unavailable (" + reason + ")");
+        this.host = host;
+        this.reason = reason;
+        this.retryAfter = retryAfter;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    /** {@code bulkhead} or {@code circuit_open}. */
+    public String rejection() {
+        return reason;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        if (retryAfter.isZero()) return HttpHeaders.EMPTY;
+        HttpHeaders h = new HttpHeaders();
+        h.set(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, (retryAfter.toMillis() + 999) / 1000)));
+        return h;
+    }
+}
@@ -1,21 +1,197 @@
 package com.example.smartspring.oauth;
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.http.HttpTransport;
+import com.example.smartspring.http.Upstream;
+import com.example.smartspring.http.UpstreamUnavailableException;
 import com.fasterxml.jackson.databind.*; import org.springframework.stereotype.Service;
-import java.net.*; import java.net.http.*;
+import io.micrometer.core.instrument.*;
+import java.io.ByteArrayInputStream; import java.io.InputStream; import java.net.*; import java.net.http.*; import java.time.Duration; import java.util.Comparator; import java.util.Locale; import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Resolves SMART authorize/token endpoints for an issuer. Results are cached per normalized {@code iss},
+ * honouring Cache-Control/ETag from the server (falling back to {@code smart.discovery.ttl}); concurrent misses
+ * for the same issuer share one in-flight fetch and failures are remembered for {@code negativeTtl}. At most
+ * {@code maxEntries} issuers are kept; past that the entries closest to expiry go first.
+ */
 @Service
 public class SmartDiscoveryService {
   private static final ObjectMapper M=new ObjectMapper();
+  private final HttpTransport http;
+  private final AppProperties.Discovery cfg;
+  private final ConcurrentHashMap<String, CompletableFuture<Resolved>> cache=new ConcurrentHashMap<>();
+  private final Counter hits, misses, coalesced, negativeHits;
+  private final MeterRegistry meters;
+  private final Upstream upstream;
+
+  public SmartDiscoveryService(AppProperties props, HttpTransport http, MeterRegistry meters, Upstream upstream){
+    this.cfg=props.getDiscovery(); this.http=http; this.meters=meters; this.upstream=upstream;
+    hits=meters.counter("smart.discovery.cache", "result", "hit");
+    misses=meters.counter("smart.discovery.cache", "result", "miss");
+    coalesced=meters.counter("smart.discovery.cache", "result", "coalesced");
+    negativeHits=meters.counter("smart.discovery.cache", "result", "negative_hit");
+    meters.gaugeMapSize("smart.discovery.cache.size", Tags.empty(), cache);
+  }
+
   public SmartEndpoints discover(String fhirBase){
-    String base=fhirBase.replaceAll("/+$","");
+    String iss=normalizeIssuer(fhirBase);
+    CompletableFuture<Resolved> cur=cache.get(iss);
+    if(cur!=null && isFresh(cur)){ Resolved r=cur.join(); (r.endpoints()!=null?hits:negativeHits).increment(); return r.unwrap(); }
+    CompletableFuture<Resolved> mine=new CompletableFuture<>();
+    Resolved[] previous=new Resolved[1];
+    CompletableFuture<Resolved> winner=claim(iss, mine, previous);
+    if(winner!=mine){ coalesced.increment(); return winner.join().unwrap(); }
+    try{ mine.complete(upstream.call("discovery", iss, ()->fetch(iss, previous[0]))); }
+    catch(UpstreamUnavailableException|Error e){ cache.remove(iss, mine); mine.completeExceptionally(e); throw e; }
+    catch(RuntimeException e){ mine.complete(failed(e instanceof CompletionException && e.getCause() instanceof Exception c?c:e)); }
+    return mine.join().unwrap();
+  }
+
+  /** {@link #discover} without blocking: same cache and single flight, fetching through {@link HttpTransport#sendAsync}. */
+  public CompletableFuture<SmartEndpoints> discoverAsync(String fhirBase){
+    String iss=normalizeIssuer(fhirBase);
+    CompletableFuture<Resolved> cur=cache.get(iss);
+    if(cur!=null && isFresh(cur)){ Resolved r=cur.join(); (r.endpoints()!=null?hits:negativeHits).increment(); return r.unwrapAsync(); }
+    CompletableFuture<Resolved> mine=new CompletableFuture<>();
+    Resolved[] previous=new Resolved[1];
+    CompletableFuture<Resolved> winner=claim(iss, mine, previous);
+    if(winner!=mine){ coalesced.increment(); return winner.thenCompose(Resolved::unwrapAsync); }
+    upstream.callAsync("discovery", iss, ()->fetchAsync(iss, previous[0])).whenComplete((r, e)->{
+      if(e==null){ mine.complete(r); return; }
+      Throwable c=e instanceof CompletionException && e.getCause()!=null?e.getCause():e;
+      if(c instanceof Exception x && !(x instanceof UpstreamUnavailableException)){ mine.complete(failed(x)); return; }
+      cache.remove(iss, mine); mine.completeExceptionally(c);
+    });
+    return mine.thenCompose(Resolved::unwrapAsync);
+  }
+
+  // installs `mine` as the in-flight lookup unless a fresh or in-flight one is already there (which is returned)
+  private CompletableFuture<Resolved> claim(String iss, CompletableFuture<Resolved> mine, Resolved[] previous){
+    CompletableFuture<Resolved> winner=cache.compute(iss, (k, old)->{
+      if(old!=null && (!old.isDone() || isFresh(old))) return old;
+      if(old!=null && !old.isCompletedExceptionally()) previous[0]=old.join();
+      return mine;
+    });
+    if(winner==mine){ misses.increment(); if(cache.size()>cfg.getMaxEntries()) evict(); }
+    return winner;
+  }
+
+  static String normalizeIssuer(String iss){
+    String s=iss.trim().replaceAll("/+$","");
     try{
-      HttpResponse<String> r=HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(base+"/.well-known/smart-configuration")).GET().build(), HttpResponse.BodyHandlers.ofString());
-      if(r.statusCode()/100==2){ JsonNode j=M.readTree(r.body()); String a=j.path("authorization_endpoint").asText(null); String t=j.path("token_endpoint").asText(null); if(a!=null&&t!=null) return new SmartEndpoints(URI.create(a), URI.create(t)); }
-    }catch(Exception ignore){}
+      URI u=URI.create(s);
+      if(u.getScheme()==null || u.getHost()==null) return s;
+      return new URI(u.getScheme().toLowerCase(Locale.ROOT), u.getUserInfo(), u.getHost().toLowerCase(Locale.ROOT), u.getPort(), u.getPath(), u.getQuery(), null).toString();
+    }catch(Exception e){ return s; }
+  }
+
+  // failures propagate so the breaker sees them; the caller caches them for negativeTtl
+  private Resolved fetch(String base, Resolved previous){
+    long start=System.nanoTime();
+    try{
+      Resolved r=wellKnown(base, previous);
+      if(r==null) r=metadata(base, previous);
+      return recordFetch(r, start);
+    }catch(Exception e){
+      recordFetch(null, start);
+      if(e instanceof RuntimeException re) throw re;
+      throw new CompletionException(e);
+    }
+  }
+
+  // well-known first, then /metadata; fails like fetch
+  private CompletableFuture<Resolved> fetchAsync(String base, Resolved previous){
+    long start=System.nanoTime();
+    return http.sendAsync(conditional(base+"/.well-known/smart-configuration", previous, "well-known"), HttpResponse.BodyHandlers.ofByteArray())
+        .handle((r, e)->e==null?wellKnown(r, previous):null)
+        .thenCompose(r->r!=null?CompletableFuture.completedFuture(r)
+            :http.sendAsync(conditional(base+"/metadata", previous, "metadata"), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(m->{ try{ return metadata(m.statusCode(), m.headers(), new ByteArrayInputStream(m.body()), previous); }catch(Exception e){ throw new CompletionException(e); } }))
+        .whenComplete((r, e)->recordFetch(r, start));
+  }
+
+  private Resolved failed(Exception e){ return new Resolved(null, e, deadline(cfg.getNegativeTtl()), null, null); }
+
+  // r is null when the fetch failed
+  private Resolved recordFetch(Resolved r, long start){
+    Timer.builder("smart.discovery.fetch").tag("source", r==null||r.source()==null?"none":r.source()).tag("outcome", r!=null&&r.endpoints()!=null?"ok":"error")
+        .register(meters).record(System.nanoTime()-start, TimeUnit.NANOSECONDS);
+    return r;
+  }
+
+  private Resolved wellKnown(String base, Resolved previous){
     try{
-      HttpResponse<String> r=HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(base+"/metadata")).GET().build(), HttpResponse.BodyHandlers.ofString());
-      if(r.statusCode()/100!=2) throw new IllegalStateException("No SMART discovery and /metadata failed: "+r.statusCode());
-      JsonNode root=M.readTree(r.body()); JsonNode rests=root.path("rest"); if(rests.isArray()&&rests.size()>0){ JsonNode exts=rests.get(0).path("security").path("extension"); if(exts.isArray()) for(JsonNode ext: exts){ if(ext.path("url").asText("").contains("oauth-uris")){ String auth=null, tok=null; for(JsonNode e: ext.path("extension")){ String k=e.path("url").asText(""); String v=e.path("valueUri").asText(""); if(k.endsWith("authorize")) auth=v; if(k.endsWith("token")) tok=v; } if(auth!=null&&tok!=null) return new SmartEndpoints(URI.create(auth), URI.create(tok)); } } }
-      throw new IllegalStateException("SMART endpoints not found in CapabilityStatement");
-    }catch(Exception e){ throw new RuntimeException(e); }
+      return wellKnown(http.send(conditional(base+"/.well-known/smart-configuration", previous, "well-known"), HttpResponse.BodyHandlers.ofByteArray()), previous);
+    }catch(Exception ignore){
+      return null;
+    }
+  }
+
+  private Resolved wellKnown(HttpResponse<byte[]> r, Resolved previous){
+    try{
+      if(r.statusCode()==304) return previous.renew(ttl(r.headers()));
+      if(r.statusCode()/100==2){ JsonNode j=M.readTree(r.body()); String a=j.path("authorization_endpoint").asText(null); String t=j.path("token_endpoint").asText(null); if(a!=null&&t!=null) return new Resolved(new SmartEndpoints(URI.create(a), URI.create(t)), null, ttl(r.headers()), r.headers().firstValue("ETag").orElse(null), "well-known"); }
+    }catch(Exception ignore){}
+    return null;
+  }
+
+  private Resolved metadata(String base, Resolved previous) throws Exception {
+    try(HttpTransport.Exchange x=http.open(conditional(base+"/metadata", previous, "metadata")); InputStream in=x.response().body()){
+      return metadata(x.response().statusCode(), x.response().headers(), in, previous);
+    }
+  }
+
+  private Resolved metadata(int status, HttpHeaders headers, InputStream in, Resolved previous) throws Exception {
+    if(status==304) return previous.renew(ttl(headers));
+    if(status/100!=2) throw new IllegalStateException("No SMART discovery and /metadata failed: "+status);
+    SmartEndpoints ep=fromCapabilityStatement(in);
+    if(ep==null) throw new IllegalStateException("SMART endpoints not found in CapabilityStatement");
+    return new Resolved(ep, null, ttl(headers), headers.firstValue("ETag").orElse(null), "metadata");
+  }
+
+  /** authorize/token URIs from the oauth-uris extension on {@code rest[0].security}, or null if there is none. */
+  public static SmartEndpoints fromCapabilityStatement(InputStream in) throws java.io.IOException {
+    JsonNode root=M.readTree(in); JsonNode rests=root.path("rest"); if(rests.isArray()&&rests.size()>0){ JsonNode exts=rests.get(0).path("security").path("extension"); if(exts.isArray()) for(JsonNode ext: exts){ if(ext.path("url").asText("").contains("oauth-uris")){ String auth=null, tok=null; for(JsonNode e: ext.path("extension")){ String k=e.path("url").asText(""); String v=e.path("valueUri").asText(""); if(k.endsWith("authorize")) auth=v; if(k.endsWith("token")) tok=v; } if(auth!=null&&tok!=null) return new SmartEndpoints(URI.create(auth), URI.create(tok)); } } }
+    return null;
+  }
+
+  private static HttpRequest conditional(String url, Resolved previous, String source){
+    HttpRequest.Builder b=HttpRequest.newBuilder(URI.create(url)).header("Accept", "application/json").GET();
+    if(previous!=null && previous.etag()!=null && source.equals(previous.source())) b.header("If-None-Match", previous.etag());
+    return b.build();
+  }
+
+  /** Expiry deadline from Cache-Control (max-age / no-cache / no-store), else the configured TTL; capped at maxTtl. */
+  private long ttl(HttpHeaders h){
+    Duration ttl=cfg.getTtl();
+    for(String v: h.allValues("Cache-Control")) for(String d: v.split(",")){
+      d=d.trim().toLowerCase(Locale.ROOT);
+      if(d.equals("no-store") || d.equals("no-cache")) ttl=Duration.ZERO;
+      else if(d.startsWith("max-age=")) try{ ttl=Duration.ofSeconds(Long.parseLong(d.substring(8))); }catch(NumberFormatException ignore){}
+    }
+    if(ttl.compareTo(cfg.getMaxTtl())>0) ttl=cfg.getMaxTtl();
+    return deadline(ttl);
+  }
+
+  private static long deadline(Duration ttl){ return System.nanoTime()+ttl.toNanos(); }
+
+  private static boolean isFresh(CompletableFuture<Resolved> f){ return f.isDone() && !f.isCompletedExceptionally() && f.join().expiresAtNanos()-System.nanoTime()>0; }
+
+  // expired and failed lookups first, then the fresh ones closest to expiry until maxEntries remain; in-flight ones stay
+  private void evict(){
+    cache.values().removeIf(f->f.isDone() && !isFresh(f));
+    int over=cache.size()-cfg.getMaxEntries();
+    if(over<=0) return;
+    cache.entrySet().stream().filter(e->isFresh(e.getValue()))
+        .sorted(Comparator.comparingLong((Map.Entry<String, CompletableFuture<Resolved>> e)->e.getValue().join().expiresAtNanos()))
+        .limit(over).toList().forEach(e->cache.remove(e.getKey(), e.getValue()));
+  }
+
+  private record Resolved(SmartEndpoints endpoints, Exception error, long expiresAtNanos, String etag, String source){
+    Resolved renew(long expiresAtNanos){ return new Resolved(endpoints, null, expiresAtNanos, etag, source); }
+    SmartEndpoints unwrap(){ if(error!=null) throw new RuntimeException(error); return endpoints; }
+    CompletableFuture<SmartEndpoints> unwrapAsync(){ return error!=null?CompletableFuture.failedFuture(new RuntimeException(error)):CompletableFuture.completedFuture(endpoints); }
   }
+
   public static record SmartEndpoints(URI authorizationEndpoint, URI tokenEndpoint){}
 }
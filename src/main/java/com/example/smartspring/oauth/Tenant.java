@@ -0,0 +1,9 @@
+package com.example.smartspring.oauth;
+
+import com.example.smartspring.oauth.SmartDiscoveryService.SmartEndpoints;
+
+/**
+ * A registered issuer: the client id the app is registered under there and the scopes it asks for. {@code endpoints}
+ * is set only when pinned in configuration; otherwise they come from discovery.
+ */
+public record Tenant(String issuer, String clientId, String scopes, SmartEndpoints endpoints) {}
@@ -0,0 +1,275 @@
+package com.example.smartspring.oauth;
+
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.oauth.SmartDiscoveryService.SmartEndpoints;
+import com.example.smartspring.service.FhirClientRegistry;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The issuers this app serves ({@code smart.tenants}), keyed by normalized issuer. Lookups read an immutable
+ * snapshot, so refusing an unknown {@code iss} costs a map lookup and nothing goes upstream or into the session store.
+ * <p>
+ * On {@link ApplicationReadyEvent} every tenant is discovered and validated in parallel and its HAPI client built;
+ * readiness is only reported once that is done (or {@code prewarmTimeout} passes), so a tenant's first launch finds
+ * its endpoints cached and a pooled connection to its server. The tenants file is polled and swapped in when it
+ * changes; new and changed tenants are prewarmed the same way, and a file that fails to parse leaves the registry as is.
+ */
+@Component
+public class TenantRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(TenantRegistry.class);
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final AppProperties props;
+    private final AppProperties.Tenants cfg;
+    private final SmartDiscoveryService discovery;
+    private final FhirClientRegistry clients;
+    private final Counter rejected;
+    private final Map<String, Boolean> valid = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tenant-reload");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Map<String, Tenant> tenants;
+    private volatile Object fileStamp;
+
+    public TenantRegistry(AppProperties props, SmartDiscoveryService discovery, FhirClientRegistry clients, MeterRegistry meters) {
+        this.props = props;
+        this.cfg = props.getTenants();
+        this.discovery = discovery;
+        this.clients = clients;
+        this.fileStamp = stamp();
+        this.tenants = load();
+        this.rejected = meters.counter("smart.tenants.rejected");
+        meters.gauge("smart.tenants", Tags.of("state", "registered"), this, r -> r.tenants.size());
+        meters.gauge("smart.tenants", Tags.of("state", "invalid"), this,
+                r -> r.tenants.keySet().stream().filter(k -> Boolean.FALSE.equals(r.valid.get(k))).count());
+    }
+
+    /** The tenant for {@code iss}, or null if it is not registered. */
+    public Tenant find(String iss) {
+        return iss == null || iss.isBlank() ? null : tenants.get(SmartDiscoveryService.normalizeIssuer(iss));
+    }
+
+    /**
+     * The tenant for {@code iss}; an unregistered issuer is a 403, unless {@code allowUnregistered}, in which case it
+     * gets the default client id and scopes.
+     */
+    public Tenant require(String iss) {
+        Tenant t = find(iss);
+        if (t != null) return t;
+        if (cfg.isAllowUnregistered() && iss != null && !iss.isBlank()) {
+            return new Tenant(SmartDiscoveryService.normalizeIssuer(iss), props.getClientId(), props.getScopes(), null);
+        }
+        rejected.increment();
+        throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Unregistered issuer");
+    }
+
+    public Collection<Tenant> all() {
+        return tenants.values();
+    }
+
+    /**
+     * Pinned endpoints, else discovered ones (cached per issuer by {@link SmartDiscoveryService}). They are checked on
+     * every call, so a launch is never sent to a relative or plain-http endpoint (a 502 instead) and a tenant marked
+     * invalid recovers as soon as discovery returns good ones.
+     */
+    public SmartEndpoints endpoints(Tenant t) {
+        return checked(t, t.endpoints() != null ? t.endpoints() : discovery.discover(t.issuer()));
+    }
+
+    public CompletableFuture<SmartEndpoints> endpointsAsync(Tenant t) {
+        return (t.endpoints() != null ? CompletableFuture.completedFuture(t.endpoints()) : discovery.discoverAsync(t.issuer()))
+                .thenApply(ep -> checked(t, ep));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        prewarm(tenants.values());
+        if (cfg.getFile() != null && !cfg.getFile().isBlank()) {
+            long every = cfg.getReloadInterval().toMillis();
+            reloader.scheduleWithFixedDelay(this::reload, every, every, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        reloader.shutdownNow();
+    }
+
+    /** Swaps in the tenants file if it changed since it was last read, prewarming tenants that are new or changed. */
+    public void reload() {
+        Object stamp = stamp();
+        if (Objects.equals(stamp, fileStamp)) return;
+        Map<String, Tenant> next;
+        try {
+            next = load();
+        } catch (RuntimeException e) {
+            // most likely caught mid-write; the next check tries again
+            log.warn("Keeping {} tenant(s); could not load {}: {}", tenants.size(), cfg.getFile(), e.toString());
+            return;
+        }
+        Map<String, Tenant> previous = tenants;
+        List<Tenant> changed = new ArrayList<>();
+        for (Tenant t : next.values()) {
+            if (!t.equals(previous.get(t.issuer()))) changed.add(t);
+        }
+        tenants = next;
+        fileStamp = stamp;
+        valid.keySet().retainAll(next.keySet());
+        log.info("Reloaded tenants: {} registered, {} new or changed, {} removed", next.size(), changed.size(),
+                previous.keySet().stream().filter(k -> !next.containsKey(k)).count());
+        prewarm(changed);
+    }
+
+    // discovery (which also opens a pooled connection to the issuer), endpoint checks and the HAPI client, in parallel
+    private void prewarm(Collection<Tenant> batch) {
+        if (batch.isEmpty()) return;
+        long start = System.nanoTime();
+        Semaphore permits = new Semaphore(Math.max(1, cfg.getPrewarmConcurrency()));
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (Tenant t : batch) {
+            tasks.add(() -> {
+                permits.acquire();
+                try {
+                    return warm(t);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+        int ok = 0;
+        try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Future<Boolean> f : exec.invokeAll(tasks, cfg.getPrewarmTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                if (f.state() == Future.State.SUCCESS && f.resultNow()) ok++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Prewarmed {}/{} tenant(s) in {} ms", ok, batch.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private boolean warm(Tenant t) {
+        try {
+            endpoints(t);
+            if (cfg.isPrewarmClients()) clients.client(t.issuer());
+            return true;
+        } catch (RuntimeException e) {
+            valid.put(t.issuer(), false);
+            log.warn("Tenant {} failed validation: {}", t.issuer(), e.toString());
+            return false;
+        }
+    }
+
+    private SmartEndpoints checked(Tenant t, SmartEndpoints ep) {
+        // only registered tenants are tracked; allowUnregistered issuers would grow the map without bound
+        boolean registered = tenants.containsKey(t.issuer());
+        try {
+            check(t.issuer(), "authorization_endpoint", ep.authorizationEndpoint());
+            check(t.issuer(), "token_endpoint", ep.tokenEndpoint());
+        } catch (IllegalStateException e) {
+            if (registered) valid.put(t.issuer(), false);
+            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Issuer " + t.issuer() + ": " + e.getMessage());
+        }
+        if (registered) valid.put(t.issuer(), true);
+        return ep;
+    }
+
+    // absolute, and https unless the server itself is on this machine
+    private static void check(String issuer, String name, URI endpoint) {
+        if (endpoint == null || !endpoint.isAbsolute() || endpoint.getHost() == null) {
+            throw new IllegalStateException(name + " is not an absolute URL: " + endpoint);
+        }
+        if (!"https".equalsIgnoreCase(endpoint.getScheme()) && !loopback(endpoint) && !loopback(URI.create(issuer))) {
+            throw new IllegalStateException(name + " is not https: " + endpoint);
+        }
+    }
+
+    private static boolean loopback(URI u) {
+        return Set.of("localhost", "127.0.0.1", "[::1]").contains(String.valueOf(u.getHost()));
+    }
+
+    // the default tenant, then smart.tenants.issuers, then the file; a later entry for the same issuer wins
+    private Map<String, Tenant> load() {
+        Map<String, Tenant> m = new HashMap<>();
+        if (props.getFhirBase() != null && !props.getFhirBase().isBlank()) {
+            Tenant t = new Tenant(SmartDiscoveryService.normalizeIssuer(props.getFhirBase()), props.getClientId(), props.getScopes(), null);
+            m.put(t.issuer(), t);
+        }
+        for (AppProperties.Tenants.Issuer i : cfg.getIssuers()) add(m, i);
+        if (cfg.getFile() != null && !cfg.getFile().isBlank()) {
+            try {
+                for (AppProperties.Tenants.Issuer i : JSON.readValue(Path.of(cfg.getFile()).toFile(),
+                        new TypeReference<List<AppProperties.Tenants.Issuer>>() {})) {
+                    add(m, i);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read tenants file " + cfg.getFile(), e);
+            }
+        }
+        return Map.copyOf(m);
+    }
+
+    private void add(Map<String, Tenant> m, AppProperties.Tenants.Issuer i) {
+        Tenant t = tenant(i);
+        m.put(t.issuer(), t);
+    }
+
+    private Tenant tenant(AppProperties.Tenants.Issuer i) {
+        if (i.getIssuer() == null || i.getIssuer().isBlank()) throw new IllegalStateException("Tenant without an issuer");
+        URI iss = URI.create(i.getIssuer().trim());
+        if (!iss.isAbsolute() || iss.getHost() == null) throw new IllegalStateException("Tenant issuer is not an absolute URL: " + iss);
+        String clientId = i.getClientId() != null ? i.getClientId() : props.getClientId();
+        if (clientId == null || clientId.isBlank()) throw new IllegalStateException("Tenant " + iss + " has no clientId");
+        SmartEndpoints pinned = i.getAuthorizationEndpoint() != null && i.getTokenEndpoint() != null
+                ? new SmartEndpoints(URI.create(i.getAuthorizationEndpoint()), URI.create(i.getTokenEndpoint())) : null;
+        return new Tenant(SmartDiscoveryService.normalizeIssuer(iss.toString()), clientId,
+                i.getScopes() != null ? i.getScopes() : props.getScopes(), pinned);
+    }
+
+    // modification time and size of the tenants file, or null if there is none
+    private Object stamp() {
+        if (cfg.getFile() == null || cfg.getFile().isBlank()) return null;
+        try {
+            BasicFileAttributes a = Files.readAttributes(Path.of(cfg.getFile()), BasicFileAttributes.class);
+            return List.of(a.lastModifiedTime(), a.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.smartspring.oauth;
+
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.oauth.TokenService.TokenSet;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps each session's tokens fresh. Refreshes are single-flight per session on this node, so parallel requests
+ * (and rotating refresh tokens) see one call to the token endpoint, and a scheduler renews tokens shortly before
+ * they expire so user requests rarely have to wait. The token set itself lives in the {@link SmartSessions} store;
+ * a refresh re-reads it first, so a token another node already renewed is picked up instead of refreshed again.
+ * Entries are dropped on logout, after the session idle timeout, or once an expired token's stored session is gone.
+ */
+@Component
+public class TokenManager {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenManager.class);
+
+    private final TokenService tokenService;
+    private final SmartSessions store;
+    private final AppProperties.Tokens cfg;
+    private final long idleTimeoutMs;
+    private final MeterRegistry meters;
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService refreshers = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "token-renewal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public TokenManager(TokenService tokenService, SmartSessions store, AppProperties props, MeterRegistry meters) {
+        this.tokenService = tokenService;
+        this.store = store;
+        this.cfg = props.getTokens();
+        this.idleTimeoutMs = props.getSession().getIdleTimeout().toMillis();
+        this.meters = meters;
+        meters.gaugeMapSize("smart.token.sessions", Tags.empty(), sessions);
+        long sweepMs = Math.min(Math.max(idleTimeoutMs / 2, 1000), 60_000);
+        scheduler.scheduleWithFixedDelay(this::sweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Starts renewing a session that just finished the authorization code flow (already saved to the store). */
+    public void register(String sessionId, SmartSession session) {
+        Entry old = sessions.remove(sessionId);
+        if (old != null) old.cancelRenewal();
+        if (!refreshable(session)) return;
+        Entry e = new Entry(session);
+        sessions.put(sessionId, e);
+        scheduleRenewal(sessionId, e);
+    }
+
+    /** A usable access token for the session, refreshing first if it is about to expire; null if not logged in. */
+    public String accessToken(String sessionId, SmartSession session) {
+        try {
+            return accessTokenAsync(sessionId, session).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException re) throw re;
+            throw ex;
+        }
+    }
+
+    /** {@link #accessToken} without waiting: already complete unless this request has to refresh. */
+    public CompletableFuture<String> accessTokenAsync(String sessionId, SmartSession session) {
+        if (sessionId == null || !session.authenticated()) return CompletableFuture.completedFuture(null);
+        Entry e = sessions.get(sessionId);
+        if (e != null) {
+            e.lastUsed = System.currentTimeMillis();
+            // this node may hold a newer token than the copy the request loaded
+            if (e.session.expiresEpochSeconds() > session.expiresEpochSeconds()) session = e.session;
+        }
+        if (!expiresWithin(session, cfg.getRefreshSkew().toSeconds())) return CompletableFuture.completedFuture(session.accessToken());
+        if (e == null) {
+            Entry fresh = new Entry(session);
+            e = sessions.putIfAbsent(sessionId, fresh);
+            if (e == null) e = fresh;
+        }
+        return refresh(sessionId, e, "request").thenApply(SmartSession::accessToken);
+    }
+
+    public void remove(String sessionId) {
+        Entry e = sessions.remove(sessionId);
+        if (e != null) e.cancelRenewal();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        scheduler.shutdownNow();
+        refreshers.shutdownNow();
+    }
+
+    private CompletableFuture<SmartSession> refresh(String sessionId, Entry e, String trigger) {
+        synchronized (e) {
+            if (e.inFlight != null) return e.inFlight;
+            CompletableFuture<SmartSession> f = CompletableFuture.supplyAsync(() -> doRefresh(sessionId, e, trigger), refreshers);
+            e.inFlight = f;
+            f.whenComplete((s, err) -> {
+                synchronized (e) {
+                    e.inFlight = null;
+                }
+                if (sessions.get(sessionId) != e) return;
+                if (err == null) scheduleRenewal(sessionId, e);
+                else if (cfg.isBackgroundRenewal() && e.session.expiresEpochSeconds() > Instant.now().getEpochSecond()) {
+                    schedule(sessionId, e, cfg.getRetryDelay().toMillis());
+                }
+            });
+            return f;
+        }
+    }
+
+    private SmartSession doRefresh(String sessionId, Entry e, String trigger) {
+        SmartSession current = store.load(sessionId);
+        if (current == null || !current.authenticated()) {
+            sessions.remove(sessionId, e);
+            throw new IllegalStateException("Session is no longer stored");
+        }
+        if (!expiresWithin(current, cfg.getRefreshSkew().toSeconds())) {
+            e.session = current;
+            record(trigger, "reused", System.nanoTime());
+            return current;
+        }
+        long start = System.nanoTime();
+        try {
+            TokenSet ts = tokenService.refresh(URI.create(current.tokenEndpoint()), current.clientId(), current.refreshToken());
+            SmartSession updated = current.withTokens(current.clientId(), ts);
+            store.save(sessionId, updated);
+            e.session = updated;
+            record(trigger, "ok", start);
+            return updated;
+        } catch (RuntimeException ex) {
+            record(trigger, "error", start);
+            log.warn("Token refresh ({}) failed against {}: {}", trigger, current.tokenEndpoint(), ex.toString());
+            throw ex;
+        }
+    }
+
+    private void scheduleRenewal(String sessionId, Entry e) {
+        if (!cfg.isBackgroundRenewal()) return;
+        SmartSession s = e.session;
+        if (s.expiresEpochSeconds() <= 0 || s.refreshToken() == null) return;
+        long jitterMs = cfg.getRenewJitter().toMillis() > 0 ? ThreadLocalRandom.current().nextLong(cfg.getRenewJitter().toMillis()) : 0;
+        long dueMs = s.expiresEpochSeconds() * 1000 - cfg.getRenewLead().toMillis() - jitterMs - System.currentTimeMillis();
+        schedule(sessionId, e, Math.max(dueMs, 0));
+    }
+
+    private void schedule(String sessionId, Entry e, long delayMs) {
+        e.cancelRenewal();
+        e.renewal = scheduler.schedule(() -> {
+            if (sessions.get(sessionId) != e) return;
+            // nobody has used the session for a while; stop renewing and let the stored record age out
+            if (System.currentTimeMillis() - e.lastUsed > idleTimeoutMs) {
+                sessions.remove(sessionId, e);
+                return;
+            }
+            refresh(sessionId, e, "background");
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // drops entries nobody used within the idle timeout, whether or not a renewal is pending, and entries whose token
+    // expired without being renewed (renewal off, or the last refresh failed) once the stored session is gone
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        sessions.forEach((sessionId, e) -> {
+            boolean drop = now - e.lastUsed > idleTimeoutMs;
+            if (!drop && e.session.expiresEpochSeconds() * 1000 < now) {
+                try {
+                    SmartSession stored = store.load(sessionId);
+                    drop = stored == null || !stored.authenticated();
+                } catch (RuntimeException ex) {
+                    log.debug("Session store unavailable during sweep: {}", ex.toString());
+                }
+            }
+            if (drop && sessions.remove(sessionId, e)) e.cancelRenewal();
+        });
+    }
+
+    private void record(String trigger, String outcome, long startNanos) {
+        Timer.builder("smart.token.refresh").tag("trigger", trigger).tag("outcome", outcome)
+                .register(meters).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean refreshable(SmartSession s) {
+        return s.authenticated() && s.refreshToken() != null && s.tokenEndpoint() != null;
+    }
+
+    private static boolean expiresWithin(SmartSession s, long seconds) {
+        long exp = s.expiresEpochSeconds();
+        return exp > 0 && refreshable(s) && Instant.now().getEpochSecond() > exp - seconds;
+    }
+
+    private static final class Entry {
+        volatile SmartSession session;
+        volatile long lastUsed = System.currentTimeMillis();
+        CompletableFuture<SmartSession> inFlight;
+        volatile ScheduledFuture<?> renewal;
+
+        Entry(SmartSession session) {
+            this.session = session;
+        }
+
+        void cancelRenewal() {
+            ScheduledFuture<?> r = renewal;
+            if (r != null) r.cancel(false);
+        }
+    }
+}
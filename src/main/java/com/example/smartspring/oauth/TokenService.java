@@ -1,6 +1,11 @@
 package com.example.smartspring.oauth;
 
+import com.example.smartspring.http.HttpTransport;
+import com.example.smartspring.http.Upstream;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.oauth2.sdk.*;
+import com.nimbusds.oauth2.sdk.auth.PrivateKeyJWT;
 import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
@@ -9,70 +14,112 @@ import com.nimbusds.oauth2.sdk.token.RefreshToken;
 import org.springframework.stereotype.Service;
 
 import java.net.URI;
+import java.security.PrivateKey;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class TokenService {
 
+  private final HttpTransport http;
+  private final Upstream upstream;
+
+  public TokenService(HttpTransport http, Upstream upstream) {
+    this.http = http;
+    this.upstream = upstream;
+  }
+
   public TokenSet exchangeCode(URI tokenEndpoint, String clientId, String redirectUri,
                                AuthorizationCode code, CodeVerifier verifier) {
-    try {
-      AuthorizationGrant codeGrant = new AuthorizationCodeGrant(code, new URI(redirectUri), verifier);
+    AuthorizationGrant codeGrant = new AuthorizationCodeGrant(code, URI.create(redirectUri), verifier);
+
+    // Client Public (PKCE): use ClientID
+    TokenRequest req = new TokenRequest(tokenEndpoint, new ClientID(clientId), codeGrant);
 
-      // Client Public (PKCE): use ClientID
-      TokenRequest req = new TokenRequest(tokenEndpoint, new ClientID(clientId), codeGrant);
+    return upstream.call("token.code", tokenEndpoint.toString(), () -> send(req, "Token error"));
+  }
 
-      HTTPResponse httpResp = req.toHTTPRequest().send();
-      TokenResponse tr = TokenResponse.parse(httpResp);
-      if (!tr.indicatesSuccess()) {
-        throw new RuntimeException("Token error: " + tr.toErrorResponse().getErrorObject());
+  /** Non-blocking {@link #exchangeCode}, for {@code smart.web.mode: ASYNC}. */
+  public CompletableFuture<TokenSet> exchangeCodeAsync(URI tokenEndpoint, String clientId, String redirectUri,
+                                                       AuthorizationCode code, CodeVerifier verifier) {
+    AuthorizationGrant codeGrant = new AuthorizationCodeGrant(code, URI.create(redirectUri), verifier);
+    TokenRequest req = new TokenRequest(tokenEndpoint, new ClientID(clientId), codeGrant);
+    return upstream.callAsync("token.code", tokenEndpoint.toString(), () -> http.sendAsync(req.toHTTPRequest()).thenApply(httpResp -> {
+      try {
+        return parse(httpResp, "Token error");
+      } catch (ParseException e) {
+        throw new RuntimeException(e);
       }
+    }));
+  }
 
-      AccessTokenResponse ok = tr.toSuccessResponse();
-      AccessToken at = ok.getTokens().getAccessToken();
-      RefreshToken rt = ok.getTokens().getRefreshToken();
+  public TokenSet refresh(URI tokenEndpoint, String clientId, String refreshToken) {
+    RefreshTokenGrant grant = new RefreshTokenGrant(new RefreshToken(refreshToken));
+    TokenRequest req = new TokenRequest(tokenEndpoint, new ClientID(clientId), grant);
 
-      long expSec = at.getLifetime();
-      long expEpoch = expSec > 0 ? (System.currentTimeMillis() / 1000) + expSec : 0;
+    // unwrapped, so an unavailable token endpoint stays a 503
+    TokenSet t = upstream.call("token.refresh", tokenEndpoint.toString(), () -> send(req, "Refresh error"));
 
-      // SMART v2: the AS can return "patient" in the token response
-      String patientId = null;
-      Map<String, Object> extras = ok.getCustomParameters();
-      if (extras != null && extras.get("patient") != null) {
-        patientId = String.valueOf(extras.get("patient"));
-      }
+    // The refresh typically doesn't return the new patient; maintain the one stored in session.
+    return new TokenSet(t.accessToken(), t.refreshToken() == null ? refreshToken : t.refreshToken(), t.expiresEpochSeconds(), t.tokenType(), null, t.scope());
+  }
 
-      return new TokenSet(at.getValue(), rt == null ? null : rt.getValue(), expEpoch, at.getType().getValue(), patientId);
-    } catch (Exception e) {
+  /**
+   * SMART backend services: a client_credentials grant authenticated with a signed JWT assertion
+   * (private_key_jwt, RS384/ES384). No refresh token is issued; ask again when the token expires.
+   */
+  public TokenSet clientCredentials(URI tokenEndpoint, String clientId, PrivateKey key, String keyId,
+                                    JWSAlgorithm alg, String scope) {
+    PrivateKeyJWT assertion;
+    try {
+      // five-minute assertion with a random jti, as the SMART profile requires
+      assertion = new PrivateKeyJWT(new ClientID(clientId), tokenEndpoint, alg, key, keyId, null);
+    } catch (JOSEException e) {
       throw new RuntimeException(e);
     }
+    TokenRequest req = new TokenRequest(tokenEndpoint, assertion, new ClientCredentialsGrant(), Scope.parse(scope));
+
+    TokenSet t = upstream.call("token.client_credentials", tokenEndpoint.toString(), () -> send(req, "Client credentials error"));
+    return new TokenSet(t.accessToken(), null, t.expiresEpochSeconds(), t.tokenType(), null, t.scope());
   }
 
-  public TokenSet refresh(URI tokenEndpoint, String clientId, String refreshToken) {
+  private TokenSet send(TokenRequest req, String errorPrefix) {
     try {
-      RefreshTokenGrant grant = new RefreshTokenGrant(new RefreshToken(refreshToken));
-      TokenRequest req = new TokenRequest(tokenEndpoint, new ClientID(clientId), grant);
+      return parse(req.toHTTPRequest().send(http.nimbusSender()), errorPrefix);
+    } catch (java.io.IOException | ParseException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      HTTPResponse httpResp = req.toHTTPRequest().send();
-      TokenResponse tr = TokenResponse.parse(httpResp);
-      if (!tr.indicatesSuccess()) {
-        throw new RuntimeException("Refresh error: " + tr.toErrorResponse().getErrorObject());
-      }
+  /** Maps a token endpoint response, throwing with {@code errorPrefix} and the OAuth error when it is not a success. */
+  public static TokenSet parse(HTTPResponse httpResp, String errorPrefix) throws ParseException {
+    TokenResponse tr = TokenResponse.parse(httpResp);
+    if (!tr.indicatesSuccess()) {
+      throw new RuntimeException(errorPrefix + ": " + tr.toErrorResponse().getErrorObject());
+    }
 
-      AccessTokenResponse ok = tr.toSuccessResponse();
-      AccessToken at = ok.getTokens().getAccessToken();
-      RefreshToken rt = ok.getTokens().getRefreshToken();
+    AccessTokenResponse ok = tr.toSuccessResponse();
+    AccessToken at = ok.getTokens().getAccessToken();
+    RefreshToken rt = ok.getTokens().getRefreshToken();
 
-      long expSec = at.getLifetime();
-      long expEpoch = expSec > 0 ? (System.currentTimeMillis() / 1000) + expSec : 0;
+    long expSec = at.getLifetime();
+    long expEpoch = expSec > 0 ? (System.currentTimeMillis() / 1000) + expSec : 0;
 
-      // The refresh typically doesn't return the new patient; maintain the one stored in session.
-      return new TokenSet(at.getValue(), rt == null ? refreshToken : rt.getValue(), expEpoch, at.getType().getValue(), null);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    // SMART v2: the AS can return "patient" in the token response
+    String patientId = null;
+    Map<String, Object> extras = ok.getCustomParameters();
+    if (extras != null && extras.get("patient") != null) {
+      patientId = String.valueOf(extras.get("patient"));
     }
+
+    return new TokenSet(at.getValue(), rt == null ? null : rt.getValue(), expEpoch, at.getType().getValue(), patientId, scope(at));
+  }
+
+  // granted scope as returned by the AS; null when the response omits it (meaning: same as requested / unchanged)
+  private static String scope(AccessToken at) {
+    return at.getScope() == null ? null : at.getScope().toString();
   }
 
   public static record TokenSet(String accessToken, String refreshToken, long expiresEpochSeconds,
-                                String tokenType, String patientId) {}
+                                String tokenType, String patientId, String scope) {}
 }
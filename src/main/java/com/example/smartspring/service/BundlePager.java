@@ -0,0 +1,74 @@
+package com.example.smartspring.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks a searchset by following {@code link[next]}. While the caller works on one page the next one is
+ * already being fetched, so at most two pages are held at a time no matter how large the result set is.
+ */
+final class BundlePager implements Iterator<Bundle> {
+
+    private static final ExecutorService EXEC = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final UnaryOperator<Bundle> loadNext;
+    private Bundle ready;
+    private CompletableFuture<Bundle> pending;
+
+    BundlePager(Bundle first, UnaryOperator<Bundle> loadNext) {
+        this.loadNext = loadNext;
+        this.ready = first;
+        this.pending = prefetch(first);
+    }
+
+    static Stream<Bundle> stream(Bundle first, UnaryOperator<Bundle> loadNext) {
+        BundlePager pager = new BundlePager(first, loadNext);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pager, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pager::cancel);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready != null) return true;
+        if (pending == null) return false;
+        try {
+            ready = pending.join();
+        } catch (CompletionException e) {
+            pending = null;
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+        pending = prefetch(ready);
+        return ready != null;
+    }
+
+    @Override
+    public Bundle next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Bundle out = ready;
+        ready = null;
+        return out;
+    }
+
+    void cancel() {
+        if (pending != null) pending.cancel(true);
+        pending = null;
+        ready = null;
+    }
+
+    private CompletableFuture<Bundle> prefetch(Bundle page) {
+        if (page == null || page.getLink(Bundle.LINK_NEXT) == null) return null;
+        return CompletableFuture.supplyAsync(() -> loadNext.apply(page), EXEC);
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.smartspring.service;
+
+import com.example.smartspring.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide (system, code) → display table. The same RxNorm code shows up across many requests and patients;
+ * handing back one shared String for it keeps rendered pages from holding a copy per entry. Lookups go through
+ * nested maps so they need no composite key. Once {@code maxEntries} is reached new codes are passed through.
+ */
+@Component
+public class CodeDisplayCache {
+
+    private final Map<String, Map<String, String>> bySystem = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxEntries;
+
+    @Autowired
+    public CodeDisplayCache(AppProperties props, MeterRegistry meters) {
+        this(props.getSummary().getDisplayCacheSize());
+        meters.gauge("smart.display.cache.size", Tags.empty(), size);
+    }
+
+    public CodeDisplayCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /** The cached String equal to {@code display} for this code, caching it first if there is none yet. */
+    public String intern(String system, String code, String display) {
+        if (code == null || display == null) return display;
+        String sys = system == null ? "" : system;
+        Map<String, String> codes = bySystem.get(sys);
+        if (codes != null) {
+            String cached = codes.get(code);
+            if (cached != null && cached.equals(display)) return cached;
+        }
+        if (size.get() >= maxEntries) return display;
+        if (codes == null) codes = bySystem.computeIfAbsent(sys, s -> new ConcurrentHashMap<>());
+        // a server may relabel a code; the latest display wins
+        if (codes.put(code, display) == null) size.incrementAndGet();
+        return display;
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
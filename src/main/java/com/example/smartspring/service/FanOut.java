@@ -0,0 +1,142 @@
+package com.example.smartspring.service;
+
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Runs independent upstream calls concurrently on virtual threads. Every call gets its own timeout, bounded by an
+ * overall deadline; a failed or late critical call fails the whole fan-out, a non-critical one is just left out
+ * of the {@link Results}.
+ */
+public final class FanOut {
+
+    // calls see the submitting thread's observation (and so trace context), so their spans nest under the request
+    private static final ExecutorService EXEC = ContextExecutorService.wrap(Executors.newVirtualThreadPerTaskExecutor(),
+            ContextSnapshotFactory.builder().build()::captureAll);
+
+    private FanOut() {}
+
+    public record Call<T>(String name, boolean critical, Duration timeout, Supplier<T> task) {}
+
+    public static Results run(List<Call<?>> calls, Duration deadline) {
+        long end = System.nanoTime() + deadline.toNanos();
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        // each call's timeout runs from its submission, not from when the loop below gets round to it
+        Map<String, Long> callEnds = new LinkedHashMap<>();
+        for (Call<?> c : calls) {
+            long submitted = System.nanoTime();
+            futures.put(c.name(), EXEC.submit(c.task()::get));
+            callEnds.put(c.name(), Math.min(submitted + c.timeout().toNanos(), end));
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        try {
+            for (Call<?> c : calls) {
+                Future<?> f = futures.get(c.name());
+                long wait = callEnds.get(c.name()) - System.nanoTime();
+                try {
+                    values.put(c.name(), f.get(Math.max(wait, 0), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    f.cancel(true);
+                    if (c.critical()) throw new RuntimeException("Timed out waiting for " + c.name(), e);
+                    failures.put(c.name(), e);
+                } catch (ExecutionException e) {
+                    if (c.critical()) {
+                        if (e.getCause() instanceof RuntimeException re) throw re;
+                        throw new RuntimeException(e.getCause());
+                    }
+                    failures.put(c.name(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            // anything still running after a critical failure is no longer wanted
+            futures.values().forEach(f -> f.cancel(true));
+        }
+        return new Results(values, failures);
+    }
+
+    /** A call that is already asynchronous, for {@link #runAsync}. */
+    public record AsyncCall<T>(String name, boolean critical, Duration timeout, Supplier<CompletableFuture<T>> task) {}
+
+    /**
+     * {@link #run} without a waiting thread: same per-call timeouts under the deadline and the same critical /
+     * non-critical handling. The result fails as soon as a critical call does.
+     */
+    public static CompletableFuture<Results> runAsync(List<AsyncCall<?>> calls, Duration deadline) {
+        CompletableFuture<Results> out = new CompletableFuture<>();
+        Map<String, CompletableFuture<?>> futures = new LinkedHashMap<>();
+        for (AsyncCall<?> c : calls) {
+            long timeout = Math.min(c.timeout().toNanos(), deadline.toNanos());
+            CompletableFuture<?> f;
+            try {
+                f = c.task().get().orTimeout(timeout, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                f = CompletableFuture.failedFuture(e);
+            }
+            futures.put(c.name(), f);
+            if (c.critical()) f.whenComplete((v, e) -> {
+                if (e != null) out.completeExceptionally(criticalFailure(c.name(), e));
+            });
+        }
+        CompletableFuture.allOf(futures.values().stream().map(f -> f.handle((v, e) -> null)).toArray(CompletableFuture[]::new))
+                .thenRun(() -> {
+                    Map<String, Object> values = new LinkedHashMap<>();
+                    Map<String, Throwable> failures = new LinkedHashMap<>();
+                    // all complete by now, so these run inline
+                    futures.forEach((name, f) -> f.handle((v, e) -> {
+                        if (e == null) values.put(name, v);
+                        else failures.put(name, unwrap(e));
+                        return null;
+                    }));
+                    out.complete(new Results(values, failures));
+                });
+        // anything still running after a critical failure is no longer wanted
+        out.whenComplete((r, e) -> futures.values().forEach(f -> f.cancel(true)));
+        return out;
+    }
+
+    private static RuntimeException criticalFailure(String name, Throwable e) {
+        Throwable cause = unwrap(e);
+        if (cause instanceof TimeoutException) return new RuntimeException("Timed out waiting for " + name, cause);
+        return cause instanceof RuntimeException re ? re : new RuntimeException(cause);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    public record Results(Map<String, Object> values, Map<String, Throwable> failures) {
+        public Results {
+            values = Collections.unmodifiableMap(values);
+            failures = Collections.unmodifiableMap(failures);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T get(String name) {
+            return (T) values.get(name);
+        }
+
+        public boolean partial() {
+            return !failures.isEmpty();
+        }
+    }
+}
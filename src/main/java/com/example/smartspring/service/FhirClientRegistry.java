@@ -0,0 +1,208 @@
+package com.example.smartspring.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.http.HttpTransport;
+import com.example.smartspring.http.JdkRestfulClientFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Prebuilt HAPI clients keyed by FHIR base. A client is created once per base and reused by every user; the
+ * caller's bearer token travels on the calling thread for the duration of {@link #call} rather than as a
+ * per-client interceptor.
+ * <p>
+ * The one {@link FhirContext} behind them is created on first use, so startup only pays for it when something is
+ * prewarmed; resource types are scanned as they are first met, or up front for {@code smart.fhir.prewarmTypes}.
+ */
+@Component
+public class FhirClientRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(FhirClientRegistry.class);
+    private static final ThreadLocal<String> BEARER = new ThreadLocal<>();
+    private static final ThreadLocal<Consumer<IHttpResponse>> ON_RESPONSE = new ThreadLocal<>();
+
+    private final AppProperties props;
+    private final AppProperties.Fhir cfg;
+    private final HttpTransport transport;
+    private final Map<String, Entry> clients;
+    private volatile FhirContext ctx;
+
+    public FhirClientRegistry(AppProperties props, HttpTransport transport, MeterRegistry meters) {
+        this.props = props;
+        this.cfg = props.getFhir();
+        this.transport = transport;
+        this.clients = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > cfg.getMaxClients();
+            }
+        };
+        meters.gauge("smart.fhir.clients", Tags.empty(), this, FhirClientRegistry::size);
+    }
+
+    public FhirContext context() {
+        FhirContext c = ctx;
+        if (c != null) return c;
+        synchronized (this) {
+            if (ctx == null) {
+                c = FhirContext.forR4();
+                // child definitions of a type are scanned when first needed rather than with the type
+                if (cfg.isDeferredModelScanning()) c.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+                JdkRestfulClientFactory factory = new JdkRestfulClientFactory(c, transport);
+                factory.setServerValidationMode(cfg.getServerValidation());
+                c.setRestfulClientFactory(factory);
+                ctx = c;
+            }
+            return ctx;
+        }
+    }
+
+    /** Runs {@code call} against the shared client for {@code fhirBase}, authenticating as {@code bearerToken}. */
+    public <T> T call(String fhirBase, String bearerToken, Function<IGenericClient, T> call) {
+        IGenericClient client = client(fhirBase);
+        String previous = BEARER.get();
+        BEARER.set(bearerToken);
+        try {
+            return call.apply(client);
+        } finally {
+            if (previous == null) BEARER.remove();
+            else BEARER.set(previous);
+        }
+    }
+
+    /** Like {@link #call}, also handing the raw response (headers, status) to {@code onResponse}, 304s included. */
+    public <T> T call(String fhirBase, String bearerToken, Consumer<IHttpResponse> onResponse, Function<IGenericClient, T> call) {
+        Consumer<IHttpResponse> previous = ON_RESPONSE.get();
+        ON_RESPONSE.set(onResponse);
+        try {
+            return call(fhirBase, bearerToken, call);
+        } finally {
+            if (previous == null) ON_RESPONSE.remove();
+            else ON_RESPONSE.set(previous);
+        }
+    }
+
+    /**
+     * Non-blocking GET of {@code url} (relative to {@code fhirBase} and already encoded, or absolute as in a paging
+     * link), parsed as {@code type}. The HAPI client only blocks, so the ASYNC web mode reads through this instead;
+     * non-2xx answers fail with the same exception types HAPI would throw.
+     */
+    public <T extends IBaseResource> CompletableFuture<T> getAsync(String fhirBase, String bearerToken, String url, Class<T> type) {
+        return exchangeAsync(fhirBase, bearerToken, url, null, type);
+    }
+
+    /** Non-blocking POST of {@code body} to the base, e.g. a batch Bundle. */
+    public <T extends IBaseResource> CompletableFuture<T> postAsync(String fhirBase, String bearerToken, IBaseResource body, Class<T> type) {
+        return exchangeAsync(fhirBase, bearerToken, "", body, type);
+    }
+
+    private <T extends IBaseResource> CompletableFuture<T> exchangeAsync(String fhirBase, String bearerToken, String url, IBaseResource body, Class<T> type) {
+        String base = fhirBase.replaceAll("/+$", "");
+        URI uri = URI.create(url.startsWith("http://") || url.startsWith("https://") ? url : url.isEmpty() ? base : base + "/" + url);
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri).header("Accept", "application/fhir+json");
+        if (bearerToken != null) b.header("Authorization", "Bearer " + bearerToken);
+        if (body == null) b.GET();
+        else b.header("Content-Type", "application/fhir+json; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(context().newJsonParser().encodeResourceToString(body)));
+        return transport.sendAsync(b.build(), HttpResponse.BodyHandlers.ofByteArray()).thenApply(r -> {
+            if (r.statusCode() / 100 != 2) {
+                throw BaseServerResponseException.newInstance(r.statusCode(), "HTTP " + r.statusCode() + " from " + uri);
+            }
+            return context().newJsonParser().parseResource(type, new ByteArrayInputStream(r.body()));
+        });
+    }
+
+    public IGenericClient client(String fhirBase) {
+        String key = fhirBase.replaceAll("/+$", "");
+        long now = System.nanoTime();
+        synchronized (clients) {
+            evictIdle(now);
+            Entry e = clients.get(key);
+            if (e == null) {
+                e = new Entry(newClient(key));
+                clients.put(key, e);
+            }
+            e.lastUsed = now;
+            return e.client;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarm() {
+        // model scan for the types we parse, otherwise paid by the first user request
+        for (String type : cfg.getPrewarmTypes()) context().getResourceDefinition(type);
+        Set<String> bases = new LinkedHashSet<>(cfg.getPrewarm());
+        if (cfg.isPrewarmFhirBase() && props.getFhirBase() != null && !props.getFhirBase().isBlank()) bases.add(props.getFhirBase());
+        for (String base : bases) {
+            try {
+                client(base);
+            } catch (RuntimeException e) {
+                log.warn("Could not prewarm FHIR client for {}: {}", base, e.toString());
+            }
+        }
+        if (!bases.isEmpty()) log.info("Prewarmed {} FHIR client(s)", bases.size());
+    }
+
+    int size() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    private IGenericClient newClient(String base) {
+        IGenericClient c = context().newRestfulGenericClient(base);
+        c.registerInterceptor(new IClientInterceptor() {
+            @Override
+            public void interceptRequest(IHttpRequest request) {
+                String token = BEARER.get();
+                if (token != null) request.addHeader("Authorization", "Bearer " + token);
+            }
+
+            @Override
+            public void interceptResponse(IHttpResponse response) {
+                Consumer<IHttpResponse> hook = ON_RESPONSE.get();
+                if (hook != null) hook.accept(response);
+            }
+        });
+        return c;
+    }
+
+    private void evictIdle(long now) {
+        long idle = cfg.getClientIdleTimeout().toNanos();
+        clients.values().removeIf(e -> now - e.lastUsed > idle);
+    }
+
+    private static final class Entry {
+        final IGenericClient client;
+        long lastUsed;
+
+        Entry(IGenericClient client) {
+            this.client = client;
+        }
+    }
+}
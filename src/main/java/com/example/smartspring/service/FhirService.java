@@ -1,8 +1,8 @@
 package com.example.smartspring.service;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import com.example.smartspring.http.Upstream;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
 import org.hl7.fhir.r4.model.Bundle;
 import org.springframework.stereotype.Service;
 import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
@@ -10,35 +10,173 @@ import ca.uhn.fhir.model.api.Include;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.HumanName;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class FhirService {
-    private final FhirContext ctx = FhirContext.forR4();
+    // carries the request's trace context, so the cached read's span stays under it
+    private static final ExecutorService CACHED_READS = ContextExecutorService.wrap(Executors.newVirtualThreadPerTaskExecutor(),
+            ContextSnapshotFactory.builder().build()::captureAll);
+
+    private final FhirClientRegistry clients;
+    private final ResourceCache cache;
+    private final Upstream upstream;
+
+    public FhirService(FhirClientRegistry clients, ResourceCache cache, Upstream upstream) {
+        this.clients = clients;
+        this.cache = cache;
+        this.upstream = upstream;
+    }
 
     public Bundle searchPatients(String fhirBase, String bearerToken, int count) {
-        IGenericClient c = ctx.newRestfulGenericClient(fhirBase);
-        c.registerInterceptor(new BearerTokenAuthInterceptor(bearerToken));
-        return c.search().forResource("Patient").count(count).returnBundle(Bundle.class).execute();
+        return upstream.read("patient.search", fhirBase, () -> clients.call(fhirBase, bearerToken,
+                c -> c.search().forResource("Patient").count(count).returnBundle(Bundle.class).execute()));
+    }
+
+    // one page of a searchset by its server-issued link URL (e.g. Bundle.link[next])
+    public Bundle page(String fhirBase, String bearerToken, String pageUrl) {
+        return upstream.read("page", fhirBase, () -> clients.call(fhirBase, bearerToken,
+                c -> c.loadPage().byUrl(pageUrl).andReturnBundle(Bundle.class).execute()));
+    }
+
+    // ASYNC web mode: same requests as above, over non-blocking HTTP
+    public CompletableFuture<Bundle> searchPatientsAsync(String fhirBase, String bearerToken, int count) {
+        return upstream.readAsync("patient.search", fhirBase,
+                () -> clients.getAsync(fhirBase, bearerToken, "Patient?_count=" + count, Bundle.class));
+    }
+
+    public CompletableFuture<Bundle> pageAsync(String fhirBase, String bearerToken, String pageUrl) {
+        return upstream.readAsync("page", fhirBase, () -> clients.getAsync(fhirBase, bearerToken, pageUrl, Bundle.class));
+    }
+
+    // All pages from `first` on, fetched lazily with the next page prefetched; close the stream to stop early.
+    public Stream<Bundle> pages(String fhirBase, String bearerToken, Bundle first) {
+        return BundlePager.stream(first, b -> upstream.read("page", fhirBase,
+                () -> clients.call(fhirBase, bearerToken, c -> c.loadPage().next(b).execute())));
     }
 
     public Patient readPatientById(String fhirBase, String bearerToken, String patientId) {
-        IGenericClient client = ctx.newRestfulGenericClient(fhirBase);
-        client.registerInterceptor(new BearerTokenAuthInterceptor(bearerToken));
-        return client.read().resource(Patient.class).withId(patientId).execute();
+        return upstream.read("patient.read", fhirBase, () -> clients.call(fhirBase, bearerToken,
+                client -> client.read().resource(Patient.class).withId(patientId).execute()));
     }
 
-    public Bundle medicationsForPatient(String fhirBase, String bearerToken, String patientId, int count) {
-        IGenericClient client = ctx.newRestfulGenericClient(fhirBase);
-        client.registerInterceptor(new BearerTokenAuthInterceptor(bearerToken));
+    // through the resource cache when enabled; cacheScope comes from ResourceCache.scope
+    public Patient readPatientById(String fhirBase, String bearerToken, String cacheScope, String patientId) {
+        return upstream.read("patient.read", fhirBase, () -> cache.read(cacheScope, fhirBase, bearerToken, Patient.class, patientId));
+    }
+
+    // cached reads revalidate through the blocking client, so they go to a virtual thread instead
+    public CompletableFuture<Patient> readPatientByIdAsync(String fhirBase, String bearerToken, String cacheScope, String patientId) {
+        if (cacheScope != null && cache.caches("Patient")) {
+            return CompletableFuture.supplyAsync(() -> readPatientById(fhirBase, bearerToken, cacheScope, patientId), CACHED_READS);
+        }
+        return upstream.readAsync("patient.read", fhirBase,
+                () -> clients.getAsync(fhirBase, bearerToken, "Patient/" + enc(patientId), Patient.class));
+    }
 
+    /**
+     * With Medication caching enabled the search skips {@code _include} and the referenced Medications come from
+     * the resource cache instead; they are appended as include entries, so the result looks the same either way.
+     */
+    public Bundle medicationsForPatient(String fhirBase, String bearerToken, String cacheScope, String patientId, int count) {
+        if (cacheScope == null || !cache.caches("Medication")) return medicationsForPatient(fhirBase, bearerToken, patientId, count);
+        Bundle bundle = upstream.read("medication.search", fhirBase, () -> clients.call(fhirBase, bearerToken, client -> client.search()
+                .forResource(MedicationRequest.class)
+                .where(new ReferenceClientParam("subject").hasId("Patient/" + patientId))
+                .count(count)
+                .returnBundle(Bundle.class)
+                .execute()));
+        Set<String> ids = new LinkedHashSet<>();
+        for (var e : bundle.getEntry()) {
+            if (e.getResource() instanceof MedicationRequest mr && mr.hasMedicationReference() && mr.getMedicationReference().hasReference()) {
+                IdType ref = new IdType(mr.getMedicationReference().getReference());
+                // only local references; contained (#id) and other servers' resources are left as they are
+                if ("Medication".equals(ref.getResourceType()) && ref.hasIdPart() && !ref.hasBaseUrl()) ids.add(ref.getIdPart());
+            }
+        }
+        // each read or _id batch behind this is its own medication.read call upstream
+        for (Medication m : cache.readAll(cacheScope, fhirBase, bearerToken, Medication.class, ids).values()) {
+            bundle.addEntry().setResource(m).getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+        }
+        return bundle;
+    }
+
+    public Bundle medicationsForPatient(String fhirBase, String bearerToken, String patientId, int count) {
         // MedicationRequest?subject=Patient/{id} + include Medication
-        return client.search()
+        return upstream.read("medication.search", fhirBase, () -> clients.call(fhirBase, bearerToken, client -> client.search()
                 .forResource(MedicationRequest.class)
                 .where(new ReferenceClientParam("subject").hasId("Patient/" + patientId))
                 .include(new Include("MedicationRequest:medication"))
                 .count(count)
                 .returnBundle(Bundle.class)
-                .execute();
+                .execute()));
+    }
+
+    public CompletableFuture<Bundle> medicationsForPatientAsync(String fhirBase, String bearerToken, String cacheScope, String patientId, int count) {
+        if (cacheScope != null && cache.caches("Medication")) {
+            return CompletableFuture.supplyAsync(() -> medicationsForPatient(fhirBase, bearerToken, cacheScope, patientId, count), CACHED_READS);
+        }
+        return upstream.readAsync("medication.search", fhirBase, () -> clients.getAsync(fhirBase, bearerToken,
+                "MedicationRequest?subject=" + enc("Patient/" + patientId) + "&_include=" + enc("MedicationRequest:medication")
+                        + "&_count=" + count, Bundle.class));
+    }
+
+    // {resourceType}?patient=Patient/{id}, for the optional /me sections
+    public Bundle searchForPatient(String fhirBase, String bearerToken, String resourceType, String patientId, int count) {
+        return upstream.read(searchOp(resourceType), fhirBase, () -> clients.call(fhirBase, bearerToken, client -> client.search()
+                .forResource(resourceType)
+                .where(new ReferenceClientParam("patient").hasId("Patient/" + patientId))
+                .count(count)
+                .returnBundle(Bundle.class)
+                .execute()));
+    }
+
+    public CompletableFuture<Bundle> searchForPatientAsync(String fhirBase, String bearerToken, String resourceType, String patientId, int count) {
+        return upstream.readAsync(searchOp(resourceType), fhirBase, () -> clients.getAsync(fhirBase, bearerToken,
+                resourceType + "?patient=" + enc("Patient/" + patientId) + "&_count=" + count, Bundle.class));
+    }
+
+    // {resourceType}?{query} with the query already encoded, for the patient sync; later pages come through pages()
+    public Bundle search(String fhirBase, String bearerToken, String resourceType, String query) {
+        return upstream.read(searchOp(resourceType), fhirBase, () -> clients.call(fhirBase, bearerToken, client -> client.search()
+                .byUrl(resourceType + "?" + query)
+                .returnBundle(Bundle.class)
+                .execute()));
+    }
+
+    // batch Bundle of GETs; response entries come back in request order
+    public Bundle batch(String fhirBase, String bearerToken, Bundle batch) {
+        return upstream.call("batch", fhirBase, () -> clients.call(fhirBase, bearerToken, client -> client.transaction().withBundle(batch).execute()));
+    }
+
+    public CompletableFuture<Bundle> batchAsync(String fhirBase, String bearerToken, Bundle batch) {
+        return upstream.callAsync("batch", fhirBase, () -> clients.postAsync(fhirBase, bearerToken, batch, Bundle.class));
+    }
+
+    private static String searchOp(String resourceType) {
+        return resourceType.toLowerCase(Locale.ROOT) + ".search";
+    }
+
+    private static String enc(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    // Helper: first name of each Patient in a searchset page, "(no name)" when it has none
+    public static java.util.List<String> patientNames(Bundle bundle) {
+        return bundle.getEntry().stream().map(e -> e.getResource()).filter(r -> r instanceof Patient)
+                .map(r -> (Patient) r).map(p -> p.getName().stream().findFirst().map(HumanName::getNameAsSingleString).orElse("(no name)")).collect(Collectors.toList());
     }
 
     // Helper: obtain "display" legible of medicament
@@ -0,0 +1,143 @@
+package com.example.smartspring.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Display strings for the MedicationRequests in a searchset, built in a single pass over the entries. Included
+ * Medications go into an id table that {@code Medication/{id}} references are matched against in place, so no
+ * {@code "Medication/" + id} keys are built, and each Medication's display is worked out once however many
+ * requests point at it. Same rules as {@link FhirService#medicationDisplay}.
+ */
+public final class MedicationIndex {
+
+    private static final String PREFIX = "Medication/";
+
+    private final List<MedicationRequest> requests;
+    private final IdTable medications;
+
+    private MedicationIndex(List<MedicationRequest> requests, IdTable medications) {
+        this.requests = requests;
+        this.medications = medications;
+    }
+
+    public static MedicationIndex of(Bundle bundle) {
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        List<MedicationRequest> requests = new ArrayList<>(entries.size());
+        List<Medication> included = new ArrayList<>();
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            Resource r = entries.get(i).getResource();
+            if (r instanceof MedicationRequest mr) requests.add(mr);
+            else if (r instanceof Medication m && m.getIdElement().hasIdPart()) included.add(m);
+        }
+        // sized by what was actually included, usually far fewer than the requests
+        IdTable meds = new IdTable(included.size());
+        for (int i = 0, n = included.size(); i < n; i++) meds.put(included.get(i).getIdElement().getIdPart(), included.get(i));
+        return new MedicationIndex(requests, meds);
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    /** One display per MedicationRequest, in bundle order; repeated codes share one String via {@code cache}. */
+    public List<String> displays(CodeDisplayCache cache) {
+        List<String> out = new ArrayList<>(requests.size());
+        for (int i = 0, n = requests.size(); i < n; i++) out.add(display(requests.get(i), cache));
+        return out;
+    }
+
+    private String display(MedicationRequest mr, CodeDisplayCache cache) {
+        if (mr.hasMedicationCodeableConcept()) {
+            String d = conceptDisplay(mr.getMedicationCodeableConcept(), cache, true);
+            return d != null ? d : "Medication (CodeableConcept)";
+        }
+        if (mr.hasMedicationReference() && mr.getMedicationReference().hasReference()) {
+            String ref = mr.getMedicationReference().getReference();
+            int slot = ref.startsWith(PREFIX) ? medications.find(ref, PREFIX.length()) : -1;
+            if (slot < 0) return ref;
+            String d = medications.display(slot);
+            if (d == null) {
+                Medication m = medications.value(slot);
+                d = m.hasCode() ? conceptDisplay(m.getCode(), cache, false) : null;
+                // a Medication without a usable code falls back to the reference, like before
+                medications.setDisplay(slot, d != null ? d : "");
+                d = medications.display(slot);
+            }
+            return d.isEmpty() ? ref : d;
+        }
+        return "Medication (unknown)";
+    }
+
+    // text, then the first coding's display, then (for inline concepts only) its bare code
+    private static String conceptDisplay(CodeableConcept cc, CodeDisplayCache cache, boolean codeFallback) {
+        if (cc.hasText()) return cc.getText();
+        if (!cc.hasCoding()) return null;
+        Coding c = cc.getCoding().get(0);
+        if (c.hasDisplay()) return cache.intern(c.getSystem(), c.getCode(), c.getDisplay());
+        if (codeFallback && c.hasCode()) return c.getCode();
+        return null;
+    }
+
+    /**
+     * Open-addressing table of Medications by id that can be probed with a region of a reference string, which is
+     * what lets lookups skip the substring/concat a HashMap key would need.
+     */
+    private static final class IdTable {
+        private final String[] keys;
+        private final Medication[] values;
+        private final String[] displays;
+        private final int mask;
+
+        IdTable(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+            keys = new String[cap];
+            values = new Medication[cap];
+            displays = new String[cap];
+            mask = cap - 1;
+        }
+
+        void put(String id, Medication m) {
+            int i = hash(id, 0) & mask;
+            while (keys[i] != null && !keys[i].equals(id)) i = (i + 1) & mask;
+            keys[i] = id;
+            values[i] = m;
+            displays[i] = null;
+        }
+
+        /** Slot whose id equals {@code s.substring(from)}, or -1. */
+        int find(String s, int from) {
+            int len = s.length() - from;
+            for (int i = hash(s, from) & mask; keys[i] != null; i = (i + 1) & mask) {
+                String k = keys[i];
+                if (k.length() == len && s.regionMatches(from, k, 0, len)) return i;
+            }
+            return -1;
+        }
+
+        Medication value(int slot) {
+            return values[slot];
+        }
+
+        String display(int slot) {
+            return displays[slot];
+        }
+
+        void setDisplay(int slot, String d) {
+            displays[slot] = d;
+        }
+
+        private static int hash(String s, int from) {
+            int h = 0;
+            for (int i = from, n = s.length(); i < n; i++) h = 31 * h + s.charAt(i);
+            return h ^ (h >>> 16);
+        }
+    }
+}
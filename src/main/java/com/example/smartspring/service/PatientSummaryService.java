@@ -0,0 +1,238 @@
+package com.example.smartspring.service;
+
+import com.example.smartspring.config.AppProperties;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Service;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Builds the /me patient summary. The Patient read is the only critical section; medications and the optional
+ * sections from {@code smart.summary.sections} are fetched alongside it and dropped if they fail or run late.
+ */
+@Service
+public class PatientSummaryService {
+
+    private static final String PATIENT = "patient";
+    private static final String MEDICATIONS = "medications";
+
+    private static final Map<String, SectionDef> SECTIONS = new LinkedHashMap<>();
+
+    static {
+        SECTIONS.put("conditions", new SectionDef("Conditions", "Condition",
+                r -> r instanceof Condition c ? codeDisplay(c.getCode()) : null));
+        SECTIONS.put("allergies", new SectionDef("Allergies", "AllergyIntolerance",
+                r -> r instanceof AllergyIntolerance a ? codeDisplay(a.getCode()) : null));
+        SECTIONS.put("observations", new SectionDef("Observations", "Observation",
+                r -> r instanceof Observation o ? observationDisplay(o) : null));
+    }
+
+    private final FhirService fhir;
+    private final AppProperties.Summary cfg;
+
+    public PatientSummaryService(FhirService fhir, AppProperties props) {
+        this.fhir = fhir;
+        this.cfg = props.getSummary();
+    }
+
+    public record Section(String title, List<String> items) {}
+
+    /**
+     * {@code medications} is null and listed in {@code unavailable} when that section could not be loaded. {@code asOf}
+     * is when the data was synced for summaries built from a local view, null when it was just read from the server.
+     */
+    public record PatientSummary(Patient patient, Bundle medications, List<Section> sections, List<String> unavailable,
+                                 Instant asOf) {}
+
+    /** {@code cacheScope} (see {@link ResourceCache#scope}) lets the Patient and Medication reads use the resource cache. */
+    public PatientSummary summary(String fhirBase, String bearerToken, String cacheScope, String patientId) {
+        return cfg.getMode() == AppProperties.Summary.Mode.BATCH
+                ? viaBatch(fhirBase, bearerToken, patientId)
+                : viaFanOut(fhirBase, bearerToken, cacheScope, patientId);
+    }
+
+    /** Non-blocking {@link #summary}, for {@code smart.web.mode: ASYNC}; same sections, timeouts and fallbacks. */
+    public CompletableFuture<PatientSummary> summaryAsync(String fhirBase, String bearerToken, String cacheScope, String patientId) {
+        if (cfg.getMode() == AppProperties.Summary.Mode.BATCH) {
+            List<String> keys = new ArrayList<>();
+            Bundle batch = batchRequest(patientId, keys);
+            return FanOut.runAsync(List.of(new FanOut.AsyncCall<>("batch", true, cfg.getDeadline(),
+                    () -> fhir.batchAsync(fhirBase, bearerToken, batch))), cfg.getDeadline())
+                    .thenApply(r -> fromBatch(r.get("batch"), keys, patientId));
+        }
+        List<FanOut.AsyncCall<?>> calls = new ArrayList<>();
+        calls.add(new FanOut.AsyncCall<>(PATIENT, true, cfg.getCallTimeout(),
+                () -> fhir.readPatientByIdAsync(fhirBase, bearerToken, cacheScope, patientId)));
+        calls.add(new FanOut.AsyncCall<>(MEDICATIONS, false, cfg.getCallTimeout(),
+                () -> fhir.medicationsForPatientAsync(fhirBase, bearerToken, cacheScope, patientId, cfg.getMedicationCount())));
+        for (String key : enabledSections()) {
+            SectionDef def = SECTIONS.get(key);
+            calls.add(new FanOut.AsyncCall<>(key, false, cfg.getCallTimeout(),
+                    () -> fhir.searchForPatientAsync(fhirBase, bearerToken, def.resourceType(), patientId, cfg.getSectionCount())));
+        }
+        return FanOut.runAsync(calls, cfg.getDeadline()).thenApply(this::fromFanOut);
+    }
+
+    private PatientSummary viaFanOut(String fhirBase, String token, String cacheScope, String patientId) {
+        List<FanOut.Call<?>> calls = new ArrayList<>();
+        calls.add(new FanOut.Call<>(PATIENT, true, cfg.getCallTimeout(),
+                () -> fhir.readPatientById(fhirBase, token, cacheScope, patientId)));
+        calls.add(new FanOut.Call<>(MEDICATIONS, false, cfg.getCallTimeout(),
+                () -> fhir.medicationsForPatient(fhirBase, token, cacheScope, patientId, cfg.getMedicationCount())));
+        for (String key : enabledSections()) {
+            SectionDef def = SECTIONS.get(key);
+            calls.add(new FanOut.Call<>(key, false, cfg.getCallTimeout(),
+                    () -> fhir.searchForPatient(fhirBase, token, def.resourceType(), patientId, cfg.getSectionCount())));
+        }
+        return fromFanOut(FanOut.run(calls, cfg.getDeadline()));
+    }
+
+    private PatientSummary fromFanOut(FanOut.Results r) {
+        List<Section> sections = new ArrayList<>();
+        List<String> unavailable = new ArrayList<>(r.failures().keySet());
+        for (String key : enabledSections()) {
+            Bundle b = r.get(key);
+            if (b != null) sections.add(section(SECTIONS.get(key), b));
+        }
+        return new PatientSummary(r.get(PATIENT), r.get(MEDICATIONS), sections, unavailable, null);
+    }
+
+    // One round trip for servers that support batch; entries in the response line up with the request.
+    private PatientSummary viaBatch(String fhirBase, String token, String patientId) {
+        List<String> keys = new ArrayList<>();
+        Bundle batch = batchRequest(patientId, keys);
+        Bundle response = FanOut.run(List.of(new FanOut.Call<>("batch", true, cfg.getDeadline(),
+                () -> fhir.batch(fhirBase, token, batch))), cfg.getDeadline()).get("batch");
+        return fromBatch(response, keys, patientId);
+    }
+
+    // the batch request, with the section key of each entry appended to `keys` in the same order
+    private Bundle batchRequest(String patientId, List<String> keys) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        keys.add(PATIENT);
+        get(batch, "Patient/" + patientId);
+        keys.add(MEDICATIONS);
+        get(batch, "MedicationRequest?subject=Patient/" + patientId + "&_include=MedicationRequest:medication&_count=" + cfg.getMedicationCount());
+        for (String key : enabledSections()) {
+            keys.add(key);
+            get(batch, SECTIONS.get(key).resourceType() + "?patient=Patient/" + patientId + "&_count=" + cfg.getSectionCount());
+        }
+        return batch;
+    }
+
+    private PatientSummary fromBatch(Bundle response, List<String> keys, String patientId) {
+        Map<String, Resource> byKey = new LinkedHashMap<>();
+        List<Bundle.BundleEntryComponent> entries = response.getEntry();
+        for (int i = 0; i < keys.size() && i < entries.size(); i++) {
+            Bundle.BundleEntryComponent e = entries.get(i);
+            String status = e.hasResponse() ? e.getResponse().getStatus() : "";
+            if (e.hasResource() && (status.isEmpty() || status.startsWith("2"))) byKey.put(keys.get(i), e.getResource());
+        }
+        if (!(byKey.get(PATIENT) instanceof Patient patient)) {
+            throw new IllegalStateException("Batch response did not contain Patient/" + patientId);
+        }
+
+        List<Section> sections = new ArrayList<>();
+        List<String> unavailable = new ArrayList<>();
+        Bundle meds = byKey.get(MEDICATIONS) instanceof Bundle b ? b : null;
+        if (meds == null) unavailable.add(MEDICATIONS);
+        for (String key : enabledSections()) {
+            if (byKey.get(key) instanceof Bundle b) sections.add(section(SECTIONS.get(key), b));
+            else unavailable.add(key);
+        }
+        return new PatientSummary(patient, meds, sections, unavailable, null);
+    }
+
+    /**
+     * The patient searches behind /me besides the Patient itself, as resource type to any extra query parameters:
+     * MedicationRequest with its Medications included, then the enabled sections. These are what a sync keeps.
+     */
+    public Map<String, String> syncedSearches() {
+        Map<String, String> searches = new LinkedHashMap<>();
+        searches.put("MedicationRequest", "_include=" + URLEncoder.encode("MedicationRequest:medication", StandardCharsets.UTF_8));
+        for (String key : enabledSections()) searches.put(SECTIONS.get(key).resourceType(), "");
+        return searches;
+    }
+
+    /**
+     * The summary /me would show, from resources synced ahead of time: {@code byType} holds each type's resources in
+     * the order to show them. Capped like the live searches, at {@code medicationCount} and {@code sectionCount}.
+     */
+    public PatientSummary fromResources(Patient patient, Map<String, List<Resource>> byType, Instant asOf) {
+        Bundle meds = matches(byType.get("MedicationRequest"), cfg.getMedicationCount());
+        for (Resource r : byType.getOrDefault("Medication", List.of())) {
+            meds.addEntry().setResource(r).getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+        }
+        List<Section> sections = new ArrayList<>();
+        for (String key : enabledSections()) {
+            SectionDef def = SECTIONS.get(key);
+            sections.add(section(def, matches(byType.get(def.resourceType()), cfg.getSectionCount())));
+        }
+        return new PatientSummary(patient, meds, sections, List.of(), asOf);
+    }
+
+    private static Bundle matches(Collection<? extends Resource> resources, int limit) {
+        Bundle b = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+        if (resources == null) return b;
+        for (Resource r : resources) {
+            if (b.getEntry().size() >= limit) break;
+            b.addEntry().setResource(r).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return b;
+    }
+
+    private List<String> enabledSections() {
+        return cfg.getSections().stream().filter(SECTIONS::containsKey).toList();
+    }
+
+    private static void get(Bundle batch, String url) {
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl(url);
+    }
+
+    private static Section section(SectionDef def, Bundle bundle) {
+        List<String> items = new ArrayList<>();
+        for (var e : bundle.getEntry()) {
+            String d = def.display().apply(e.getResource());
+            if (d != null) items.add(d);
+        }
+        return new Section(def.title(), items);
+    }
+
+    static String codeDisplay(CodeableConcept cc) {
+        if (cc == null || cc.isEmpty()) return "(no code)";
+        if (cc.hasText()) return cc.getText();
+        if (cc.hasCoding() && cc.getCodingFirstRep().hasDisplay()) return cc.getCodingFirstRep().getDisplay();
+        if (cc.hasCoding() && cc.getCodingFirstRep().hasCode()) return cc.getCodingFirstRep().getCode();
+        return "(no code)";
+    }
+
+    static String observationDisplay(Observation o) {
+        String name = codeDisplay(o.getCode());
+        if (o.hasValueQuantity() && o.getValueQuantity().hasValue()) {
+            Quantity q = o.getValueQuantity();
+            return name + ": " + q.getValue().toPlainString() + (q.hasUnit() ? " " + q.getUnit() : "");
+        }
+        if (o.hasValueCodeableConcept()) return name + ": " + codeDisplay(o.getValueCodeableConcept());
+        if (o.hasValueStringType()) return name + ": " + o.getValueStringType().getValue();
+        return name;
+    }
+
+    private record SectionDef(String title, String resourceType, Function<Resource, String> display) {}
+}
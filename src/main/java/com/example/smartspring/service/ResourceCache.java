@@ -0,0 +1,319 @@
+package com.example.smartspring.service;
+
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.http.Upstream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Opt-in cache of FHIR reads for the types in {@code smart.cache.types}. Each entry keeps the parsed resource with
+ * its ETag (or {@code meta.versionId} as a weak ETag) and Last-Modified; once older than {@code maxAge} it is
+ * revalidated with If-None-Match/If-Modified-Since under the caller's own token, so a 304 re-checks access and
+ * skips both the download and HAPI parsing. Entries are partitioned by {@link #scope}, and evicted least-recently-used once their
+ * estimated heap size passes {@code maxBytes}.
+ */
+@Component
+public class ResourceCache {
+
+    // parsed HAPI models take a few times their wire size; this only has to be roughly right
+    private static final int HEAP_FACTOR = 4;
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final int MAX_IDS_PER_SEARCH = 100;
+    private static final Set<String> CONTEXT_SCOPES = Set.of("openid", "profile", "fhirUser", "offline_access",
+            "online_access", "launch", "launch/patient", "launch/encounter");
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final FhirClientRegistry clients;
+    private final AppProperties.Cache cfg;
+    private final Duration callTimeout;
+    private final MeterRegistry meters;
+    private final Upstream upstream;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, TypeStats> stats = new ConcurrentHashMap<>();
+    private long bytes;
+
+    public ResourceCache(FhirClientRegistry clients, AppProperties props, MeterRegistry meters, Upstream upstream) {
+        this.clients = clients;
+        this.cfg = props.getCache();
+        this.callTimeout = props.getHttp().getReadTimeout();
+        this.meters = meters;
+        this.upstream = upstream;
+        meters.gauge("smart.fhir.cache.bytes", Tags.empty(), this, c -> c.bytes());
+        meters.gauge("smart.fhir.cache.entries", Tags.empty(), this, c -> c.size());
+    }
+
+    /** One cached version of a resource, as seen by callers sharing {@code scope}. */
+    public record Key(String scope, String issuer, String type, String id) {}
+
+    /**
+     * Cache partition for a caller. Grants limited to the launch patient ({@code patient/*} plus context scopes) are
+     * shared by every session with the same issuer, patient and scopes; anything broader, or a grant whose scope
+     * is unknown, is confined to its own session.
+     */
+    public static String scope(String issuer, String patientId, String grantedScope, String sessionId) {
+        String basis;
+        String[] scopes = grantedScope == null ? new String[0] : grantedScope.trim().split("\\s+");
+        boolean patientOnly = patientId != null && !patientId.isBlank() && grantedScope != null && !grantedScope.isBlank();
+        for (String s : scopes) {
+            if (!s.startsWith("patient/") && !CONTEXT_SCOPES.contains(s)) {
+                patientOnly = false;
+                break;
+            }
+        }
+        if (patientOnly) {
+            Arrays.sort(scopes);
+            basis = "patient\0" + normalize(issuer) + "\0" + patientId + "\0" + String.join(" ", scopes);
+        } else if (sessionId != null) {
+            basis = "session\0" + normalize(issuer) + "\0" + sessionId;
+        } else {
+            return null;
+        }
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(basis.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(h, 16));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean caches(String resourceType) {
+        return cfg.isEnabled() && cfg.getTypes().contains(resourceType);
+    }
+
+    /** Reads {@code type/id}, from the cache when possible; a null scope bypasses the cache. */
+    public <T extends Resource> T read(String scope, String fhirBase, String bearerToken, Class<T> type, String id) {
+        String typeName = clients.context().getResourceType(type);
+        if (scope == null || !caches(typeName)) {
+            return clients.call(fhirBase, bearerToken, c -> c.read().resource(type).withId(id).execute());
+        }
+        Key key = new Key(scope, normalize(fhirBase), typeName, id);
+        TypeStats ts = stats(typeName);
+        Entry cached = get(key);
+        if (cached != null && System.nanoTime() - cached.validatedAt < cfg.getMaxAge().toNanos()) {
+            ts.hit.increment();
+            return type.cast(cached.resource.copy());
+        }
+        boolean conditional = cached != null && (cached.etag != null || cached.lastModified != null);
+        Captured response = new Captured();
+        try {
+            T r = clients.call(fhirBase, bearerToken, response, c -> {
+                IReadExecutable<T> q = c.read().resource(type).withId(id);
+                if (conditional && cached.etag != null) q = q.withAdditionalHeader("If-None-Match", cached.etag);
+                if (conditional && cached.lastModified != null) q = q.withAdditionalHeader("If-Modified-Since", cached.lastModified);
+                return q.execute();
+            });
+            ts.miss.increment();
+            put(key, r, response.etag, response.lastModified, response.contentLength);
+            return r;
+        } catch (NotModifiedException e) {
+            cached.validatedAt = System.nanoTime();
+            ts.revalidated.increment();
+            return type.cast(cached.resource.copy());
+        } catch (BaseServerResponseException e) {
+            // gone, or no longer readable with this token
+            remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads many resources of one type, keyed by id. Fresh entries are served as is, stale ones are revalidated
+     * in parallel, and the rest are fetched with one {@code _id} search per {@value #MAX_IDS_PER_SEARCH} ids. Each of
+     * those goes upstream as its own {@code <type>.read} operation (stats, bulkhead permit and breaker outcome).
+     * Ids that fail to load are left out.
+     */
+    public <T extends Resource> Map<String, T> readAll(String scope, String fhirBase, String bearerToken, Class<T> type,
+                                                       Collection<String> ids) {
+        String typeName = clients.context().getResourceType(type);
+        String op = typeName.toLowerCase(Locale.ROOT) + ".read";
+        Map<String, T> out = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        List<FanOut.Call<?>> calls = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            Entry cached = scope == null || !caches(typeName) ? null : get(new Key(scope, normalize(fhirBase), typeName, id));
+            if (cached == null) missing.add(id);
+            else calls.add(new FanOut.Call<>(id, false, callTimeout,
+                    () -> upstream.read(op, fhirBase, () -> read(scope, fhirBase, bearerToken, type, id))));
+        }
+        for (int i = 0; i < missing.size(); i += MAX_IDS_PER_SEARCH) {
+            List<String> chunk = missing.subList(i, Math.min(i + MAX_IDS_PER_SEARCH, missing.size()));
+            calls.add(new FanOut.Call<>("_id:" + i, false, callTimeout,
+                    () -> upstream.read(op, fhirBase, () -> search(scope, fhirBase, bearerToken, typeName, chunk))));
+        }
+        if (calls.isEmpty()) return out;
+        FanOut.Results r = FanOut.run(calls, callTimeout);
+        for (Object v : r.values().values()) {
+            if (type.isInstance(v)) out.put(((Resource) v).getIdElement().getIdPart(), type.cast(v));
+            else if (v instanceof Bundle b) {
+                for (Bundle.BundleEntryComponent e : b.getEntry()) {
+                    if (type.isInstance(e.getResource())) out.put(e.getResource().getIdElement().getIdPart(), type.cast(e.getResource()));
+                }
+            }
+        }
+        return out;
+    }
+
+    private Bundle search(String scope, String fhirBase, String bearerToken, String typeName, List<String> ids) {
+        Captured response = new Captured();
+        Bundle b = clients.call(fhirBase, bearerToken, response, c -> c.search().forResource(typeName)
+                .where(new TokenClientParam("_id").exactly().codes(ids))
+                .count(ids.size())
+                .returnBundle(Bundle.class)
+                .execute());
+        if (scope == null || !caches(typeName)) return b;
+        TypeStats ts = stats(typeName);
+        int n = Math.max(b.getEntry().size(), 1);
+        for (Bundle.BundleEntryComponent e : b.getEntry()) {
+            Resource r = e.getResource();
+            if (r == null || !typeName.equals(r.fhirType())) continue;
+            ts.miss.increment();
+            put(new Key(scope, normalize(fhirBase), typeName, r.getIdElement().getIdPart()), r, null, null,
+                    response.contentLength > 0 ? response.contentLength / n : -1);
+        }
+        return b;
+    }
+
+    private void put(Key key, Resource r, String etag, String lastModified, long wireBytes) {
+        String version = r.getMeta().hasVersionId() ? r.getMeta().getVersionId() : r.getIdElement().getVersionIdPart();
+        if (etag == null && version != null) etag = "W/\"" + version + "\"";
+        if (lastModified == null && r.getMeta().hasLastUpdated()) lastModified = HTTP_DATE.format(r.getMeta().getLastUpdated().toInstant());
+        if (wireBytes <= 0) wireBytes = clients.context().newJsonParser().encodeResourceToString(r).length();
+        long weight = wireBytes * HEAP_FACTOR + ENTRY_OVERHEAD;
+        long max = cfg.getMaxBytes().toBytes();
+        if (weight > max) return;
+        // the caller gets the parsed instance; the cache keeps its own
+        Entry e = new Entry(r.copy(), etag, lastModified, weight);
+        synchronized (entries) {
+            Entry old = entries.put(key, e);
+            if (old != null) bytes -= old.weight;
+            bytes += weight;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > max && it.hasNext()) {
+                bytes -= it.next().weight;
+                it.remove();
+            }
+        }
+    }
+
+    private Entry get(Key key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void remove(Key key) {
+        synchronized (entries) {
+            Entry old = entries.remove(key);
+            if (old != null) bytes -= old.weight;
+        }
+    }
+
+    long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private TypeStats stats(String type) {
+        return stats.computeIfAbsent(type, t -> new TypeStats(t, meters));
+    }
+
+    private static String normalize(String fhirBase) {
+        return fhirBase.replaceAll("/+$", "");
+    }
+
+    private static final class Entry {
+        final Resource resource;
+        final String etag;
+        final String lastModified;
+        final long weight;
+        volatile long validatedAt = System.nanoTime();
+
+        Entry(Resource resource, String etag, String lastModified, long weight) {
+            this.resource = resource;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Captured implements Consumer<IHttpResponse> {
+        String etag;
+        String lastModified;
+        long contentLength = -1;
+
+        @Override
+        public void accept(IHttpResponse r) {
+            etag = first(r, "ETag");
+            lastModified = first(r, "Last-Modified");
+            String len = first(r, "Content-Length");
+            if (len != null) {
+                try {
+                    contentLength = Long.parseLong(len.trim());
+                } catch (NumberFormatException ignore) {
+                    // leave unknown
+                }
+            }
+        }
+
+        private static String first(IHttpResponse r, String name) {
+            List<String> v = r.getHeaders(name);
+            return v == null || v.isEmpty() ? null : v.get(0);
+        }
+    }
+
+    private static final class TypeStats {
+        final Counter hit;
+        final Counter revalidated;
+        final Counter miss;
+
+        TypeStats(String type, MeterRegistry meters) {
+            hit = Counter.builder("smart.fhir.cache").tag("type", type).tag("result", "hit").register(meters);
+            revalidated = Counter.builder("smart.fhir.cache").tag("type", type).tag("result", "revalidated").register(meters);
+            miss = Counter.builder("smart.fhir.cache").tag("type", type).tag("result", "miss").register(meters);
+            // revalidated reads still cost a round trip, but no body or parse
+            Gauge.builder("smart.fhir.cache.hit.ratio", this, TypeStats::ratio).tag("type", type).register(meters);
+        }
+
+        double ratio() {
+            double served = hit.count() + revalidated.count();
+            double total = served + miss.count();
+            return total == 0 ? 0 : served / total;
+        }
+    }
+}
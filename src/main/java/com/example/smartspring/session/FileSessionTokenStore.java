@@ -0,0 +1,113 @@
+package com.example.smartspring.session;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-host store that survives restarts: one file per session under a directory, holding the expiry followed by
+ * the value. Writes go to a temp file that is atomically moved into place, so readers never see a torn record.
+ */
+public class FileSessionTokenStore implements SessionTokenStore {
+
+    private static final int SWEEP_EVERY = 256;
+
+    private final Path dir;
+    private final AtomicInteger writes = new AtomicInteger();
+
+    public FileSessionTokenStore(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sweep();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        Path f = file(key);
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f));
+            if (buf.remaining() < Long.BYTES) return null;
+            if (buf.getLong() <= Instant.now().getEpochSecond()) {
+                Files.deleteIfExists(f);
+                return null;
+            }
+            byte[] value = new byte[buf.remaining()];
+            buf.get(value);
+            return value;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAtEpochSeconds) {
+        Path target = file(key);
+        try {
+            Path tmp = Files.createTempFile(dir, ".w", ".tmp");
+            Files.write(tmp, ByteBuffer.allocate(Long.BYTES + value.length).putLong(expiresAtEpochSeconds).put(value).array());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (writes.incrementAndGet() % SWEEP_EVERY == 0) sweep();
+    }
+
+    @Override
+    public void remove(String key) {
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Deletes expired records and temp files left behind by a crash. */
+    void sweep() {
+        long now = Instant.now().getEpochSecond();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                try {
+                    if (f.getFileName().toString().endsWith(".tmp")) {
+                        if (Files.getLastModifiedTime(f).toInstant().isBefore(Instant.now().minusSeconds(60))) Files.deleteIfExists(f);
+                        continue;
+                    }
+                    ByteBuffer head = ByteBuffer.allocate(Long.BYTES);
+                    try (var ch = Files.newByteChannel(f)) {
+                        ch.read(head);
+                    }
+                    if (head.position() < Long.BYTES || head.flip().getLong() <= now) Files.deleteIfExists(f);
+                } catch (NoSuchFileException ignore) {
+                    // removed concurrently
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // session ids are random already; hashing just keeps arbitrary keys out of the file system namespace
+    private Path file(String key) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return dir.resolve(HexFormat.of().formatHex(h));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.smartspring.session;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Process-local store; fine for a single node, lost on restart. */
+public class InMemorySessionTokenStore implements SessionTokenStore {
+
+    private static final int SWEEP_EVERY = 256;
+
+    private record Entry(byte[] value, long expiresAt) {}
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Override
+    public byte[] get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return null;
+        if (e.expiresAt() <= Instant.now().getEpochSecond()) {
+            entries.remove(key, e);
+            return null;
+        }
+        return e.value();
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAtEpochSeconds) {
+        entries.put(key, new Entry(value, expiresAtEpochSeconds));
+        if (writes.incrementAndGet() % SWEEP_EVERY == 0) {
+            long now = Instant.now().getEpochSecond();
+            entries.values().removeIf(e -> e.expiresAt() <= now);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.remove(key);
+    }
+}
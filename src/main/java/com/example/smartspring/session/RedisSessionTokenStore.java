@@ -0,0 +1,172 @@
+package com.example.smartspring.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Network key-value backend speaking the Redis protocol (RESP2), so any Redis-compatible server - or a local
+ * stand-in - can hold sessions shared by all nodes. Entries carry a PX expiry derived from the token expiry.
+ */
+public class RedisSessionTokenStore implements SessionTokenStore, Closeable {
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int database;
+    private final int timeoutMs;
+    private final String prefix;
+    private final BlockingQueue<Conn> idle;
+
+    public RedisSessionTokenStore(String host, int port, String password, int database, Duration timeout, int poolSize, String prefix) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.timeoutMs = (int) timeout.toMillis();
+        this.prefix = prefix;
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return (byte[]) exec(bytes("GET"), bytes(prefix + key));
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAtEpochSeconds) {
+        long ttlMs = expiresAtEpochSeconds * 1000 - System.currentTimeMillis();
+        if (ttlMs <= 0) {
+            remove(key);
+            return;
+        }
+        exec(bytes("SET"), bytes(prefix + key), value, bytes("PX"), bytes(Long.toString(ttlMs)));
+    }
+
+    @Override
+    public void remove(String key) {
+        exec(bytes("DEL"), bytes(prefix + key));
+    }
+
+    @Override
+    public void close() {
+        Conn c;
+        while ((c = idle.poll()) != null) c.close();
+    }
+
+    private Object exec(byte[]... args) {
+        Conn c = idle.poll();
+        boolean pooled = false;
+        try {
+            if (c == null) c = connect();
+            Object reply = c.call(args);
+            pooled = idle.offer(c);
+            return reply;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Redis " + host + ":" + port + " " + new String(args[0], StandardCharsets.US_ASCII) + " failed", e);
+        } finally {
+            // the connection state is unknown after any failure (a malformed reply too); never hand it out again
+            if (c != null && !pooled) c.close();
+        }
+    }
+
+    private Conn connect() throws IOException {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(host, port), timeoutMs);
+        s.setSoTimeout(timeoutMs);
+        s.setTcpNoDelay(true);
+        Conn c = new Conn(s);
+        try {
+            if (password != null && !password.isBlank()) c.call(bytes("AUTH"), bytes(password));
+            if (database != 0) c.call(bytes("SELECT"), bytes(Integer.toString(database)));
+        } catch (IOException | RuntimeException e) {
+            c.close();
+            throw e;
+        }
+        return c;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Conn {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Conn(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        Object call(byte[]... args) throws IOException {
+            out.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (byte[] a : args) {
+                out.write(('$' + Integer.toString(a.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(a);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.flush();
+            return read();
+        }
+
+        private Object read() throws IOException {
+            int type = in.read();
+            String line = line();
+            switch (type) {
+                case '+':
+                    return line;
+                case ':':
+                    return Long.parseLong(line);
+                case '-':
+                    throw new IOException("Redis error: " + line);
+                case '$': {
+                    int len = Integer.parseInt(line);
+                    if (len < 0) return null;
+                    byte[] b = in.readNBytes(len);
+                    if (b.length != len) throw new IOException("Connection closed mid-reply");
+                    line(); // trailing CRLF
+                    return b;
+                }
+                case -1:
+                    throw new IOException("Connection closed");
+                default:
+                    throw new IOException("Unexpected reply type '" + (char) type + "'");
+            }
+        }
+
+        private String line() throws IOException {
+            ByteArrayOutputStream b = new ByteArrayOutputStream(16);
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\r') {
+                    in.read();
+                    break;
+                }
+                b.write(c);
+            }
+            return b.toString(StandardCharsets.US_ASCII);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
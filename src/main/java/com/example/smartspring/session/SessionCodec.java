@@ -0,0 +1,169 @@
+package com.example.smartspring.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Turns a {@link SmartSession} into the bytes a store keeps: a compact binary record (a version byte, then
+ * length-prefixed UTF-8 fields and a varint expiry) sealed with AES-GCM. The session id is bound in as associated
+ * data, so a record copied under another key fails to open. Tokens are therefore never at rest in clear text.
+ */
+public class SessionCodec {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionCodec.class);
+    private static final byte VERSION = 1;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecretKeySpec key;
+    private final SecureRandom rng = new SecureRandom();
+
+    public SessionCodec(String base64Key) {
+        byte[] k;
+        if (base64Key == null || base64Key.isBlank()) {
+            k = new byte[32];
+            rng.nextBytes(k);
+            log.warn("smart.session.encryption-key is not set; using a random key, so stored sessions will not survive a restart or be readable by other nodes");
+        } else {
+            k = Base64.getDecoder().decode(base64Key.trim());
+            if (k.length != 16 && k.length != 24 && k.length != 32) {
+                throw new IllegalArgumentException("smart.session.encryption-key must be a base64 AES key of 16, 24 or 32 bytes");
+            }
+        }
+        this.key = new SecretKeySpec(k, "AES");
+    }
+
+    public byte[] seal(String sessionId, SmartSession s) {
+        return sealBytes(sessionId, encode(s));
+    }
+
+    /** The session, or null if the record was written with another key, for another id, or is corrupt. */
+    public SmartSession open(String sessionId, byte[] sealed) {
+        try {
+            byte[] plain = openBytes(sessionId, sealed);
+            return plain == null ? null : decode(plain);
+        } catch (RuntimeException e) {
+            log.debug("Discarding unreadable session record: {}", e.toString());
+            return null;
+        }
+    }
+
+    /** Seals other per-user data (synced patient views, page tokens) under the session key, bound to {@code aad}. */
+    public byte[] sealBytes(String aad, byte[] plain) {
+        byte[] iv = new byte[IV_BYTES];
+        rng.nextBytes(iv);
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            c.updateAAD(aad.getBytes(StandardCharsets.UTF_8));
+            byte[] out = Arrays.copyOf(iv, IV_BYTES + c.getOutputSize(plain.length));
+            c.doFinal(plain, 0, plain.length, out, IV_BYTES);
+            return out;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** What {@link #sealBytes} sealed, or null if it was sealed with another key or {@code aad}, or is corrupt. */
+    public byte[] openBytes(String aad, byte[] sealed) {
+        if (sealed == null || sealed.length <= IV_BYTES) return null;
+        try {
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            c.updateAAD(aad.getBytes(StandardCharsets.UTF_8));
+            return c.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] encode(SmartSession s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(VERSION);
+        str(out, s.fhirBase());
+        str(out, s.launch());
+        str(out, s.oauthState());
+        str(out, s.codeVerifier());
+        str(out, s.tokenEndpoint());
+        str(out, s.clientId());
+        str(out, s.accessToken());
+        str(out, s.refreshToken());
+        varint(out, s.expiresEpochSeconds());
+        str(out, s.tokenType());
+        str(out, s.patientId());
+        str(out, s.scope());
+        return out.toByteArray();
+    }
+
+    static SmartSession decode(byte[] b) {
+        Reader r = new Reader(b);
+        if (b.length == 0 || b[r.pos++] != VERSION) throw new IllegalArgumentException("Unknown session record version");
+        return new SmartSession(r.str(), r.str(), r.str(), r.str(), r.str(), r.str(), r.str(), r.str(), r.varint(), r.str(), r.str(),
+                r.more() ? r.str() : null);
+    }
+
+    // null is length 0, otherwise length + 1, so empty and absent strings stay distinct
+    private static void str(ByteArrayOutputStream out, String s) {
+        if (s == null) {
+            varint(out, 0);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        varint(out, b.length + 1L);
+        out.write(b, 0, b.length);
+    }
+
+    private static void varint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static final class Reader {
+        final byte[] b;
+        int pos;
+
+        Reader(byte[] b) {
+            this.b = b;
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte x = b[pos++];
+                v |= (long) (x & 0x7F) << shift;
+                if ((x & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        // fields appended later are optional, so older records still decode
+        boolean more() {
+            return pos < b.length;
+        }
+
+        String str() {
+            long n = varint();
+            if (n == 0) return null;
+            int len = Math.toIntExact(n - 1);
+            String s = new String(b, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.smartspring.session;
+
+import com.example.smartspring.config.AppProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/** Picks the {@link SessionTokenStore} backend from {@code smart.session.store}. */
+@Configuration
+public class SessionStoreConfig {
+
+    @Bean
+    public SessionTokenStore sessionTokenStore(AppProperties props) {
+        AppProperties.Session cfg = props.getSession();
+        return switch (cfg.getStore()) {
+            case MEMORY -> new InMemorySessionTokenStore();
+            case FILE -> new FileSessionTokenStore(Path.of(cfg.getFile().getDirectory()));
+            case REDIS -> {
+                AppProperties.Session.RedisStore r = cfg.getRedis();
+                yield new RedisSessionTokenStore(r.getHost(), r.getPort(), r.getPassword(), r.getDatabase(), r.getTimeout(),
+                        r.getPoolSize(), r.getKeyPrefix());
+            }
+        };
+    }
+
+    @Bean
+    public SessionCodec sessionCodec(AppProperties props) {
+        return new SessionCodec(props.getSession().getEncryptionKey());
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.smartspring.session;
+
+/**
+ * Storage SPI for {@link SmartSession}s. Implementations only see opaque, already encrypted values and must stop
+ * returning an entry once {@code expiresAtEpochSeconds} has passed.
+ */
+public interface SessionTokenStore {
+
+    /** The stored value, or null if absent or expired. */
+    byte[] get(String key);
+
+    void put(String key, byte[] value, long expiresAtEpochSeconds);
+
+    void remove(String key);
+}
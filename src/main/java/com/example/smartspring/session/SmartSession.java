@@ -0,0 +1,38 @@
+package com.example.smartspring.session;
+
+import com.example.smartspring.oauth.TokenService.TokenSet;
+
+/**
+ * Everything the app remembers about one browser: the launch context, the pending authorization request and,
+ * once the code is exchanged, the tokens. Loaded once per request from the {@link SessionTokenStore}.
+ */
+public record SmartSession(String fhirBase, String launch, String oauthState, String codeVerifier, String tokenEndpoint,
+                           String clientId, String accessToken, String refreshToken, long expiresEpochSeconds,
+                           String tokenType, String patientId, String scope) {
+
+    public static final SmartSession EMPTY = new SmartSession(null, null, null, null, null, null, null, null, 0, null, null, null);
+
+    public SmartSession withLaunch(String fhirBase, String launch) {
+        return new SmartSession(fhirBase, launch, oauthState, codeVerifier, tokenEndpoint, clientId, accessToken, refreshToken,
+                expiresEpochSeconds, tokenType, patientId, scope);
+    }
+
+    public SmartSession withPendingAuth(String fhirBase, String oauthState, String codeVerifier, String tokenEndpoint) {
+        return new SmartSession(fhirBase, launch, oauthState, codeVerifier, tokenEndpoint, clientId, accessToken, refreshToken,
+                expiresEpochSeconds, tokenType, patientId, scope);
+    }
+
+    /**
+     * Stores a token response; the one-time state and verifier are dropped, the patient and granted scope are kept
+     * if the response has none.
+     */
+    public SmartSession withTokens(String clientId, TokenSet t) {
+        String patient = t.patientId() != null && !t.patientId().isBlank() ? t.patientId() : patientId;
+        return new SmartSession(fhirBase, launch, null, null, tokenEndpoint, clientId, t.accessToken(), t.refreshToken(),
+                t.expiresEpochSeconds(), t.tokenType(), patient, t.scope() != null ? t.scope() : scope);
+    }
+
+    public boolean authenticated() {
+        return accessToken != null;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.smartspring.session;
+
+import com.example.smartspring.config.AppProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.ResponseCookie;
+import org.springframework.stereotype.Component;
+
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Cookie-addressed sessions backed by the {@link SessionTokenStore}, replacing the servlet {@code HttpSession} so
+ * any node can serve any request. The record is read at most once per request and cached as a request attribute.
+ */
+@Component
+public class SmartSessions {
+
+    private static final String ID_ATTR = SmartSessions.class.getName() + ".id";
+    private static final String SESSION_ATTR = SmartSessions.class.getName() + ".session";
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private final SessionTokenStore store;
+    private final SessionCodec codec;
+    private final AppProperties.Session cfg;
+    private final Timer loads;
+    private final Timer saves;
+    private final Counter misses;
+
+    public SmartSessions(SessionTokenStore store, SessionCodec codec, AppProperties props, MeterRegistry meters) {
+        this.store = store;
+        this.codec = codec;
+        this.cfg = props.getSession();
+        String backend = cfg.getStore().name().toLowerCase();
+        this.loads = Timer.builder("smart.session.store").tag("op", "get").tag("store", backend).register(meters);
+        this.saves = Timer.builder("smart.session.store").tag("op", "put").tag("store", backend).register(meters);
+        this.misses = Counter.builder("smart.session.miss").tag("store", backend).register(meters);
+    }
+
+    /** The caller's session, or {@link SmartSession#EMPTY} if there is no cookie or the record is gone. */
+    public SmartSession get(HttpServletRequest req) {
+        if (req.getAttribute(SESSION_ATTR) instanceof SmartSession s) return s;
+        String id = cookie(req);
+        SmartSession s = id == null ? null : load(id);
+        if (s == null) s = SmartSession.EMPTY;
+        req.setAttribute(SESSION_ATTR, s);
+        if (id != null) req.setAttribute(ID_ATTR, id);
+        return s;
+    }
+
+    /** The session id from the cookie, or one issued earlier in this request; null if there is none yet. */
+    public String id(HttpServletRequest req) {
+        if (req.getAttribute(ID_ATTR) instanceof String id) return id;
+        return cookie(req);
+    }
+
+    /** Stores the session, issuing a new id and cookie the first time. */
+    public void save(HttpServletRequest req, HttpServletResponse res, SmartSession s) {
+        String id = id(req);
+        if (id == null) {
+            id = newId();
+            req.setAttribute(ID_ATTR, id);
+            ResponseCookie c = ResponseCookie.from(cfg.getCookieName(), id).httpOnly(true).secure(cfg.isCookieSecure())
+                    .sameSite("Lax").path("/").build();
+            res.addHeader("Set-Cookie", c.toString());
+        }
+        save(id, s);
+        req.setAttribute(SESSION_ATTR, s);
+    }
+
+    public SmartSession load(String id) {
+        byte[] sealed = loads.record(() -> store.get(id));
+        SmartSession s = sealed == null ? null : codec.open(id, sealed);
+        if (s == null) misses.increment();
+        return s;
+    }
+
+    public void save(String id, SmartSession s) {
+        byte[] sealed = codec.seal(id, s);
+        saves.record(() -> store.put(id, sealed, expiresAt(s)));
+    }
+
+    public void delete(String id) {
+        store.remove(id);
+    }
+
+    // A session is worth keeping while its access token works, and a while longer if it can still be refreshed.
+    long expiresAt(SmartSession s) {
+        long now = Instant.now().getEpochSecond();
+        if (!s.authenticated()) return now + cfg.getPreAuthTtl().toSeconds();
+        long exp = s.expiresEpochSeconds() > 0 ? s.expiresEpochSeconds() : now + cfg.getIdleTimeout().toSeconds();
+        if (s.refreshToken() != null) exp = Math.max(exp, now) + cfg.getRefreshGrace().toSeconds();
+        return exp;
+    }
+
+    private String cookie(HttpServletRequest req) {
+        Cookie[] cookies = req.getCookies();
+        if (cookies == null) return null;
+        for (Cookie c : cookies) {
+            if (cfg.getCookieName().equals(c.getName()) && !c.getValue().isBlank()) return c.getValue();
+        }
+        return null;
+    }
+
+    private static String newId() {
+        byte[] b = new byte[32];
+        RNG.nextBytes(b);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+    }
+}
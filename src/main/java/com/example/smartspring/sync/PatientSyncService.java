@@ -0,0 +1,310 @@
+package com.example.smartspring.sync;
+
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.oauth.TokenManager;
+import com.example.smartspring.service.FhirClientRegistry;
+import com.example.smartspring.service.FhirService;
+import com.example.smartspring.service.PatientSummaryService;
+import com.example.smartspring.service.PatientSummaryService.PatientSummary;
+import com.example.smartspring.session.SessionCodec;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a local {@link PatientView} of each recently opened patient's /me data ({@code smart.sync}), so /me renders
+ * without going upstream. Patients are tracked from their first /me and synced in the background with the token of
+ * the session that last opened them; after a full load, each sync asks only for what changed since the checkpoint
+ * ({@code _lastUpdated=gt...}) and merges it in by id, keeping each type newest ({@code meta.lastUpdated}) first.
+ * Since {@code _lastUpdated} never reports deletions, an incremental sync also lists the ids each search still matches
+ * ({@code _elements=id}) and drops the rest; the Patient itself is read in full every time.
+ * Views are keyed like the resource cache, so sessions sharing a patient-only grant share one view and anything
+ * broader keeps its own.
+ * <p>
+ * A view that does not exist yet or is older than {@code maxStale} is not used: /me falls back to the live reads and
+ * the patient is synced at once.
+ */
+@Service
+public class PatientSyncService {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientSyncService.class);
+    // by meta.lastUpdated, descending; resources without one last, ties in the order they were merged
+    private static final Comparator<Resource> NEWEST_FIRST = Comparator.comparing(
+            PatientSyncService::lastUpdated, Comparator.nullsLast(Comparator.reverseOrder()));
+
+    private final AppProperties.Sync cfg;
+    private final FhirService fhir;
+    private final PatientSummaryService summaries;
+    private final TokenManager tokens;
+    private final SmartSessions sessions;
+    private final PatientViewStore views;
+    private final MeterRegistry meters;
+    private final Counter changes;
+    private final Counter servedView;
+    private final Counter servedLive;
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "patient-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PatientSyncService(AppProperties props, FhirService fhir, PatientSummaryService summaries, TokenManager tokens,
+                              SmartSessions sessions, SessionCodec codec, FhirClientRegistry clients, MeterRegistry meters) {
+        this.cfg = props.getSync();
+        this.fhir = fhir;
+        this.summaries = summaries;
+        this.tokens = tokens;
+        this.sessions = sessions;
+        this.meters = meters;
+        this.permits = new Semaphore(Math.max(1, cfg.getMaxConcurrent()));
+        String dir = cfg.getDirectory();
+        this.views = cfg.isEnabled() ? new PatientViewStore(clients::context, codec,
+                dir == null || dir.isBlank() ? null : Path.of(dir), cfg.getMaxViews(), cfg.getIdleTimeout()) : null;
+        this.changes = meters.counter("smart.sync.changes");
+        this.servedView = meters.counter("smart.sync.served", "source", "view");
+        this.servedLive = meters.counter("smart.sync.served", "source", "live");
+        meters.gaugeMapSize("smart.sync.patients", Tags.empty(), tracked);
+        if (cfg.isEnabled()) ticker.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The /me summary from the patient's synced view, or null if sync is off or the view is missing or too old, in
+     * which case the caller reads live. Either way the patient is tracked under {@code sessionId} from now on.
+     */
+    public PatientSummary summary(String sessionId, String fhirBase, String patientId, String scope) {
+        if (!cfg.isEnabled() || scope == null || sessionId == null) return null;
+        Tracked t = tracked.compute(scope, (k, old) -> old != null && old.fhirBase.equals(fhirBase) && old.patientId.equals(patientId)
+                ? old : new Tracked(scope, fhirBase, patientId));
+        t.sessionId = sessionId;
+        t.lastViewed = System.currentTimeMillis();
+        PatientView v = views.get(scope);
+        if (v == null || !v.fhirBase().equals(fhirBase) || !v.patientId().equals(patientId)
+                || v.syncedAt().isBefore(Instant.now().minus(cfg.getMaxStale()))) {
+            servedLive.increment();
+            t.nextDue = 0;
+            dispatch(t);
+            return null;
+        }
+        servedView.increment();
+        return summaries.fromResources(v.patient(), v.byType(), v.syncedAt());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        ticker.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    // every second: forget patients nobody opened within idleTimeout, start the syncs that are due
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long idle = cfg.getIdleTimeout().toMillis();
+        tracked.values().removeIf(t -> now - t.lastViewed > idle);
+        for (Tracked t : tracked.values()) {
+            if (t.nextDue <= now) dispatch(t);
+        }
+    }
+
+    private void dispatch(Tracked t) {
+        if (!t.running.compareAndSet(false, true)) return;
+        if (!permits.tryAcquire()) {
+            t.running.set(false); // picked up again on a later tick
+            return;
+        }
+        workers.execute(() -> {
+            try {
+                sync(t);
+            } catch (RuntimeException e) {
+                log.warn("Sync of patient {} failed: {}", t.patientId, e.toString());
+            } finally {
+                t.nextDue = System.currentTimeMillis() + cfg.getInterval().toMillis();
+                permits.release();
+                t.running.set(false);
+            }
+        });
+    }
+
+    private void sync(Tracked t) {
+        SmartSession session = sessions.load(t.sessionId);
+        String access = session == null ? null : tokens.accessToken(t.sessionId, session);
+        if (access == null) {
+            // logged out or expired; the patient is tracked again by the next session that opens it
+            tracked.remove(t.scope, t);
+            return;
+        }
+        PatientView previous = views.get(t.scope);
+        if (previous != null && (!previous.fhirBase().equals(t.fhirBase) || !previous.patientId().equals(t.patientId))) previous = null;
+        boolean full = previous == null || previous.fullAt().isBefore(Instant.now().minus(cfg.getFullResyncEvery()));
+        String mode = full ? "full" : "incremental";
+        long start = System.nanoTime();
+        try {
+            PatientView next = fetch(t, access, full ? null : previous);
+            views.put(t.scope, next);
+            Timer.builder("smart.sync").tags("mode", mode, "outcome", "ok").register(meters).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            Timer.builder("smart.sync").tags("mode", mode, "outcome", "error").register(meters).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    // everything when `previous` is null, else only what changed since its checkpoint, merged into a copy of it
+    private PatientView fetch(Tracked t, String access, PatientView previous) {
+        Instant checkpoint = Instant.now();
+        String since = previous == null ? "" : "&_lastUpdated=" + enc("gt" + previous.checkpoint().minus(cfg.getOverlap())
+                .truncatedTo(ChronoUnit.MILLIS));
+
+        // one resource, so read in full: a deleted patient takes its view with it
+        Bundle patients = fhir.search(t.fhirBase, access, "Patient", "_id=" + enc(t.patientId));
+        checkpoint = earlier(checkpoint, patients);
+        Patient patient = patients.getEntry().stream().map(Bundle.BundleEntryComponent::getResource)
+                .filter(Patient.class::isInstance).map(Patient.class::cast).findFirst().orElse(null);
+        if (patient == null) {
+            if (previous != null) views.remove(t.scope);
+            throw new IllegalStateException("Patient not found");
+        }
+
+        Map<String, Map<String, Resource>> merged = new LinkedHashMap<>();
+        if (previous != null) {
+            previous.byType().forEach((type, list) -> {
+                Map<String, Resource> byId = new LinkedHashMap<>();
+                for (Resource r : list) byId.put(id(r), r);
+                merged.put(type, byId);
+            });
+        }
+        int received = 0;
+        for (Map.Entry<String, String> s : summaries.syncedSearches().entrySet()) {
+            String query = "patient=" + enc("Patient/" + t.patientId) + (s.getValue().isEmpty() ? "" : "&" + s.getValue())
+                    + since + "&_count=" + cfg.getPageSize();
+            Bundle first = fhir.search(t.fhirBase, access, s.getKey(), query);
+            checkpoint = earlier(checkpoint, first);
+            merged.computeIfAbsent(s.getKey(), k -> new LinkedHashMap<>());
+            try (Stream<Bundle> pages = fhir.pages(t.fhirBase, access, first)) {
+                for (Bundle page : (Iterable<Bundle>) pages::iterator) {
+                    for (Bundle.BundleEntryComponent e : page.getEntry()) {
+                        Resource r = e.getResource();
+                        if (r == null || !r.hasIdElement()) continue;
+                        merged.computeIfAbsent(r.fhirType(), k -> new LinkedHashMap<>()).put(id(r), r);
+                        received++;
+                    }
+                }
+            }
+        }
+        if (previous != null) {
+            // deletions (and resources that no longer match the search) only show up as ids missing from a listing;
+            // included types (Medication) are left, they are only looked up by reference
+            for (Map.Entry<String, String> s : summaries.syncedSearches().entrySet()) {
+                Map<String, Resource> byId = merged.get(s.getKey());
+                int before = byId.size();
+                byId.keySet().retainAll(ids(t, access, s.getKey(), s.getValue()));
+                received += before - byId.size();
+            }
+            boolean patientChanged = !Objects.equals(lastUpdated(patient), lastUpdated(previous.patient()));
+            changes.increment(received + (patientChanged ? 1 : 0));
+        }
+
+        // newest first, so what changed since the last sync is not cut off by the medicationCount / sectionCount caps
+        Map<String, List<Resource>> byType = new LinkedHashMap<>();
+        merged.forEach((type, byId) -> {
+            List<Resource> l = new ArrayList<>(byId.values());
+            l.sort(NEWEST_FIRST);
+            byType.put(type, List.copyOf(l));
+        });
+        Instant now = Instant.now();
+        return new PatientView(t.fhirBase, t.patientId, patient, Collections.unmodifiableMap(byType), checkpoint, now,
+                previous == null ? now : previous.fullAt());
+    }
+
+    // ids of the `type` resources the search matches now; `_include`s are left off, only the matches count
+    private Set<String> ids(Tracked t, String access, String type, String filter) {
+        StringBuilder query = new StringBuilder("patient=").append(enc("Patient/" + t.patientId));
+        for (String p : filter.split("&")) {
+            if (!p.isEmpty() && !p.startsWith("_include")) query.append('&').append(p);
+        }
+        query.append("&_elements=id&_count=").append(cfg.getPageSize());
+        Set<String> ids = new HashSet<>();
+        Bundle first = fhir.search(t.fhirBase, access, type, query.toString());
+        try (Stream<Bundle> pages = fhir.pages(t.fhirBase, access, first)) {
+            for (Bundle page : (Iterable<Bundle>) pages::iterator) {
+                for (Bundle.BundleEntryComponent e : page.getEntry()) {
+                    Resource r = e.getResource();
+                    if (r != null && r.hasIdElement() && r.fhirType().equals(type)) ids.add(id(r));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static Date lastUpdated(Resource r) {
+        return r.hasMeta() ? r.getMeta().getLastUpdated() : null;
+    }
+
+    // the server's own clock is the safer checkpoint when it reports one
+    private static Instant earlier(Instant checkpoint, Bundle b) {
+        if (b.getMeta().hasLastUpdated()) {
+            Instant server = b.getMeta().getLastUpdated().toInstant();
+            if (server.isBefore(checkpoint)) return server;
+        }
+        return checkpoint;
+    }
+
+    private static String id(Resource r) {
+        return r.getIdElement().getIdPart();
+    }
+
+    private static String enc(String v) {
+        return URLEncoder.encode(v, StandardCharsets.UTF_8);
+    }
+
+    private static final class Tracked {
+        final String scope;
+        final String fhirBase;
+        final String patientId;
+        final AtomicBoolean running = new AtomicBoolean();
+        volatile String sessionId;
+        volatile long lastViewed;
+        volatile long nextDue;
+
+        Tracked(String scope, String fhirBase, String patientId) {
+            this.scope = scope;
+            this.fhirBase = fhirBase;
+            this.patientId = patientId;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.smartspring.sync;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A patient's /me data as of the last sync: the Patient and each synced resource type's resources, newest
+ * ({@code meta.lastUpdated}) first. {@code checkpoint} is the server time the next incremental sync asks for changes
+ * since; {@code fullAt} is when everything was last reloaded. Never modified once built; each sync makes a new one.
+ */
+public record PatientView(String fhirBase, String patientId, Patient patient, Map<String, List<Resource>> byType,
+                          Instant checkpoint, Instant syncedAt, Instant fullAt) {
+
+    public int size() {
+        int n = 1;
+        for (List<Resource> l : byType.values()) n += l.size();
+        return n;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.smartspring.sync;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.example.smartspring.session.SessionCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Synced views by scope key: the {@code maxViews} most recently used in memory and, when {@code dir} is set, every
+ * view on disk as well, so a restart resumes from each view's checkpoint instead of reloading it. A view file is a
+ * small JSON record with the resources as one FHIR collection Bundle, sealed with {@link SessionCodec} (patient data
+ * is never at rest in clear text) and written to a temp file that is atomically moved into place.
+ */
+final class PatientViewStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientViewStore.class);
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Supplier<FhirContext> ctx;
+    private final SessionCodec codec;
+    private final Path dir;
+    private final Map<String, PatientView> memory;
+
+    PatientViewStore(Supplier<FhirContext> ctx, SessionCodec codec, Path dir, int maxViews, Duration keepFiles) {
+        this.ctx = ctx;
+        this.codec = codec;
+        this.dir = dir;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PatientView> eldest) {
+                return size() > maxViews;
+            }
+        };
+        if (dir != null) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            sweep(keepFiles);
+        }
+    }
+
+    PatientView get(String key) {
+        synchronized (memory) {
+            PatientView v = memory.get(key);
+            if (v != null || dir == null) return v;
+        }
+        PatientView v = read(key);
+        if (v != null) {
+            synchronized (memory) {
+                memory.putIfAbsent(key, v);
+            }
+        }
+        return v;
+    }
+
+    void put(String key, PatientView v) {
+        synchronized (memory) {
+            memory.put(key, v);
+        }
+        if (dir != null) write(key, v);
+    }
+
+    void remove(String key) {
+        synchronized (memory) {
+            memory.remove(key);
+        }
+        if (dir == null) return;
+        try {
+            Files.deleteIfExists(file(key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    private PatientView read(String key) {
+        byte[] sealed;
+        try {
+            sealed = Files.readAllBytes(file(key));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] plain = codec.openBytes(key, sealed);
+        if (plain == null) return null; // sealed under another key, e.g. a random one before a restart
+        try {
+            Stored s = JSON.readValue(plain, Stored.class);
+            Bundle b = ctx.get().newJsonParser().parseResource(Bundle.class, s.resources());
+            Patient patient = null;
+            Map<String, List<Resource>> byType = new LinkedHashMap<>();
+            for (Bundle.BundleEntryComponent e : b.getEntry()) {
+                Resource r = e.getResource();
+                if (patient == null && r instanceof Patient p) patient = p;
+                else byType.computeIfAbsent(r.fhirType(), k -> new ArrayList<>()).add(r);
+            }
+            if (patient == null) return null;
+            byType.replaceAll((k, l) -> List.copyOf(l));
+            return new PatientView(s.fhirBase(), s.patientId(), patient, Collections.unmodifiableMap(byType),
+                    Instant.ofEpochMilli(s.checkpoint()), Instant.ofEpochMilli(s.syncedAt()), Instant.ofEpochMilli(s.fullAt()));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Discarding unreadable patient view: {}", e.toString());
+            return null;
+        }
+    }
+
+    private void write(String key, PatientView v) {
+        Bundle b = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        b.addEntry().setResource(v.patient());
+        for (List<Resource> l : v.byType().values()) {
+            for (Resource r : l) b.addEntry().setResource(r);
+        }
+        try {
+            byte[] plain = JSON.writeValueAsBytes(new Stored(v.fhirBase(), v.patientId(), v.checkpoint().toEpochMilli(),
+                    v.syncedAt().toEpochMilli(), v.fullAt().toEpochMilli(), ctx.get().newJsonParser().encodeResourceToString(b)));
+            Path tmp = Files.createTempFile(dir, ".w", ".tmp");
+            Files.write(tmp, codec.sealBytes(key, plain));
+            Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // views nobody has synced for `keep` (their patients were no longer opened) and temp files left behind by a crash
+    private void sweep(Duration keep) {
+        Instant cutoff = Instant.now().minus(keep);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                try {
+                    Instant cut = f.getFileName().toString().endsWith(".tmp") ? Instant.now().minusSeconds(60) : cutoff;
+                    if (Files.getLastModifiedTime(f).toInstant().isBefore(cut)) Files.deleteIfExists(f);
+                } catch (NoSuchFileException ignore) {
+                    // removed concurrently
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path file(String key) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return dir.resolve(HexFormat.of().formatHex(h));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Stored(String fhirBase, String patientId, long checkpoint, long syncedAt, long fullAt, String resources) {}
+}
@@ -0,0 +1,89 @@
+package com.example.smartspring.web;
+
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.oauth.Tenant;
+import com.example.smartspring.oauth.TenantRegistry;
+import com.example.smartspring.oauth.TokenManager;
+import com.example.smartspring.oauth.TokenService;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import com.nimbusds.oauth2.sdk.AuthorizationCode;
+import com.nimbusds.oauth2.sdk.pkce.CodeVerifier;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.view.RedirectView;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link AuthController} for {@code smart.web.mode: ASYNC}: discovery and the code exchange complete on the HTTP
+ * client, so the servlet thread is released while they are in flight. The session is read on the request thread;
+ * the cookie already exists by the time a callback arrives, so the continuation only writes the store.
+ */
+@Controller
+@ConditionalOnProperty(prefix = "smart.web", name = "mode", havingValue = "ASYNC")
+public class AsyncAuthController {
+    private final AppProperties props;
+    private final TenantRegistry tenants;
+    private final TokenService tokenService;
+    private final TokenManager tokenManager;
+    private final SmartSessions sessions;
+
+    public AsyncAuthController(AppProperties p, TenantRegistry tr, TokenService t, TokenManager tm, SmartSessions ss) {
+        this.props = p;
+        this.tenants = tr;
+        this.tokenService = t;
+        this.tokenManager = tm;
+        this.sessions = ss;
+    }
+
+    @GetMapping("/")
+    public String home() {
+        return "index";
+    }
+
+    @GetMapping("/ehr/launch")
+    public RedirectView ehrLaunch(@RequestParam("iss") String iss, @RequestParam("launch") String launch,
+                                  HttpServletRequest req, HttpServletResponse res) {
+        tenants.require(iss);
+        sessions.save(req, res, sessions.get(req).withLaunch(iss, launch));
+        return AuthController.redirect("/auth/start");
+    }
+
+    @GetMapping("/auth/start")
+    public CompletableFuture<RedirectView> start(HttpServletRequest req, HttpServletResponse res) {
+        SmartSession session = sessions.get(req);
+        String fhirBase = AuthController.fhirBase(props, session);
+        Tenant tenant = tenants.require(fhirBase);
+        // issue the cookie now, while the response is still ours to write headers to
+        if (sessions.id(req) == null) sessions.save(req, res, session);
+        String id = sessions.id(req);
+        return tenants.endpointsAsync(tenant)
+                .thenApply(endpoints -> AuthController.authorize(props, tenant, endpoints, fhirBase, session, s -> sessions.save(id, s)));
+    }
+
+    @GetMapping("/callback")
+    public CompletableFuture<RedirectView> callback(@RequestParam(name = "code", required = false) String code,
+                                                    @RequestParam(name = "state", required = false) String state,
+                                                    @RequestParam(name = "error", required = false) String error,
+                                                    HttpServletRequest req) {
+        SmartSession session = sessions.get(req);
+        RedirectView rejected = AuthController.rejectCallback(session, state, error);
+        if (rejected != null) return CompletableFuture.completedFuture(rejected);
+        String id = sessions.id(req);
+        String clientId = tenants.require(session.fhirBase()).clientId();
+        return tokenService.exchangeCodeAsync(URI.create(session.tokenEndpoint()), clientId, props.getRedirectUri(),
+                        new AuthorizationCode(code), new CodeVerifier(session.codeVerifier()))
+                .thenApply(token -> {
+                    SmartSession s = session.withTokens(clientId, token);
+                    sessions.save(id, s);
+                    tokenManager.register(id, s);
+                    return AuthController.afterLogin(s);
+                });
+    }
+}
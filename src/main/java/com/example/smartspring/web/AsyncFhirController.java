@@ -0,0 +1,84 @@
+package com.example.smartspring.web;
+
+import com.example.smartspring.config.AppProperties;
+import com.example.smartspring.oauth.TokenManager;
+import com.example.smartspring.service.CodeDisplayCache;
+import com.example.smartspring.service.FhirService;
+import com.example.smartspring.service.PatientSummaryService;
+import com.example.smartspring.service.ResourceCache;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import com.example.smartspring.sync.PatientSyncService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.view.RedirectView;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link FhirController} for {@code smart.web.mode: ASYNC}. Pages render the same model; the token refresh and FHIR
+ * reads behind them complete on the HTTP client, and the view is resolved on the async dispatch.
+ */
+@Controller
+@ConditionalOnProperty(prefix = "smart.web", name = "mode", havingValue = "ASYNC")
+public class AsyncFhirController {
+
+    private final AppProperties props;
+    private final FhirService fhir;
+    private final TokenManager tokens;
+    private final PatientSummaryService summaries;
+    private final PageTokens pageTokens;
+    private final SmartSessions sessions;
+    private final CodeDisplayCache displays;
+    private final PatientSyncService sync;
+
+    public AsyncFhirController(AppProperties p, FhirService s, TokenManager t, PatientSummaryService ps, PageTokens pt, SmartSessions ss,
+                               CodeDisplayCache dc, PatientSyncService sy) {
+        this.props = p;
+        this.fhir = s;
+        this.tokens = t;
+        this.summaries = ps;
+        this.pageTokens = pt;
+        this.sessions = ss;
+        this.displays = dc;
+        this.sync = sy;
+    }
+
+    @GetMapping("/me")
+    public CompletableFuture<Object> me(Model model, HttpServletRequest req) {
+        SmartSession session = sessions.get(req);
+        String sessionId = sessions.id(req);
+        String fhirBase = AuthController.fhirBase(props, session);
+        String patientId = session.patientId();
+        return tokens.accessTokenAsync(sessionId, session).thenCompose(access -> {
+            if (access == null) return CompletableFuture.completedFuture(new RedirectView("/"));
+            if (patientId == null || patientId.isBlank()) return CompletableFuture.completedFuture(new RedirectView("/patients"));
+            String cacheScope = ResourceCache.scope(fhirBase, patientId, session.scope(), sessionId);
+            var synced = sync.summary(sessionId, fhirBase, patientId, cacheScope);
+            return (synced != null ? CompletableFuture.completedFuture(synced) : summaries.summaryAsync(fhirBase, access, cacheScope, patientId))
+                    .thenApply(summary -> FhirController.renderMe(model, patientId, summary, displays));
+        });
+    }
+
+    @GetMapping("/patients")
+    public CompletableFuture<Object> patients(@RequestParam(name = "page", required = false) String page,
+                                              @RequestParam(name = "size", required = false) Integer size,
+                                              Model model, HttpServletRequest req) {
+        SmartSession session = sessions.get(req);
+        String fhirBase = AuthController.fhirBase(props, session);
+        // a bad page token is a 400 before anything goes upstream
+        String pageUrl = page != null && !page.isBlank() ? FhirController.pageUrl(pageTokens, fhirBase, page) : null;
+        return tokens.accessTokenAsync(sessions.id(req), session).thenCompose(access -> {
+            if (access == null) return CompletableFuture.completedFuture(new RedirectView("/"));
+            CompletableFuture<Bundle> bundle = pageUrl != null
+                    ? fhir.pageAsync(fhirBase, access, pageUrl)
+                    : fhir.searchPatientsAsync(fhirBase, access, FhirController.pageSize(props, size));
+            return bundle.thenApply(b -> FhirController.renderPatients(model, b, fhirBase, pageTokens));
+        });
+    }
+}
@@ -3,12 +3,19 @@ package com.example.smartspring.web;
 import com.example.smartspring.config.AppProperties;
 import com.example.smartspring.oauth.PkceUtil;
 import com.example.smartspring.oauth.SmartDiscoveryService;
+import com.example.smartspring.oauth.Tenant;
+import com.example.smartspring.oauth.TenantRegistry;
+import com.example.smartspring.oauth.TokenManager;
 import com.example.smartspring.oauth.TokenService;
 import com.nimbusds.oauth2.sdk.id.State;
 import com.nimbusds.oauth2.sdk.*;
 import com.nimbusds.oauth2.sdk.pkce.*;
 import com.nimbusds.oauth2.sdk.id.ClientID;
-import jakarta.servlet.http.HttpSession;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.view.RedirectView;
@@ -16,17 +23,23 @@ import org.springframework.web.servlet.view.RedirectView;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
 
 @Controller
+@ConditionalOnExpression("'${smart.web.mode:BLOCKING}' != 'ASYNC'")
 public class AuthController {
     private final AppProperties props;
-    private final SmartDiscoveryService discovery;
+    private final TenantRegistry tenants;
     private final TokenService tokenService;
+    private final TokenManager tokenManager;
+    private final SmartSessions sessions;
 
-    public AuthController(AppProperties p, SmartDiscoveryService d, TokenService t) {
+    public AuthController(AppProperties p, TenantRegistry tr, TokenService t, TokenManager tm, SmartSessions ss) {
         this.props = p;
-        this.discovery = d;
+        this.tenants = tr;
         this.tokenService = t;
+        this.tokenManager = tm;
+        this.sessions = ss;
     }
 
     @GetMapping("/")
@@ -35,75 +48,81 @@ public class AuthController {
     }
 
     @GetMapping("/ehr/launch")
-    public RedirectView ehrLaunch(@RequestParam("iss") String iss, @RequestParam("launch") String launch, HttpSession session) {
-        session.setAttribute("runtime_fhir_base", iss);
-        session.setAttribute("runtime_launch", launch);
-        RedirectView rv = new RedirectView("/auth/start");
-        rv.setExposeModelAttributes(false);
-        return rv;
+    public RedirectView ehrLaunch(@RequestParam("iss") String iss, @RequestParam("launch") String launch,
+                                   HttpServletRequest req, HttpServletResponse res) {
+        tenants.require(iss);
+        sessions.save(req, res, sessions.get(req).withLaunch(iss, launch));
+        return redirect("/auth/start");
     }
 
     @GetMapping("/auth/start")
-    public RedirectView start(HttpSession session) {
-        String fhirBase = (String) session.getAttribute("runtime_fhir_base");
-        if (fhirBase == null || fhirBase.isBlank()) fhirBase = props.getFhirBase();
-        String launchParam = (String) session.getAttribute("runtime_launch");
+    public RedirectView start(HttpServletRequest req, HttpServletResponse res) {
+        SmartSession session = sessions.get(req);
+        String fhirBase = fhirBase(props, session);
+        Tenant tenant = tenants.require(fhirBase);
+        return authorize(props, tenant, tenants.endpoints(tenant), fhirBase, session, s -> sessions.save(req, res, s));
+    }
+
+    @GetMapping("/callback")
+    public RedirectView callback(@RequestParam(name = "code", required = false) String code,
+                                 @RequestParam(name = "state", required = false) String state,
+                                 @RequestParam(name = "error", required = false) String error,
+                                 HttpServletRequest req, HttpServletResponse res) {
+        SmartSession session = sessions.get(req);
+        RedirectView rejected = rejectCallback(session, state, error);
+        if (rejected != null) return rejected;
+        String clientId = tenants.require(session.fhirBase()).clientId();
+        var token = tokenService.exchangeCode(URI.create(session.tokenEndpoint()), clientId, props.getRedirectUri(), new AuthorizationCode(code), new CodeVerifier(session.codeVerifier()));
+        session = session.withTokens(clientId, token);
+        sessions.save(req, res, session);
+        tokenManager.register(sessions.id(req), session);
+        return afterLogin(session);
+    }
+
+    static String fhirBase(AppProperties props, SmartSession session) {
+        String fhirBase = session.fhirBase();
+        return fhirBase == null || fhirBase.isBlank() ? props.getFhirBase() : fhirBase;
+    }
+
+    // Builds the authorize redirect for the tenant's client and hands the session, now holding state and verifier, to `save`.
+    static RedirectView authorize(AppProperties props, Tenant tenant, SmartDiscoveryService.SmartEndpoints endpoints, String fhirBase,
+                                  SmartSession session, Consumer<SmartSession> save) {
+        String launchParam = session.launch();
         if ((launchParam == null || launchParam.isBlank()) && props.getLaunch() != null && !props.getLaunch().isBlank())
             launchParam = props.getLaunch();
-        var endpoints = discovery.discover(fhirBase);
         String verifierStr = PkceUtil.generateCodeVerifier();
         String challenge = PkceUtil.codeChallengeS256(verifierStr);
-        CodeVerifier verifier = new CodeVerifier(verifierStr);
         State state = new State();
         String authorize = endpoints.authorizationEndpoint().toString()
                 + "?response_type=code"
-                + "&client_id=" + url(props.getClientId())
+                + "&client_id=" + url(tenant.clientId())
                 + "&redirect_uri=" + url(props.getRedirectUri())
-                + "&scope=" + url(props.getScopes())
+                + "&scope=" + url(tenant.scopes())
                 + "&state=" + url(state.getValue())
                 + "&code_challenge=" + url(challenge)
                 + "&code_challenge_method=" + CodeChallengeMethod.S256.getValue()
                 + "&aud=" + url(fhirBase);
         if (launchParam != null && !launchParam.isBlank()) authorize += "&launch=" + url(launchParam);
-        session.setAttribute("code_verifier", verifierStr);
-        session.setAttribute("oauth_state", state.getValue());
-        session.setAttribute("token_endpoint", endpoints.tokenEndpoint().toString());
-        session.setAttribute("runtime_fhir_base", fhirBase);
-        RedirectView rv = new RedirectView(authorize);
-        rv.setExposeModelAttributes(false);
-        return rv;
+        save.accept(session.withPendingAuth(fhirBase, state.getValue(), verifierStr, endpoints.tokenEndpoint().toString()));
+        return redirect(authorize);
     }
 
-    @GetMapping("/callback")
-    public RedirectView callback(@RequestParam(name = "code", required = false) String code,
-                                 @RequestParam(name = "state", required = false) String state,
-                                 @RequestParam(name = "error", required = false) String error,
-                                 HttpSession session) {
-        if (error != null) {
-            RedirectView rv = new RedirectView("/?error=" + url(error));
-            rv.setExposeModelAttributes(false);
-            return rv;
-        }
-        String expected = (String) session.getAttribute("oauth_state");
-        if (expected == null || !expected.equals(state)) {
-            RedirectView rv = new RedirectView("/?error=" + url("state_mismatch"));
-            rv.setExposeModelAttributes(false);
-            return rv;
-        }
-        String verifier = (String) session.getAttribute("code_verifier");
-        String tokenEndpoint = (String) session.getAttribute("token_endpoint");
-        var token = tokenService.exchangeCode(URI.create(tokenEndpoint), props.getClientId(), props.getRedirectUri(), new AuthorizationCode(code), new CodeVerifier(verifier));
-        session.setAttribute("access_token", token.accessToken());
-        session.setAttribute("refresh_token", token.refreshToken());
-        session.setAttribute("token_exp", token.expiresEpochSeconds());
-        if (token.patientId() != null && !token.patientId().isBlank()) {
-            session.setAttribute("patient_id", token.patientId());
-        }
-        String next = (String) session.getAttribute("patient_id") != null ? "/me" : "/patients";
-        RedirectView rv = new RedirectView(next);
+    /** The redirect home for an error or state mismatch on the callback, or null if the code can be exchanged. */
+    static RedirectView rejectCallback(SmartSession session, String state, String error) {
+        if (error != null) return redirect("/?error=" + url(error));
+        String expected = session.oauthState();
+        if (expected == null || !expected.equals(state)) return redirect("/?error=" + url("state_mismatch"));
+        return null;
+    }
+
+    static RedirectView afterLogin(SmartSession session) {
+        return redirect(session.patientId() != null ? "/me" : "/patients");
+    }
+
+    static RedirectView redirect(String url) {
+        RedirectView rv = new RedirectView(url);
         rv.setExposeModelAttributes(false);
         return rv;
-
     }
 
     static String url(String s) {
@@ -0,0 +1,77 @@
+package com.example.smartspring.web;
+
+import com.example.smartspring.bulk.BulkExportService;
+import com.example.smartspring.bulk.BulkExportService.ExportRequest;
+import com.example.smartspring.bulk.BulkExportService.JobView;
+import com.example.smartspring.bulk.BulkExportService.Level;
+import com.example.smartspring.config.AppProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Operator endpoints for Bulk Data exports; only present when {@code smart.bulk.enabled} is set, and only answering
+ * requests that carry {@code smart.bulk.operatorToken} as a bearer token.
+ */
+@RestController
+@ConditionalOnProperty(prefix = "smart.bulk", name = "enabled", havingValue = "true")
+public class BulkController {
+
+    private final BulkExportService bulk;
+    private final byte[] operatorToken;
+
+    public BulkController(BulkExportService bulk, AppProperties props) {
+        String token = props.getBulk().getOperatorToken();
+        if (token == null || token.isBlank()) {
+            throw new IllegalStateException("smart.bulk.operatorToken must be set when smart.bulk.enabled is true");
+        }
+        this.bulk = bulk;
+        this.operatorToken = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PostMapping("/bulk/export")
+    public ResponseEntity<JobView> start(@RequestParam(name = "level", defaultValue = "SYSTEM") Level level,
+                                         @RequestParam(name = "group", required = false) String group,
+                                         @RequestParam(name = "type", required = false) String types,
+                                         @RequestParam(name = "since", required = false) String since,
+                                         @RequestHeader(name = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        requireOperator(authorization);
+        if (level == Level.GROUP && (group == null || group.isBlank())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "group is required for a GROUP export");
+        }
+        List<String> typeList = types == null || types.isBlank() ? List.of()
+                : Arrays.stream(types.split(",")).map(String::trim).filter(t -> !t.isEmpty()).toList();
+        String id = bulk.start(new ExportRequest(level, group, typeList, since))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many exports running"));
+        return ResponseEntity.accepted().location(URI.create("/bulk/export/" + id)).body(bulk.job(id).orElseThrow());
+    }
+
+    @GetMapping("/bulk/export/{id}")
+    public JobView status(@PathVariable("id") String id,
+                          @RequestHeader(name = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        requireOperator(authorization);
+        return bulk.job(id).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND));
+    }
+
+    private void requireOperator(String authorization) {
+        byte[] presented = authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)
+                ? authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (!MessageDigest.isEqual(presented, operatorToken)) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED);
+        }
+    }
+}
@@ -1,120 +1,144 @@
 package com.example.smartspring.web;
 
 import com.example.smartspring.config.AppProperties;
-import com.example.smartspring.oauth.TokenService;
+import com.example.smartspring.oauth.TokenManager;
+import com.example.smartspring.service.CodeDisplayCache;
 import com.example.smartspring.service.FhirService;
-import jakarta.servlet.http.HttpSession;
+import com.example.smartspring.service.MedicationIndex;
+import com.example.smartspring.service.PatientSummaryService;
+import com.example.smartspring.service.ResourceCache;
+import com.example.smartspring.session.SmartSession;
+import com.example.smartspring.session.SmartSessions;
+import com.example.smartspring.sync.PatientSyncService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.view.RedirectView;
 
-import java.time.Instant;
-
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.HumanName;
-
-import java.util.stream.Collectors;
-
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.MedicationRequest;
-import org.hl7.fhir.r4.model.Medication;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.stream.Stream;
 
 @Controller
+@ConditionalOnExpression("'${smart.web.mode:BLOCKING}' != 'ASYNC'")
 public class FhirController {
 
     private final AppProperties props;
     private final FhirService fhir;
-    private final TokenService tokens;
-
-    public FhirController(AppProperties p, FhirService s, TokenService t) {
+    private final TokenManager tokens;
+    private final PatientSummaryService summaries;
+    private final PageTokens pageTokens;
+    private final SmartSessions sessions;
+    private final CodeDisplayCache displays;
+    private final PatientSyncService sync;
+
+    public FhirController(AppProperties p, FhirService s, TokenManager t, PatientSummaryService ps, PageTokens pt, SmartSessions ss,
+                          CodeDisplayCache dc, PatientSyncService sy) {
         this.props = p;
         this.fhir = s;
         this.tokens = t;
+        this.summaries = ps;
+        this.pageTokens = pt;
+        this.sessions = ss;
+        this.displays = dc;
+        this.sync = sy;
     }
 
     @GetMapping("/me")
-    public Object me(Model model, HttpSession session) {
-        String access = (String) session.getAttribute("access_token");
+    public Object me(Model model, HttpServletRequest req) {
+        SmartSession session = sessions.get(req);
+        // refreshed by the token manager if it's about to expire
+        String access = tokens.accessToken(sessions.id(req), session);
         if (access == null) return new RedirectView("/");
 
-        // refresh if it's necessary (same as /patients)
-        Long exp = (Long) session.getAttribute("token_exp");
-        String refresh = (String) session.getAttribute("refresh_token");
-        String tokenEndpoint = (String) session.getAttribute("token_endpoint");
-        if (exp != null && exp > 0 && java.time.Instant.now().getEpochSecond() > exp - 60 && refresh != null) {
-            var ts = tokens.refresh(java.net.URI.create(tokenEndpoint), props.getClientId(), refresh);
-            session.setAttribute("access_token", ts.accessToken());
-            session.setAttribute("refresh_token", ts.refreshToken());
-            session.setAttribute("token_exp", ts.expiresEpochSeconds());
-            access = ts.accessToken();
-        }
-
-        String fhirBase = (String) session.getAttribute("runtime_fhir_base");
-        if (fhirBase == null || fhirBase.isBlank()) fhirBase = props.getFhirBase();
+        String fhirBase = AuthController.fhirBase(props, session);
 
-        String patientId = (String) session.getAttribute("patient_id");
+        String patientId = session.patientId();
         if (patientId == null || patientId.isBlank()) {
             // sin contexto → fallback a lista
             return new RedirectView("/patients");
         }
 
-        // 1) Patient
-        Patient p = fhir.readPatientById(fhirBase, access, patientId);
-        String name = p.getName().isEmpty() ? "(no name)" : p.getName().get(0).getNameAsSingleString();
-        String birthDate = p.hasBirthDate() ? new java.text.SimpleDateFormat("yyyy-MM-dd").format(p.getBirthDate()) : "(unknown)";
-
-        // 2) MedicationRequests (+ include Medication)
-        var medBundle = fhir.medicationsForPatient(fhirBase, access, patientId, 50);
+        // the synced view if there is a fresh one; else Patient, MedicationRequests (+ include Medication) and any
+        // extra sections, fetched concurrently
+        String cacheScope = ResourceCache.scope(fhirBase, patientId, session.scope(), sessions.id(req));
+        var summary = sync.summary(sessions.id(req), fhirBase, patientId, cacheScope);
+        if (summary == null) summary = summaries.summary(fhirBase, access, cacheScope, patientId);
+        return renderMe(model, patientId, summary, displays);
+    }
 
-        // map of Medication included by reference "Medication/{id}"
-        Map<String, Medication> medsByRef = new HashMap<>();
-        for (var e : medBundle.getEntry()) {
-            if (e.getResource() instanceof Medication m) {
-                medsByRef.put(m.getResourceType().name() + "/" + m.getIdElement().getIdPart(), m);
-            }
+    @GetMapping("/patients")
+    public Object patients(@RequestParam(name = "page", required = false) String page,
+                           @RequestParam(name = "size", required = false) Integer size,
+                           Model model, HttpServletRequest req) {
+        SmartSession session = sessions.get(req);
+        String access = tokens.accessToken(sessions.id(req), session);
+        if (access == null) return new RedirectView("/");
+        String fhirBase = AuthController.fhirBase(props, session);
+        Bundle bundle;
+        if (page != null && !page.isBlank()) {
+            bundle = fhir.page(fhirBase, access, pageUrl(pageTokens, fhirBase, page));
+        } else {
+            bundle = fhir.searchPatients(fhirBase, access, pageSize(props, size));
         }
+        return renderPatients(model, bundle, fhirBase, pageTokens);
+    }
 
-        java.util.List<String> meds = new java.util.ArrayList<>();
-        for (var e : medBundle.getEntry()) {
-            if (e.getResource() instanceof MedicationRequest mr) {
-                meds.add(FhirService.medicationDisplay(mr, medsByRef));
-            }
-        }
+    static String renderMe(Model model, String patientId, PatientSummaryService.PatientSummary summary, CodeDisplayCache displays) {
+        Patient p = summary.patient();
+        String name = p.getName().isEmpty() ? "(no name)" : p.getName().get(0).getNameAsSingleString();
+        String birthDate = p.hasBirthDate() ? new java.text.SimpleDateFormat("yyyy-MM-dd").format(p.getBirthDate()) : "(unknown)";
+
+        var medBundle = summary.medications();
+        // one pass over the entries; included Medications are matched to "Medication/{id}" references in place
+        java.util.List<String> meds = medBundle == null ? java.util.List.of() : MedicationIndex.of(medBundle).displays(displays);
 
         model.addAttribute("patientId", patientId);
         model.addAttribute("name", name);
         model.addAttribute("birthDate", birthDate);
         model.addAttribute("medications", meds);
-
+        model.addAttribute("sections", summary.sections());
+        model.addAttribute("unavailable", summary.unavailable());
+        model.addAttribute("freshness", freshness(summary.asOf()));
         return "me";
     }
 
-    @GetMapping("/patients")
-    public Object patients(Model model, HttpSession session) {
-        String access = (String) session.getAttribute("access_token");
-        Long exp = (Long) session.getAttribute("token_exp");
-        String refresh = (String) session.getAttribute("refresh_token");
-        String tokenEndpoint = (String) session.getAttribute("token_endpoint");
-        if (access == null) return new RedirectView("/");
-        if (exp != null && exp > 0 && Instant.now().getEpochSecond() > exp - 60 && refresh != null) {
-            var ts = tokens.refresh(java.net.URI.create(tokenEndpoint), props.getClientId(), refresh);
-            session.setAttribute("access_token", ts.accessToken());
-            session.setAttribute("refresh_token", ts.refreshToken());
-            session.setAttribute("token_exp", ts.expiresEpochSeconds());
-            access = ts.accessToken();
-        }
-        String fhirBase = (String) session.getAttribute("runtime_fhir_base");
-        if (fhirBase == null || fhirBase.isBlank()) fhirBase = props.getFhirBase();
-        Bundle bundle = fhir.searchPatients(fhirBase, access, 5);
-        var names = bundle.getEntry().stream().map(e -> e.getResource()).filter(r -> r instanceof org.hl7.fhir.r4.model.Patient)
-                .map(r -> (org.hl7.fhir.r4.model.Patient) r).map(p -> p.getName().stream().findFirst().map(HumanName::getNameAsSingleString).orElse("(no name)")).collect(Collectors.toList());
+    // "Synced 3 min ago" for a summary rendered from a synced view; null when it was read live
+    static String freshness(java.time.Instant asOf) {
+        if (asOf == null) return null;
+        long minutes = java.time.Duration.between(asOf, java.time.Instant.now()).toMinutes();
+        return minutes < 1 ? "Synced just now" : "Synced " + minutes + " min ago";
+    }
+
+    static String pageUrl(PageTokens pageTokens, String fhirBase, String page) {
+        String pageUrl = pageTokens.decode(fhirBase, page);
+        if (pageUrl == null) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page token");
+        return pageUrl;
+    }
+
+    static int pageSize(AppProperties props, Integer size) {
+        return size == null ? props.getPaging().getDefaultSize() : Math.max(1, Math.min(size, props.getPaging().getMaxSize()));
+    }
+
+    static String renderPatients(Model model, Bundle bundle, String fhirBase, PageTokens pageTokens) {
+        var names = FhirService.patientNames(bundle);
         model.addAttribute("count", bundle.getEntry().size());
+        model.addAttribute("total", bundle.hasTotal() ? bundle.getTotal() : null);
         model.addAttribute("names", names);
+        model.addAttribute("nextPage", pageLink(pageTokens, bundle, Bundle.LINK_NEXT, fhirBase));
+        model.addAttribute("prevPage", pageLink(pageTokens, bundle, Bundle.LINK_PREV, fhirBase));
         return "patients";
     }
+
+    private static String pageLink(PageTokens pageTokens, Bundle bundle, String relation, String fhirBase) {
+        var link = bundle.getLink(relation);
+        if (link == null && Bundle.LINK_PREV.equals(relation)) link = bundle.getLink("previous");
+        return link == null || !link.hasUrl() ? null : pageTokens.encode(fhirBase, link.getUrl());
+    }
 }
@@ -0,0 +1,44 @@
+package com.example.smartspring.web;
+
+import com.example.smartspring.session.SessionCodec;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursors for /patients. A token is a paging link the FHIR server handed us, sealed with {@link SessionCodec}
+ * (AES-GCM under {@code smart.session.encryptionKey}) and bound to the FHIR base it belongs to, so a client can
+ * neither read nor forge the URL we will send its bearer token to, and any node sharing that key can open it.
+ */
+@Component
+public class PageTokens {
+
+    private static final Base64.Encoder ENC = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DEC = Base64.getUrlDecoder();
+
+    private final SessionCodec codec;
+
+    public PageTokens(SessionCodec codec) {
+        this.codec = codec;
+    }
+
+    public String encode(String fhirBase, String pageUrl) {
+        return ENC.encodeToString(codec.sealBytes(aad(fhirBase), pageUrl.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** The page URL, or null if the token is malformed, tampered with, or was issued for another FHIR base. */
+    public String decode(String fhirBase, String token) {
+        try {
+            byte[] url = codec.openBytes(aad(fhirBase), DEC.decode(token));
+            return url == null ? null : new String(url, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // kept apart from session ids and view keys sealed under the same key
+    private static String aad(String fhirBase) {
+        return "page\0" + fhirBase;
+    }
+}
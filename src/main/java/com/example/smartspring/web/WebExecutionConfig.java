@@ -0,0 +1,37 @@
+package com.example.smartspring.web;
+
+import com.example.smartspring.config.AppProperties;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Request execution for {@code smart.web.mode}. BLOCKING keeps Tomcat's worker pool; VIRTUAL runs each request on
+ * its own virtual thread, so a handler parked on an upstream call costs no platform thread; ASYNC swaps in
+ * {@link AsyncAuthController} and {@link AsyncFhirController}, which release the worker until the upstream calls
+ * complete.
+ */
+@Configuration
+public class WebExecutionConfig {
+
+    @Bean
+    @ConditionalOnProperty(prefix = "smart.web", name = "mode", havingValue = "VIRTUAL")
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadRequests() {
+        return handler -> handler.setExecutor(new VirtualThreadExecutor("tomcat-handler-"));
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "smart.web", name = "mode", havingValue = "ASYNC")
+    public WebMvcConfigurer asyncRequestTimeout(AppProperties props) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+                configurer.setDefaultTimeout(props.getWeb().getAsyncTimeout().toMillis());
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.smartspring.http;
+
+import com.example.smartspring.config.AppProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IssuerGuardTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    void breakerOpensAtTheFailureRateOnceItHasMinCalls() {
+        IssuerGuard.Breaker b = new IssuerGuard.Breaker(breaker());
+
+        for (int i = 0; i < 3; i++) b.record(true, false, 0);
+        assertThat(b.state(0)).isEqualTo(IssuerGuard.State.CLOSED);
+
+        b.record(false, false, 0);
+        assertThat(b.state(0)).isEqualTo(IssuerGuard.State.OPEN);
+        assertThat(b.tryAcquire(10 * MS)).isFalse();
+        assertThat(b.remaining(10 * MS)).isEqualTo(Duration.ofMillis(990));
+    }
+
+    @Test
+    void breakerStaysClosedBelowTheFailureRate() {
+        IssuerGuard.Breaker b = new IssuerGuard.Breaker(breaker());
+
+        for (int i = 0; i < 30; i++) b.record(i % 4 == 0, false, 0);
+        assertThat(b.state(0)).isEqualTo(IssuerGuard.State.CLOSED);
+        assertThat(b.remaining(0)).isZero();
+    }
+
+    @Test
+    void slowCallsOpenTheBreaker() {
+        IssuerGuard.Breaker b = new IssuerGuard.Breaker(breaker());
+
+        for (int i = 0; i < 4; i++) b.record(false, true, 0);
+        assertThat(b.state(0)).isEqualTo(IssuerGuard.State.OPEN);
+    }
+
+    @Test
+    void halfOpenTrialsCloseTheBreakerWhenTheyAllSucceed() {
+        IssuerGuard.Breaker b = opened();
+        long later = 1_000 * MS;
+
+        assertThat(b.state(later)).isEqualTo(IssuerGuard.State.HALF_OPEN);
+        assertThat(b.tryAcquire(later)).isTrue();
+        assertThat(b.tryAcquire(later)).isTrue();
+        assertThat(b.tryAcquire(later)).as("only halfOpenCalls trials").isFalse();
+
+        b.record(false, false, later);
+        assertThat(b.state(later)).isEqualTo(IssuerGuard.State.HALF_OPEN);
+        b.record(false, false, later);
+        assertThat(b.state(later)).isEqualTo(IssuerGuard.State.CLOSED);
+
+        // the window starts over: the failures from before it opened are gone
+        for (int i = 0; i < 3; i++) b.record(true, false, later);
+        assertThat(b.state(later)).isEqualTo(IssuerGuard.State.CLOSED);
+    }
+
+    @Test
+    void aFailedTrialReopensTheBreaker() {
+        IssuerGuard.Breaker b = opened();
+        long later = 1_000 * MS;
+
+        assertThat(b.tryAcquire(later)).isTrue();
+        b.record(true, false, later);
+        assertThat(b.state(later)).isEqualTo(IssuerGuard.State.OPEN);
+        assertThat(b.tryAcquire(later + 999 * MS)).isFalse();
+        assertThat(b.tryAcquire(later + 1_000 * MS)).isTrue();
+    }
+
+    @Test
+    void aReleasedTrialFreesItsSlot() {
+        IssuerGuard.Breaker b = opened();
+        long later = 1_000 * MS;
+
+        assertThat(b.tryAcquire(later)).isTrue();
+        assertThat(b.tryAcquire(later)).isTrue();
+        b.release();
+        assertThat(b.tryAcquire(later)).isTrue();
+    }
+
+    @Test
+    void retryBudgetStartsFullAndRefillsByRatio() {
+        IssuerGuard.RetryBudget budget = new IssuerGuard.RetryBudget(0.25, 2);
+
+        assertThat(budget.withdraw()).isTrue();
+        assertThat(budget.withdraw()).isTrue();
+        assertThat(budget.withdraw()).isFalse();
+
+        for (int i = 0; i < 3; i++) budget.deposit();
+        assertThat(budget.withdraw()).as("three calls earn 0.75 of a retry").isFalse();
+        budget.deposit();
+        assertThat(budget.withdraw()).isTrue();
+        assertThat(budget.withdraw()).isFalse();
+
+        for (int i = 0; i < 100; i++) budget.deposit();
+        assertThat(budget.withdraw()).isTrue();
+        assertThat(budget.withdraw()).isTrue();
+        assertThat(budget.withdraw()).as("capped at max").isFalse();
+    }
+
+    @Test
+    void latencyWindowNeedsMinSamplesAndKeepsTheLatest() {
+        IssuerGuard.LatencyWindow w = new IssuerGuard.LatencyWindow(10);
+
+        for (int i = 1; i <= 4; i++) w.add(i);
+        assertThat(w.percentile(0.5, 5)).isEqualTo(-1);
+
+        for (int i = 5; i <= 10; i++) w.add(i);
+        assertThat(w.percentile(0.5, 5)).isEqualTo(5);
+        assertThat(w.percentile(0.95, 5)).isEqualTo(10);
+
+        for (int i = 0; i < 10; i++) w.add(100 + i);
+        assertThat(w.percentile(0.5, 5)).isEqualTo(104);
+    }
+
+    @Test
+    void hedgeDelayIsThePercentileButNoLessThanMinDelay() {
+        AppProperties.Resilience cfg = new AppProperties.Resilience();
+        cfg.getHedge().setPercentile(0.9);
+        cfg.getHedge().setMinSamples(10);
+        cfg.getHedge().setMinDelay(Duration.ofMillis(50));
+        IssuerGuard g = new IssuerGuard(cfg);
+
+        assertThat(g.hedgeDelayNanos("patient.read")).isEqualTo(-1);
+        for (int i = 1; i <= 10; i++) g.recordLatency("patient.read", i * MS);
+        assertThat(g.hedgeDelayNanos("patient.read")).isEqualTo(50 * MS);
+        for (int i = 1; i <= 10; i++) g.recordLatency("patient.read", i * 100 * MS);
+        assertThat(g.hedgeDelayNanos("patient.read")).isEqualTo(800 * MS);
+        assertThat(g.hedgeDelayNanos("medication.search")).isEqualTo(-1);
+    }
+
+    @Test
+    void fullBulkheadTurnsCallsAway() {
+        AppProperties.Resilience cfg = new AppProperties.Resilience();
+        cfg.getBulkhead().setMaxConcurrent(2);
+        IssuerGuard g = new IssuerGuard(cfg);
+
+        assertThat(g.enter(false)).isNull();
+        assertThat(g.enter(false)).isNull();
+        assertThat(g.available()).isZero();
+        assertThat(g.enter(false)).isEqualTo("bulkhead");
+
+        g.exit(false, false, MS);
+        assertThat(g.enter(false)).isNull();
+    }
+
+    private static IssuerGuard.Breaker opened() {
+        IssuerGuard.Breaker b = new IssuerGuard.Breaker(breaker());
+        for (int i = 0; i < 4; i++) b.record(true, false, 0);
+        assertThat(b.state(0)).isEqualTo(IssuerGuard.State.OPEN);
+        return b;
+    }
+
+    private static AppProperties.Resilience.Breaker breaker() {
+        AppProperties.Resilience.Breaker cfg = new AppProperties.Resilience.Breaker();
+        cfg.setWindowSize(10);
+        cfg.setMinCalls(4);
+        cfg.setFailureRate(0.5);
+        cfg.setSlowCallRate(0.8);
+        cfg.setOpenDuration(Duration.ofSeconds(1));
+        cfg.setHalfOpenCalls(2);
+        return cfg;
+    }
+}
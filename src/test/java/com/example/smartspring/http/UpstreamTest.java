@@ -0,0 +1,279 @@
+package com.example.smartspring.http;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.example.smartspring.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+class UpstreamTest {
+
+    private static final String FHIR = "https://fhir.test/r4";
+    private static final String HOST = "fhir.test";
+
+    private AppProperties props;
+    private MeterRegistry meters;
+
+    @BeforeEach
+    void setUp() {
+        props = new AppProperties();
+        AppProperties.Resilience r = props.getResilience();
+        r.getRetry().setMaxAttempts(3);
+        r.getRetry().setBackoff(Duration.ofMillis(1));
+        r.getRetry().setMaxBackoff(Duration.ofMillis(2));
+        r.getBreaker().setMinCalls(1_000); // kept closed unless a test is about it
+        meters = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void readsAreRetriedUpToMaxAttempts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> upstream().read("patient.read", FHIR, () -> {
+            attempts.incrementAndGet();
+            throw new FhirClientConnectionException("connection reset");
+        })).isInstanceOf(FhirClientConnectionException.class);
+
+        assertThat(attempts).hasValue(3);
+        assertThat(counter("smart.upstream.retries", "patient.read")).isEqualTo(2);
+    }
+
+    @Test
+    void aRetryThatSucceedsReturnsItsValue() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String value = upstream().read("patient.read", FHIR, () -> {
+            if (attempts.incrementAndGet() == 1) throw new FhirClientConnectionException("connection reset");
+            return "ok";
+        });
+
+        assertThat(value).isEqualTo("ok");
+        assertThat(attempts).hasValue(2);
+    }
+
+    @Test
+    void retriesStopWhenTheBudgetRunsOut() {
+        props.getResilience().getRetry().setMaxAttempts(5);
+        props.getResilience().getRetry().setBudgetMax(3);
+        props.getResilience().getRetry().setBudgetRatio(0.1);
+        Upstream upstream = upstream();
+        AtomicInteger attempts = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> upstream.read("patient.read", FHIR, () -> {
+                attempts.incrementAndGet();
+                throw new FhirClientConnectionException("connection reset");
+            })).isInstanceOf(FhirClientConnectionException.class);
+        }
+
+        // three retries from the full budget, then the 0.1 per call earned since then is not enough for a fourth
+        assertThat(attempts).hasValue(3 + 3);
+        assertThat(counter("smart.upstream.retries", "patient.read")).isEqualTo(3);
+    }
+
+    @Test
+    void callsAreNeverRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> upstream().call("token", FHIR, () -> {
+            attempts.incrementAndGet();
+            throw new FhirClientConnectionException("connection reset");
+        })).isInstanceOf(FhirClientConnectionException.class);
+
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void clientErrorsAreNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> upstream().read("patient.read", FHIR, () -> {
+            attempts.incrementAndGet();
+            throw new ResourceNotFoundException("Patient/x");
+        })).isInstanceOf(ResourceNotFoundException.class);
+
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void asyncReadsAreRetriedToo() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String value = upstream().readAsync("patient.read", FHIR, () -> attempts.incrementAndGet() < 3
+                ? CompletableFuture.<String>failedFuture(new FhirClientConnectionException("connection reset"))
+                : CompletableFuture.completedFuture("ok")).get(5, TimeUnit.SECONDS);
+
+        assertThat(value).isEqualTo("ok");
+        assertThat(attempts).hasValue(3);
+    }
+
+    @Test
+    void openCircuitFailsFastWithRetryAfterAndRecovers() throws Exception {
+        AppProperties.Resilience.Breaker b = props.getResilience().getBreaker();
+        b.setWindowSize(4);
+        b.setMinCalls(4);
+        b.setOpenDuration(Duration.ofMillis(400));
+        b.setHalfOpenCalls(1);
+        props.getResilience().getRetry().setMaxAttempts(1);
+        Upstream upstream = upstream();
+        AtomicInteger attempts = new AtomicInteger();
+
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(() -> upstream.read("patient.read", FHIR, () -> {
+                attempts.incrementAndGet();
+                throw new FhirClientConnectionException("connection refused");
+            })).isInstanceOf(FhirClientConnectionException.class);
+        }
+
+        UpstreamUnavailableException e = catchThrowableOfType(
+                () -> upstream.read("patient.read", FHIR, () -> attempts.incrementAndGet()), UpstreamUnavailableException.class);
+        assertThat(e.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        assertThat(e.rejection()).isEqualTo("circuit_open");
+        assertThat(e.host()).isEqualTo(HOST);
+        assertThat(e.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        assertThat(attempts).as("turned away without reaching the host").hasValue(4);
+        assertThat(meters.counter("smart.upstream.rejected", "op", "patient.read", "host", HOST, "reason", "circuit_open").count())
+                .isEqualTo(1);
+
+        Thread.sleep(450);
+        assertThat(upstream.read("patient.read", FHIR, () -> "back")).isEqualTo("back");
+        assertThat(upstream.read("patient.read", FHIR, () -> "still")).isEqualTo("still");
+    }
+
+    @Test
+    void fullBulkheadRejectsWith503AndRetryAfter() throws Exception {
+        props.getResilience().getBulkhead().setMaxConcurrent(1);
+        props.getResilience().getBulkhead().setMaxWait(Duration.ofMillis(20));
+        Upstream upstream = upstream();
+        CountDownLatch inside = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> busy = CompletableFuture.supplyAsync(() -> upstream.call("patient.read", FHIR, () -> {
+            inside.countDown();
+            await(release);
+            return "first";
+        }));
+        assertThat(inside.await(5, TimeUnit.SECONDS)).isTrue();
+
+        UpstreamUnavailableException e = catchThrowableOfType(
+                () -> upstream.read("patient.read", FHIR, () -> "second"), UpstreamUnavailableException.class);
+        assertThat(e.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        assertThat(e.rejection()).isEqualTo("bulkhead");
+        assertThat(e.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        assertThat(counter("smart.upstream.retries", "patient.read")).as("a rejection is not retried").isZero();
+
+        release.countDown();
+        assertThat(busy.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(upstream.read("patient.read", FHIR, () -> "third")).isEqualTo("third");
+    }
+
+    @Test
+    void hedgeFiresOnlyOnceTheFirstLegIsPastThePercentileDelay() {
+        AppProperties.Resilience.Hedge h = props.getResilience().getHedge();
+        h.setEnabled(true);
+        h.setOps(List.of("patient.read"));
+        h.setPercentile(0.95);
+        h.setMinSamples(5);
+        h.setMinDelay(Duration.ofMillis(100));
+        Upstream upstream = upstream();
+
+        for (int i = 0; i < 5; i++) upstream.read("patient.read", FHIR, () -> "fast");
+        assertThat(counter("smart.upstream.hedges", "patient.read")).as("no delay to hedge at yet").isZero();
+
+        // under the 100 ms delay: one leg only
+        AtomicInteger legs = new AtomicInteger();
+        upstream.read("patient.read", FHIR, () -> {
+            legs.incrementAndGet();
+            sleep(30);
+            return "quick enough";
+        });
+        assertThat(legs).hasValue(1);
+        assertThat(counter("smart.upstream.hedges", "patient.read")).isZero();
+
+        // the first leg stalls: the second starts after the delay and wins
+        AtomicInteger started = new AtomicInteger();
+        AtomicLong firstAt = new AtomicLong(), secondAt = new AtomicLong();
+        long t0 = System.nanoTime();
+        String value = upstream.read("patient.read", FHIR, () -> {
+            if (started.incrementAndGet() == 1) {
+                firstAt.set(System.nanoTime());
+                sleep(5_000);
+                return "stalled";
+            }
+            secondAt.set(System.nanoTime());
+            return "hedge";
+        });
+        long took = System.nanoTime() - t0;
+
+        assertThat(value).isEqualTo("hedge");
+        assertThat(started).hasValue(2);
+        assertThat(counter("smart.upstream.hedges", "patient.read")).isEqualTo(1);
+        assertThat(secondAt.get() - firstAt.get()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(90));
+        assertThat(took).isLessThan(TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    void operationsOutsideHedgeOpsAreNotHedged() {
+        AppProperties.Resilience.Hedge h = props.getResilience().getHedge();
+        h.setEnabled(true);
+        h.setOps(List.of("patient.read"));
+        h.setMinSamples(1);
+        h.setMinDelay(Duration.ofMillis(10));
+        Upstream upstream = upstream();
+        AtomicInteger legs = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            upstream.read("medication.search", FHIR, () -> {
+                legs.incrementAndGet();
+                sleep(50);
+                return "bundle";
+            });
+        }
+
+        assertThat(legs).hasValue(3);
+        assertThat(counter("smart.upstream.hedges", "medication.search")).isZero();
+    }
+
+    private Upstream upstream() {
+        return new Upstream(ObservationRegistry.create(), meters, props);
+    }
+
+    private double counter(String name, String op) {
+        return meters.counter(name, "op", op, "host", HOST).count();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
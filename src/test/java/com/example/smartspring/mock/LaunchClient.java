@@ -0,0 +1,73 @@
+package com.example.smartspring.mock;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+/**
+ * A scripted browser for the standalone launch: follows {@code /auth/start} → authorize → {@code /callback} by hand,
+ * replaying the mock's redirect query against the app and carrying the session cookie.
+ */
+public final class LaunchClient {
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(5))
+            // keep the driver's own threads out of thread counts taken in the same JVM
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+    private final String appBase;
+
+    public LaunchClient(String appBase) {
+        this.appBase = appBase;
+    }
+
+    /** Runs the launch and returns the session cookie ({@code name=value}) it ends with. */
+    public String login() throws Exception {
+        HttpResponse<Void> start = get(appBase + "/auth/start", null);
+        String cookie = cookie(start, null);
+        HttpResponse<Void> authorize = get(location(start, 302), null);
+        String callback = location(authorize, 302);
+        HttpResponse<Void> cb = get(appBase + "/callback?" + URI.create(callback).getRawQuery(), cookie);
+        cookie = cookie(cb, cookie);
+        String next = location(cb, 302);
+        if (!next.endsWith("/me")) throw new IllegalStateException("callback redirected to " + next);
+        return cookie;
+    }
+
+    public String me(String cookie) throws Exception {
+        HttpResponse<String> me = client.send(request(appBase + "/me", cookie), HttpResponse.BodyHandlers.ofString());
+        if (me.statusCode() != 200) throw new IllegalStateException("/me returned " + me.statusCode());
+        return me.body();
+    }
+
+    public CompletableFuture<HttpResponse<String>> meAsync(String cookie) {
+        return client.sendAsync(request(appBase + "/me", cookie), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<Void> get(String url, String cookie) throws Exception {
+        return client.send(request(url, cookie), HttpResponse.BodyHandlers.discarding());
+    }
+
+    private static HttpRequest request(String url, String cookie) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).GET();
+        if (cookie != null) b.header("Cookie", cookie);
+        return b.build();
+    }
+
+    private static String location(HttpResponse<?> r, int expected) {
+        if (r.statusCode() != expected) throw new IllegalStateException(r.uri() + " returned " + r.statusCode());
+        return r.headers().firstValue("Location").orElseThrow();
+    }
+
+    // name=value of the last Set-Cookie, or the current cookie if the response set none
+    private static String cookie(HttpResponse<?> r, String current) {
+        String c = current;
+        for (String v : r.headers().allValues("Set-Cookie")) c = v.substring(0, v.indexOf(';') < 0 ? v.length() : v.indexOf(';'));
+        return c;
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.smartspring.mock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process stand-in for the part of Redis the session store uses, speaking RESP2: {@code AUTH}, {@code SELECT},
+ * {@code PING}, {@code GET}, {@code SET key value [PX ms | EX s]} and {@code DEL}, with 16 databases, expiry on read
+ * and Redis's own error replies ({@code NOAUTH}, {@code WRONGPASS}, out-of-range {@code SELECT}, unknown commands).
+ * {@link #failNext} replaces the next reply with raw bytes, for error and malformed replies, and {@link #open} counts
+ * client connections so a scenario can tell whether the client leaks them. {@code main} runs it standalone.
+ */
+public final class MockRedisServer implements AutoCloseable {
+
+    private static final int DATABASES = 16;
+
+    private final ServerSocket server;
+    private final String password;
+    private final List<Map<String, Value>> dbs = new ArrayList<>();
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicReference<byte[]> nextReply = new AtomicReference<>();
+
+    public MockRedisServer(int port, String password) throws IOException {
+        this.password = password;
+        for (int i = 0; i < DATABASES; i++) dbs.add(new ConcurrentHashMap<>());
+        server = new ServerSocket(port, 512, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().name("mock-redis-accept").start(this::accept);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6379;
+        MockRedisServer s = new MockRedisServer(port, args.length > 1 ? args[1] : null);
+        System.out.println("mock Redis on 127.0.0.1:" + s.port());
+        Thread.currentThread().join();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /** Answers the next command with {@code raw} (a complete or deliberately broken RESP reply) instead of running it. */
+    public void failNext(String raw) {
+        nextReply.set(raw.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Client connections currently open. */
+    public int open() {
+        return open.get();
+    }
+
+    /** Client connections accepted so far. */
+    public long accepted() {
+        return accepted.get();
+    }
+
+    /** Commands received so far, AUTH and SELECT included. */
+    public long commands() {
+        return commands.get();
+    }
+
+    /** Unexpired keys in database {@code db}. */
+    public int keys(int db) {
+        long now = System.currentTimeMillis();
+        return (int) dbs.get(db).values().stream().filter(v -> !v.expired(now)).count();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException ignore) {
+        }
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                accepted.incrementAndGet();
+                open.incrementAndGet();
+                connections.execute(() -> serve(s));
+            } catch (IOException e) {
+                return; // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            boolean authed = password == null;
+            int db = 0;
+            while (true) {
+                List<byte[]> args = command(in);
+                if (args == null) return;
+                commands.incrementAndGet();
+                byte[] injected = nextReply.getAndSet(null);
+                if (injected != null) {
+                    out.write(injected);
+                    out.flush();
+                    continue;
+                }
+                String name = args.isEmpty() ? "" : new String(args.get(0), StandardCharsets.US_ASCII).toUpperCase();
+                String reply;
+                if (name.equals("AUTH")) {
+                    if (password == null) reply = "-ERR AUTH <password> called without any password configured for the default user.";
+                    else if (args.size() == 2 && password.equals(new String(args.get(1), StandardCharsets.UTF_8))) {
+                        authed = true;
+                        reply = "+OK";
+                    } else reply = "-WRONGPASS invalid username-password pair or user is disabled.";
+                } else if (!authed) {
+                    reply = "-NOAUTH Authentication required.";
+                } else {
+                    switch (name) {
+                        case "PING" -> reply = "+PONG";
+                        case "SELECT" -> {
+                            long n = args.size() == 2 ? parse(args.get(1)) : -1;
+                            if (n < 0 || n >= DATABASES) reply = "-ERR DB index is out of range";
+                            else {
+                                db = (int) n;
+                                reply = "+OK";
+                            }
+                        }
+                        case "GET" -> {
+                            if (args.size() != 2) reply = arity(name);
+                            else {
+                                Value v = get(db, args.get(1));
+                                if (v == null) reply = "$-1";
+                                else {
+                                    out.write(('$' + Integer.toString(v.bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                                    out.write(v.bytes);
+                                    reply = "";
+                                }
+                            }
+                        }
+                        case "SET" -> reply = set(db, args);
+                        case "DEL" -> {
+                            if (args.size() < 2) reply = arity(name);
+                            else {
+                                long removed = 0;
+                                for (byte[] k : args.subList(1, args.size())) {
+                                    Value v = dbs.get(db).remove(key(k));
+                                    if (v != null && !v.expired(System.currentTimeMillis())) removed++;
+                                }
+                                reply = ":" + removed;
+                            }
+                        }
+                        default -> reply = "-ERR unknown command '" + name + "'";
+                    }
+                }
+                out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    private String set(int db, List<byte[]> args) {
+        if (args.size() != 3 && args.size() != 5) return "-ERR syntax error";
+        long expiresAt = Long.MAX_VALUE;
+        if (args.size() == 5) {
+            String unit = new String(args.get(3), StandardCharsets.US_ASCII).toUpperCase();
+            long n = parse(args.get(4));
+            if (n <= 0) return "-ERR invalid expire time in 'set' command";
+            if (unit.equals("PX")) expiresAt = System.currentTimeMillis() + n;
+            else if (unit.equals("EX")) expiresAt = System.currentTimeMillis() + n * 1000;
+            else return "-ERR syntax error";
+        }
+        dbs.get(db).put(key(args.get(1)), new Value(args.get(2), expiresAt));
+        return "+OK";
+    }
+
+    private Value get(int db, byte[] k) {
+        Value v = dbs.get(db).get(key(k));
+        if (v == null) return null;
+        if (v.expired(System.currentTimeMillis())) {
+            dbs.get(db).remove(key(k), v);
+            return null;
+        }
+        return v;
+    }
+
+    private static String arity(String name) {
+        return "-ERR wrong number of arguments for '" + name.toLowerCase() + "' command";
+    }
+
+    // a RESP array of bulk strings, or null at end of stream
+    private static List<byte[]> command(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) return null;
+        if (type != '*') throw new IOException("Expected an array, got '" + (char) type + "'");
+        int n = (int) parse(line(in));
+        List<byte[]> args = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (in.read() != '$') throw new IOException("Expected a bulk string");
+            int len = (int) parse(line(in));
+            byte[] b = in.readNBytes(len);
+            if (b.length != len) return null;
+            line(in);
+            args.add(b);
+        }
+        return args;
+    }
+
+    private static byte[] line(InputStream in) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(16);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\r') {
+                in.read();
+                break;
+            }
+            b.write(c);
+        }
+        return b.toByteArray();
+    }
+
+    private static long parse(byte[] b) {
+        try {
+            return Long.parseLong(new String(b, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String key(byte[] k) {
+        return new String(k, StandardCharsets.ISO_8859_1);
+    }
+
+    private record Value(byte[] bytes, long expiresAt) {
+        boolean expired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package com.example.smartspring.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process SMART authorization server and FHIR endpoint for load scenarios: well-known discovery, an
+ * {@code /auth} that redirects straight back with a code, a {@code /token} that grants a patient-context token,
+ * and canned Patient / MedicationRequest (+ included Medication) / empty section searchsets under {@code /fhir}.
+ * FHIR responses can be held back by a fixed latency, to stand in for a slow EHR, and {@link #faults} makes a share
+ * of them fail or stall. {@link #touch} updates MedicationRequests, and searches honour {@code _lastUpdated=gt...},
+ * for incremental sync. Bulk Data {@code $export} (system, Patient and Group level) answers with a status URL that
+ * reports progress for a few polls and then a manifest of NDJSON Patient / MedicationRequest files, served gzipped
+ * when asked; {@link #bulk} sizes the export and can stall the files or break one of them mid-stream.
+ * {@code main} runs it standalone for pointing a real app instance at.
+ */
+public final class MockSmartServer implements AutoCloseable {
+
+    static final String RXNORM = "http://www.nlm.nih.gov/research/umls/rxnorm";
+    private static final long BASE_UPDATED = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+
+    private final HttpServer server;
+    private final String base;
+    private final AtomicLong tokens = new AtomicLong();
+    private final int medicationCount;
+    private long[] medicationUpdated; // grows with add(); its length is the number of MedicationRequests ever made
+    private final BitSet medicationDeleted = new BitSet();
+    private volatile byte[] medications;
+    private int touched;
+    private final long fhirLatencyMillis;
+    private final AtomicLong fhirRequests = new AtomicLong();
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile double slowRate;
+    private volatile long slowMillis;
+    private final Map<String, ExportJob> exports = new ConcurrentHashMap<>();
+    private final AtomicLong exportIds = new AtomicLong();
+    private final AtomicInteger bulkDownloadsOpen = new AtomicInteger();
+    private volatile BulkShape bulk = new BulkShape(1_000, 5_000, 2, 2, Duration.ZERO, -1, -1);
+
+    public MockSmartServer(int port, int medicationCount) throws IOException {
+        this(port, medicationCount, Duration.ZERO);
+    }
+
+    public MockSmartServer(int port, int medicationCount, Duration fhirLatency) throws IOException {
+        fhirLatencyMillis = fhirLatency.toMillis();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 4096);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        this.medicationCount = medicationCount;
+        medicationUpdated = new long[medicationCount];
+        Arrays.fill(medicationUpdated, BASE_UPDATED);
+        medications = medicationSearchset(medicationCount).getBytes(StandardCharsets.UTF_8);
+        server.createContext("/auth", this::authorize);
+        server.createContext("/token", this::token);
+        server.createContext("/fhir", this::fhir);
+        server.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9999;
+        MockSmartServer s = new MockSmartServer(port, args.length > 1 ? Integer.parseInt(args[1]) : 20,
+                Duration.ofMillis(args.length > 2 ? Long.parseLong(args[2]) : 0));
+        System.out.println("mock SMART server on " + s.fhirBase());
+        Thread.currentThread().join();
+    }
+
+    public String fhirBase() {
+        return base + "/fhir";
+    }
+
+    /**
+     * From now on fails {@code errorRate} of FHIR requests (well-known discovery aside) with {@code errorStatus}, and
+     * holds {@code slowRate} of them back a further {@code slowDelay}. Zero rates turn faults off.
+     */
+    public void faults(double errorRate, int errorStatus, double slowRate, Duration slowDelay) {
+        this.errorStatus = errorStatus;
+        this.slowMillis = slowDelay.toMillis();
+        this.slowRate = slowRate;
+        this.errorRate = errorRate;
+    }
+
+    /** Marks the next {@code n} MedicationRequests (round robin) as updated now. */
+    public synchronized void touch(int n) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n && medicationCount > 0; i++) medicationUpdated[touched++ % medicationCount] = now;
+        republish();
+    }
+
+    /** Marks MedicationRequests {@code mr<first>} to {@code mr<first+n-1>} as updated now. */
+    public synchronized void touch(int first, int n) {
+        long now = System.currentTimeMillis();
+        for (int i = first; i < first + n && i < medicationUpdated.length; i++) medicationUpdated[i] = now;
+        republish();
+    }
+
+    /** Creates {@code n} MedicationRequests, updated now and with an inline RxNorm concept; returns the first one's index. */
+    public synchronized int add(int n) {
+        int first = medicationUpdated.length;
+        medicationUpdated = Arrays.copyOf(medicationUpdated, first + n);
+        Arrays.fill(medicationUpdated, first, first + n, System.currentTimeMillis());
+        republish();
+        return first;
+    }
+
+    /** Deletes MedicationRequest {@code mr<i>}; like a FHIR server, searches stop matching it without reporting it. */
+    public synchronized void delete(int i) {
+        medicationDeleted.set(i);
+        republish();
+    }
+
+    /** How /me names MedicationRequest {@code mr<i>}: its own code, or that of the Medication it references. */
+    public String medicationDisplay(int i) {
+        return display(i % 2 == 0 && i < medicationCount ? i % Math.max(1, medicationCount / 2) : i);
+    }
+
+    private void republish() {
+        medications = medicationSearchset(medicationCount, medicationUpdated, medicationDeleted, Long.MIN_VALUE, false)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Shapes later exports: {@code patients} Patients and {@code medicationRequests} MedicationRequests, each type
+     * split over {@code filesPerType} files, after {@code pollsBeforeReady} in-progress status polls. Each file takes at
+     * least {@code fileDelay} to stream; when {@code brokenFile} is not negative, that file of the manifest (counting
+     * from 0 across types) turns into invalid JSON halfway through.
+     */
+    public void bulk(int patients, int medicationRequests, int filesPerType, int pollsBeforeReady, Duration fileDelay, int brokenFile) {
+        bulk(patients, medicationRequests, filesPerType, pollsBeforeReady, fileDelay, brokenFile, -1);
+    }
+
+    /** {@link #bulk(int, int, int, int, Duration, int)}, and when {@code missingFile} is not negative that file answers 404. */
+    public void bulk(int patients, int medicationRequests, int filesPerType, int pollsBeforeReady, Duration fileDelay, int brokenFile,
+                     int missingFile) {
+        bulk = new BulkShape(patients, medicationRequests, filesPerType, pollsBeforeReady, fileDelay, brokenFile, missingFile);
+    }
+
+    /** NDJSON downloads still being streamed. */
+    public int bulkDownloadsOpen() {
+        return bulkDownloadsOpen.get();
+    }
+
+    /** Exports kicked off and not deleted by the client yet. */
+    public int bulkExports() {
+        return exports.size();
+    }
+
+    /** FHIR requests received so far, failed ones included. */
+    public long fhirRequests() {
+        return fhirRequests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void authorize(HttpExchange x) throws IOException {
+        Map<String, String> q = query(x.getRequestURI());
+        x.getResponseHeaders().add("Location", q.get("redirect_uri") + "?code=c" + tokens.get() + "&state=" + q.get("state"));
+        send(x, 302, null, (byte[]) null);
+    }
+
+    private void token(HttpExchange x) throws IOException {
+        try (InputStream in = x.getRequestBody()) {
+            in.readAllBytes();
+        }
+        long n = tokens.incrementAndGet();
+        send(x, 200, "application/json", """
+                {"access_token":"at-%d","token_type":"Bearer","expires_in":3600,"refresh_token":"rt-%d",\
+                "scope":"launch/patient patient/*.read openid fhirUser offline_access","patient":"p1"}""".formatted(n, n));
+    }
+
+    private void fhir(HttpExchange x) throws IOException {
+        String path = x.getRequestURI().getPath().substring("/fhir".length());
+        if (!path.startsWith("/.well-known")) {
+            fhirRequests.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = fhirLatencyMillis + (random.nextDouble() < slowRate ? slowMillis : 0);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (random.nextDouble() < errorRate) {
+                send(x, errorStatus, "application/fhir+json", """
+                        {"resourceType":"OperationOutcome","issue":[{"severity":"error","code":"transient"}]}""");
+                return;
+            }
+        }
+        if (path.equals("/.well-known/smart-configuration")) {
+            send(x, 200, "application/json", """
+                    {"authorization_endpoint":"%s/auth","token_endpoint":"%s/token",\
+                    "capabilities":["launch-ehr","launch-standalone","client-public","context-standalone-patient"]}"""
+                    .formatted(base, base));
+        } else if (path.startsWith("/Patient/")) {
+            send(x, 200, "application/fhir+json", patient(path.substring("/Patient/".length())));
+        } else if (path.equals("/Patient")) {
+            // Patient?_id=..., as the sync reads it; every mock patient was last updated at BASE_UPDATED
+            Map<String, String> q = query(x.getRequestURI());
+            String id = q.get("_id");
+            boolean match = id != null && BASE_UPDATED > since(q);
+            send(x, 200, "application/fhir+json", "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"meta\":{\"lastUpdated\":\""
+                    + Instant.now() + "\"},\"entry\":[" + (match ? "{\"resource\":" + patient(id) + "}" : "") + "]}");
+        } else if (path.equals("/MedicationRequest")) {
+            Map<String, String> q = query(x.getRequestURI());
+            long since = since(q);
+            boolean idsOnly = "id".equals(q.get("_elements"));
+            if (since == Long.MIN_VALUE && !idsOnly) {
+                send(x, 200, "application/fhir+json", medications);
+            } else {
+                long[] updated;
+                BitSet deleted;
+                synchronized (this) {
+                    updated = medicationUpdated.clone();
+                    deleted = (BitSet) medicationDeleted.clone();
+                }
+                send(x, 200, "application/fhir+json", medicationSearchset(medicationCount, updated, deleted, since, idsOnly));
+            }
+        } else if (path.equals("/Condition") || path.equals("/Observation") || path.equals("/AllergyIntolerance")) {
+            send(x, 200, "application/fhir+json", "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[]}");
+        } else if (path.endsWith("/$export")) {
+            exportKickOff(x);
+        } else if (path.startsWith("/bulkstatus/")) {
+            exportStatus(x, path.substring("/bulkstatus/".length()));
+        } else if (path.startsWith("/bulkfiles/")) {
+            exportFile(x, path.substring("/bulkfiles/".length()));
+        } else {
+            send(x, 404, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+        }
+    }
+
+    private void exportKickOff(HttpExchange x) throws IOException {
+        if (!"respond-async".equals(x.getRequestHeaders().getFirst("Prefer"))) {
+            send(x, 400, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+            return;
+        }
+        String types = query(x.getRequestURI()).getOrDefault("_type", "Patient,MedicationRequest");
+        String id = "e" + exportIds.incrementAndGet();
+        exports.put(id, new ExportJob(bulk, Arrays.asList(types.split(",")), new AtomicInteger()));
+        x.getResponseHeaders().add("Content-Location", base + "/fhir/bulkstatus/" + id);
+        send(x, 202, null, (byte[]) null);
+    }
+
+    private void exportStatus(HttpExchange x, String id) throws IOException {
+        ExportJob job = exports.get(id);
+        if (job == null) {
+            send(x, 404, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+        } else if (x.getRequestMethod().equals("DELETE")) {
+            exports.remove(id);
+            send(x, 202, null, (byte[]) null);
+        } else if (job.polls.incrementAndGet() <= job.shape.pollsBeforeReady()) {
+            x.getResponseHeaders().add("X-Progress", (100 * job.polls.get() / (job.shape.pollsBeforeReady() + 1)) + "%");
+            send(x, 202, null, (byte[]) null);
+        } else {
+            StringBuilder b = new StringBuilder("{\"transactionTime\":\"").append(Instant.now())
+                    .append("\",\"request\":\"").append(base).append("/fhir/$export\",\"requiresAccessToken\":true,\"output\":[");
+            for (String type : job.types) {
+                if (!type.equals("Patient") && !type.equals("MedicationRequest")) continue;
+                for (int i = 0; i < job.shape.filesPerType(); i++) {
+                    if (b.charAt(b.length() - 1) != '[') b.append(',');
+                    b.append("{\"type\":\"").append(type).append("\",\"url\":\"").append(base).append("/fhir/bulkfiles/")
+                            .append(id).append('/').append(type).append('-').append(i).append(".ndjson\"}");
+                }
+            }
+            send(x, 200, "application/json", b.append("],\"error\":[]}").toString());
+        }
+    }
+
+    // <job>/<Type>-<i>.ndjson: that file's share of the type's resources, one JSON object per line
+    private void exportFile(HttpExchange x, String name) throws IOException {
+        int slash = name.indexOf('/');
+        int dash = name.lastIndexOf('-');
+        ExportJob job = slash < 0 || dash < slash ? null : exports.get(name.substring(0, slash));
+        if (job == null || !name.endsWith(".ndjson")) {
+            send(x, 404, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+            return;
+        }
+        String authorization = x.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            send(x, 401, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+            return;
+        }
+        String type = name.substring(slash + 1, dash);
+        int file = Integer.parseInt(name.substring(dash + 1, name.length() - ".ndjson".length()));
+        BulkShape shape = job.shape;
+        int total = type.equals("Patient") ? shape.patients() : shape.medicationRequests();
+        int from = (int) ((long) total * file / shape.filesPerType());
+        int to = (int) ((long) total * (file + 1) / shape.filesPerType());
+        int index = 0;
+        for (String t : job.types) {
+            if (t.equals(type)) break;
+            if (t.equals("Patient") || t.equals("MedicationRequest")) index += shape.filesPerType();
+        }
+        boolean broken = index + file == shape.brokenFile();
+        if (index + file == shape.missingFile()) {
+            send(x, 404, "application/fhir+json", "{\"resourceType\":\"OperationOutcome\"}");
+            return;
+        }
+        boolean gzip = String.valueOf(x.getRequestHeaders().getFirst("Accept-Encoding")).contains("gzip");
+
+        bulkDownloadsOpen.incrementAndGet();
+        try {
+            x.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+            if (gzip) x.getResponseHeaders().add("Content-Encoding", "gzip");
+            x.sendResponseHeaders(200, 0);
+            try (OutputStream out = gzip ? new GZIPOutputStream(x.getResponseBody(), 1 << 16) : new BufferedOutputStream(x.getResponseBody(), 1 << 16)) {
+                int steps = 10;
+                for (int i = from; i < to; i++) {
+                    if (broken && i == from + (to - from) / 2) {
+                        out.write("{\"resourceType\":\"Patient\",\"id\":\n".getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        break;
+                    }
+                    String line = type.equals("Patient") ? patient("bp" + i) : bulkMedicationRequest(i, shape.patients());
+                    out.write(line.getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
+                    // spread the file's delay over its length, flushing so the client sees it arrive in parts
+                    if (shape.fileDelay().isPositive() && (i - from) % Math.max(1, (to - from) / steps) == 0) {
+                        out.flush();
+                        Thread.sleep(shape.fileDelay().toMillis() / steps);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            bulkDownloadsOpen.decrementAndGet();
+            x.close();
+        }
+    }
+
+    private static String bulkMedicationRequest(int i, int patients) {
+        return "{\"resourceType\":\"MedicationRequest\",\"id\":\"bmr" + i + "\",\"status\":\"active\",\"intent\":\"order\","
+                + "\"subject\":{\"reference\":\"Patient/bp" + (i % Math.max(1, patients)) + "\"},\"medicationCodeableConcept\":" + rxnorm(i) + "}";
+    }
+
+    public static String patient(String id) {
+        return """
+                {"resourceType":"Patient","id":"%s","meta":{"versionId":"1","lastUpdated":"2024-01-01T00:00:00Z"},\
+                "name":[{"use":"official","family":"Doe","given":["Pat","%s"]}],"gender":"unknown","birthDate":"1980-01-01"}"""
+                .formatted(id, id);
+    }
+
+    // one Medication included for every two requests, the rest with an inline RxNorm concept
+    static String medicationSearchset(int count) {
+        long[] updated = new long[count];
+        Arrays.fill(updated, BASE_UPDATED);
+        return medicationSearchset(count, updated, new BitSet(), Long.MIN_VALUE, false);
+    }
+
+    // the requests not deleted and updated after `since` (epoch millis) and their Medications; with `idsOnly`, as
+    // _elements=id asks, just each request's id and meta. Requests past the first `count` have inline concepts.
+    static String medicationSearchset(int count, long[] updated, BitSet deleted, long since, boolean idsOnly) {
+        StringBuilder b = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",");
+        if (since != Long.MIN_VALUE) b.append("\"meta\":{\"lastUpdated\":\"").append(Instant.now()).append("\"},");
+        b.append("\"entry\":[");
+        int meds = Math.max(1, count / 2);
+        // a full search includes every Medication, as before; an incremental one only those still referenced
+        Set<Integer> included = new TreeSet<>();
+        if (since == Long.MIN_VALUE) {
+            for (int i = 0; i < meds; i++) included.add(i);
+        }
+        if (idsOnly) included.clear();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] <= since || deleted.get(i)) continue;
+            if (b.charAt(b.length() - 1) != '[') b.append(',');
+            b.append("{\"resource\":{\"resourceType\":\"MedicationRequest\",\"id\":\"mr").append(i)
+                    .append("\",\"meta\":{\"lastUpdated\":\"").append(Instant.ofEpochMilli(updated[i])).append("\"}");
+            if (idsOnly) {
+                b.append("},\"search\":{\"mode\":\"match\"}}");
+                continue;
+            }
+            b.append(",\"status\":\"active\",\"intent\":\"order\",\"subject\":{\"reference\":\"Patient/p1\"},");
+            if (i % 2 == 0 && i < count) {
+                b.append("\"medicationReference\":{\"reference\":\"Medication/m").append(i % meds).append("\"}");
+                included.add(i % meds);
+            } else {
+                b.append("\"medicationCodeableConcept\":").append(rxnorm(i));
+            }
+            b.append("},\"search\":{\"mode\":\"match\"}}");
+        }
+        for (int i : included) {
+            if (b.charAt(b.length() - 1) != '[') b.append(',');
+            b.append("{\"resource\":{\"resourceType\":\"Medication\",\"id\":\"m").append(i).append("\",\"code\":")
+                    .append(rxnorm(i)).append("},\"search\":{\"mode\":\"include\"}}");
+        }
+        return b.append("]}").toString();
+    }
+
+    // the instant in _lastUpdated=gt..., as epoch millis; Long.MIN_VALUE when there is none
+    private static long since(Map<String, String> q) {
+        String v = q.get("_lastUpdated");
+        return v == null || !v.startsWith("gt") ? Long.MIN_VALUE : OffsetDateTime.parse(v.substring(2)).toInstant().toEpochMilli();
+    }
+
+    private static String rxnorm(int i) {
+        int code = 197_000 + i % 200;
+        return "{\"coding\":[{\"system\":\"" + RXNORM + "\",\"code\":\"" + code + "\",\"display\":\"" + display(i) + "\"}]}";
+    }
+
+    private static String display(int i) {
+        return "Drug " + (197_000 + i % 200) + " 10 MG Oral Tablet";
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> q = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null) return q;
+        for (String kv : raw.split("&")) {
+            int eq = kv.indexOf('=');
+            if (eq > 0) q.put(kv.substring(0, eq), URLDecoder.decode(kv.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return q;
+    }
+
+    private record BulkShape(int patients, int medicationRequests, int filesPerType, int pollsBeforeReady, Duration fileDelay,
+                             int brokenFile, int missingFile) {}
+
+    private record ExportJob(BulkShape shape, List<String> types, AtomicInteger polls) {}
+
+    private static void send(HttpExchange x, int status, String contentType, String body) throws IOException {
+        send(x, status, contentType, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange x, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) x.getResponseHeaders().add("Content-Type", contentType);
+        x.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            try (OutputStream out = x.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        x.close();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.smartspring.oauth;
+
+import com.example.smartspring.config.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+class TenantRegistryTest {
+
+    private AppProperties props;
+    private MeterRegistry meters;
+
+    @BeforeEach
+    void setUp() {
+        props = new AppProperties();
+        props.setFhirBase(null);
+        props.getTenants().setPrewarmClients(false);
+        props.getTenants().setIssuers(List.of(
+                issuer("https://good.example/fhir", "https://good.example/auth", "https://good.example/token"),
+                issuer("https://plain.example/fhir", "https://plain.example/auth", "http://plain.example/token"),
+                issuer("https://relative.example/fhir", "/auth", "https://relative.example/token"),
+                issuer("http://127.0.0.1:9999/fhir", "http://127.0.0.1:9999/auth", "http://127.0.0.1:9999/token")));
+        meters = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void validEndpointsAreServed() {
+        TenantRegistry tenants = registry();
+
+        Tenant good = tenants.require("https://good.example/fhir");
+        assertThat(tenants.endpoints(good).tokenEndpoint()).isEqualTo(URI.create("https://good.example/token"));
+        assertThat(tenants.endpointsAsync(good).join().authorizationEndpoint()).isEqualTo(URI.create("https://good.example/auth"));
+
+        // plain http is fine when the server is on this machine
+        Tenant local = tenants.require("http://127.0.0.1:9999/fhir");
+        assertThat(tenants.endpoints(local).tokenEndpoint()).isEqualTo(URI.create("http://127.0.0.1:9999/token"));
+    }
+
+    @Test
+    void invalidEndpointsAreNeverServed() {
+        TenantRegistry tenants = registry();
+
+        for (String iss : List.of("https://plain.example/fhir", "https://relative.example/fhir")) {
+            Tenant t = tenants.require(iss);
+            assertThatThrownBy(() -> tenants.endpoints(t))
+                    .isInstanceOfSatisfying(ResponseStatusException.class,
+                            e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.BAD_GATEWAY));
+            Throwable async = catchThrowable(() -> tenants.endpointsAsync(t).join());
+            assertThat(async).isInstanceOf(CompletionException.class).hasCauseInstanceOf(ResponseStatusException.class);
+        }
+    }
+
+    @Test
+    void prewarmMarksInvalidTenantsAndRequestsKeepRejectingThem() {
+        TenantRegistry tenants = registry();
+        tenants.start();
+        try {
+            assertThat(meters.get("smart.tenants").tag("state", "invalid").gauge().value()).isEqualTo(2);
+
+            Tenant plain = tenants.require("https://plain.example/fhir");
+            assertThatThrownBy(() -> tenants.endpoints(plain)).isInstanceOf(ResponseStatusException.class)
+                    .hasMessageContaining("token_endpoint is not https");
+            assertThat(meters.get("smart.tenants").tag("state", "invalid").gauge().value()).isEqualTo(2);
+        } finally {
+            tenants.stop();
+        }
+    }
+
+    private TenantRegistry registry() {
+        // every tenant here has pinned endpoints, so nothing is discovered
+        return new TenantRegistry(props, null, null, meters);
+    }
+
+    private static AppProperties.Tenants.Issuer issuer(String iss, String authorize, String token) {
+        AppProperties.Tenants.Issuer i = new AppProperties.Tenants.Issuer();
+        i.setIssuer(iss);
+        i.setClientId("app");
+        i.setAuthorizationEndpoint(authorize);
+        i.setTokenEndpoint(token);
+        return i;
+    }
+}
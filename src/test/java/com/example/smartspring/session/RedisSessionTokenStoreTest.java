@@ -0,0 +1,125 @@
+package com.example.smartspring.session;
+
+import com.example.smartspring.mock.MockRedisServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RedisSessionTokenStoreTest {
+
+    private static final String PASSWORD = "s3cret";
+    private static final int DB = 3;
+
+    private MockRedisServer redis;
+
+    @BeforeEach
+    void start() throws Exception {
+        redis = new MockRedisServer(0, PASSWORD);
+    }
+
+    @AfterEach
+    void stop() {
+        redis.close();
+    }
+
+    @Test
+    void roundTripsInTheConfiguredDatabase() {
+        try (RedisSessionTokenStore store = store(PASSWORD, DB, 2)) {
+            store.put("a", bytes("one"), inSeconds(3600));
+            store.put("b", bytes("two"), inSeconds(3600));
+
+            assertThat(store.get("a")).isEqualTo(bytes("one"));
+            assertThat(store.get("b")).isEqualTo(bytes("two"));
+            assertThat(store.get("missing")).isNull();
+            assertThat(redis.keys(DB)).isEqualTo(2);
+            assertThat(redis.keys(0)).isZero();
+
+            store.remove("a");
+            assertThat(store.get("a")).isNull();
+            assertThat(redis.keys(DB)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void entriesExpireWithTheToken() throws Exception {
+        try (RedisSessionTokenStore store = store(PASSWORD, DB, 1)) {
+            store.put("short", bytes("v"), inSeconds(1));
+            assertThat(store.get("short")).isNotNull();
+
+            Thread.sleep(2_100);
+            assertThat(store.get("short")).isNull();
+
+            store.put("old", bytes("v"), inSeconds(-10));
+            assertThat(store.get("old")).isNull();
+        }
+    }
+
+    @Test
+    void malformedReplyClosesThePooledConnection() throws Exception {
+        try (RedisSessionTokenStore store = store(PASSWORD, DB, 1)) {
+            store.put("k", bytes("v"), inSeconds(3600));
+            assertThat(redis.accepted()).isEqualTo(1);
+
+            redis.failNext("$abc\r\n");
+            assertThatThrownBy(() -> store.get("k")).isInstanceOf(RuntimeException.class);
+            awaitOpen(0);
+
+            assertThat(store.get("k")).isEqualTo(bytes("v"));
+            assertThat(redis.accepted()).isEqualTo(2);
+            assertThat(redis.open()).isEqualTo(1);
+        }
+        awaitOpen(0);
+    }
+
+    @Test
+    void errorRepliesFailTheCallAndTheNextOneWorks() throws Exception {
+        try (RedisSessionTokenStore store = store(PASSWORD, DB, 1)) {
+            store.put("k", bytes("v"), inSeconds(3600));
+
+            redis.failNext("-ERR injected\r\n");
+            assertThatThrownBy(() -> store.get("k")).isInstanceOf(UncheckedIOException.class)
+                    .cause().hasMessageContaining("ERR injected");
+
+            assertThat(store.get("k")).isEqualTo(bytes("v"));
+        }
+        awaitOpen(0);
+    }
+
+    @Test
+    void rejectedLoginLeavesNoConnectionOpen() throws Exception {
+        try (RedisSessionTokenStore wrong = store("wrong", DB, 1);
+             RedisSessionTokenStore none = store(null, DB, 1);
+             RedisSessionTokenStore badDb = store(PASSWORD, 99, 1)) {
+            assertThatThrownBy(() -> wrong.get("k")).isInstanceOf(UncheckedIOException.class).cause().hasMessageContaining("WRONGPASS");
+            assertThatThrownBy(() -> none.get("k")).isInstanceOf(UncheckedIOException.class).cause().hasMessageContaining("NOAUTH");
+            assertThatThrownBy(() -> badDb.get("k")).isInstanceOf(UncheckedIOException.class).cause().hasMessageContaining("out of range");
+            awaitOpen(0);
+        }
+    }
+
+    private RedisSessionTokenStore store(String password, int db, int pool) {
+        return new RedisSessionTokenStore("127.0.0.1", redis.port(), password, db, Duration.ofSeconds(2), pool, "smart:session:");
+    }
+
+    // the server notices a closed socket asynchronously
+    private void awaitOpen(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (redis.open() != expected && System.nanoTime() < deadline) Thread.sleep(10);
+        assertThat(redis.open()).isEqualTo(expected);
+    }
+
+    private static long inSeconds(long s) {
+        return System.currentTimeMillis() / 1000 + s;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
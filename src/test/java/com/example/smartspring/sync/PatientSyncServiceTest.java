@@ -0,0 +1,163 @@
+package com.example.smartspring.sync;
+
+import com.example.smartspring.SmartSpringApplication;
+import com.example.smartspring.mock.LaunchClient;
+import com.example.smartspring.mock.MockSmartServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** {@code smart.sync} end to end: the app, syncing every second, against {@link MockSmartServer}. */
+class PatientSyncServiceTest {
+
+    private static final int MEDICATIONS = 20;
+    private static final int SHOWN = 5;
+
+    @TempDir
+    Path dir;
+
+    private MockSmartServer mock;
+    private String encryptionKey;
+
+    @BeforeEach
+    void start() throws Exception {
+        mock = new MockSmartServer(0, MEDICATIONS);
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        encryptionKey = Base64.getEncoder().encodeToString(key);
+    }
+
+    @AfterEach
+    void stop() {
+        mock.close();
+    }
+
+    @Test
+    void viewFollowsAddsUpdatesAndDeletesNewestFirst() throws Exception {
+        try (Run r = new Run()) {
+            String page = r.synced("full");
+            // all equally old: the first SHOWN in the order the server returned them
+            for (int i = 0; i < SHOWN; i++) assertThat(page).contains(mock.medicationDisplay(i));
+            assertThat(page).doesNotContain(mock.medicationDisplay(13));
+
+            mock.touch(13, 1);
+            page = r.synced("incremental");
+            assertThat(page).contains(mock.medicationDisplay(13));
+            assertThat(page.indexOf(mock.medicationDisplay(13))).isLessThan(page.indexOf(mock.medicationDisplay(0)));
+            assertThat(page).as("pushed past the cap").doesNotContain(mock.medicationDisplay(SHOWN - 1));
+
+            int added = mock.add(1);
+            page = r.synced("incremental");
+            assertThat(page.indexOf(mock.medicationDisplay(added))).isNotNegative()
+                    .isLessThan(page.indexOf(mock.medicationDisplay(13)));
+
+            mock.delete(added);
+            mock.delete(13);
+            page = r.synced("incremental");
+            assertThat(page).doesNotContain(mock.medicationDisplay(added)).doesNotContain(mock.medicationDisplay(13));
+            for (int i = 0; i < SHOWN; i++) assertThat(page).contains(mock.medicationDisplay(i));
+
+            assertThat(r.served("view")).isPositive();
+            assertThat(r.syncs("full")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void restartResumesFromThePersistedView() throws Exception {
+        try (Run r = new Run()) {
+            r.synced("full");
+            mock.delete(1);
+            r.synced("incremental");
+        }
+        mock.touch(7, 1);
+        try (Run r = new Run()) {
+            String page = r.client.me(r.cookie);
+            assertThat(r.served("view")).as("the first /me after the restart").isEqualTo(1);
+            assertThat(r.served("live")).isZero();
+            assertThat(page).doesNotContain(mock.medicationDisplay(1));
+
+            r.awaitSyncs("incremental", 1);
+            assertThat(r.syncs("full")).isZero();
+            page = r.client.me(r.cookie);
+            assertThat(page.indexOf(mock.medicationDisplay(7))).isNotNegative()
+                    .isLessThan(page.indexOf(mock.medicationDisplay(0)));
+        }
+    }
+
+    /** One app instance sharing the test's directory and session key, with a logged-in session. */
+    private final class Run implements AutoCloseable {
+        final ConfigurableApplicationContext app;
+        final LaunchClient client;
+        final String cookie;
+
+        Run() throws Exception {
+            app = new SpringApplicationBuilder(SmartSpringApplication.class).run(
+                    "--server.port=0",
+                    "--smart.fhirBase=" + mock.fhirBase(),
+                    "--smart.redirectUri=http://127.0.0.1/callback",
+                    "--smart.session.encryptionKey=" + encryptionKey,
+                    "--smart.sync.enabled=true",
+                    "--smart.sync.interval=1s",
+                    "--smart.sync.overlap=0s",
+                    "--smart.sync.directory=" + dir,
+                    "--smart.summary.medicationCount=" + SHOWN,
+                    "--spring.main.banner-mode=off",
+                    "--logging.level.root=WARN",
+                    "--logging.level.org.apache.catalina=OFF");
+            client = new LaunchClient("http://127.0.0.1:" + ((WebServerApplicationContext) app).getWebServer().getPort());
+            cookie = client.login();
+        }
+
+        // /me, rendered from the view, once a `mode` sync that started after now is done
+        String synced(String mode) throws Exception {
+            if (mode.equals("full")) {
+                client.me(cookie); // read live; tracking the patient from here on starts the full load
+                awaitSyncs(mode, 1);
+            } else {
+                awaitSyncs(mode, syncs(mode) + 2); // the first may have been under way already
+            }
+            double fromView = served("view");
+            String page = client.me(cookie);
+            assertThat(served("view")).isEqualTo(fromView + 1);
+            assertThat(page).contains("Synced ");
+            return page;
+        }
+
+        void awaitSyncs(String mode, long count) throws InterruptedException {
+            long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+            while (syncs(mode) < count) {
+                assertThat(System.nanoTime()).as("no " + mode + " sync within 30s").isLessThan(deadline);
+                Thread.sleep(20);
+            }
+        }
+
+        long syncs(String mode) {
+            return app.getBean(MeterRegistry.class).find("smart.sync").tag("mode", mode).tag("outcome", "ok").timers().stream()
+                    .mapToLong(Timer::count).sum();
+        }
+
+        double served(String source) {
+            return app.getBean(MeterRegistry.class).find("smart.sync.served").tag("source", source).counters().stream()
+                    .mapToDouble(Counter::count).sum();
+        }
+
+        @Override
+        public void close() {
+            app.close();
+        }
+    }
+}